@@ -0,0 +1,185 @@
+package com.midiwars.logic;
+
+import com.midiwars.logic.midi.MidiTimeline;
+
+/**
+ * Every key press and release needed to play a timeline with a given instrument,
+ * each with the moment it is due, worked out before playback starts.
+ * Keybar lookups, keybar changes (and their cooldowns) and the pairing of notes with their ends
+ * are all decided when the schedule is {@link #compile compiled}, so playing it is only a matter
+ * of waiting for each deadline and pressing or releasing a key.
+ * Actions are stored column by column in primitive arrays, in ascendant order of deadlines,
+ * along with the key bar that is active before each of them, so that playback can start from any action.
+ * Schedules are immutable, so a single instance can be safely shared between threads.
+ */
+public class ActionSchedule {
+
+    /* --- DEFINES --- */
+
+    /** Presses the key of a note. */
+    public static final int PRESS = 0;
+
+    /** Releases a key. */
+    public static final int RELEASE = 1;
+
+    /** Presses the key moving the active key bar one up (released by a later {@link #RELEASE}). */
+    public static final int OCTAVE_UP = 2;
+
+    /** Presses the key moving the active key bar one down (released by a later {@link #RELEASE}). */
+    public static final int OCTAVE_DOWN = 3;
+
+    /**
+     * Presses the keys of several notes at once, on instruments that {@link Instrument#canChord accept them};
+     * its keybind is a mask of the key bar slots to press (each released by a later {@link #RELEASE}).
+     */
+    public static final int CHORD = 4;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Moment in time each action is due (µs), on the timeline's clock. */
+    private final long[] deadlines;
+
+    /** {@link #PRESS}, {@link #RELEASE}, {@link #OCTAVE_UP}, {@link #OCTAVE_DOWN} or {@link #CHORD}, for each action. */
+    private final byte[] ops;
+
+    /** Keyboard key of each action (mask of key bar slots for a {@link #CHORD}). */
+    private final int[] keybinds;
+
+    /** Index of the timeline event each action comes from. */
+    private final int[] events;
+
+    /** Key bar that is active right before each action. */
+    private final byte[] keybars;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new ActionSchedule object from the given columns,
+     * which must already be sorted and must not be modified afterwards.
+     *
+     * @param deadlines Moment in time each action is due (µs).
+     * @param ops Operation of each action.
+     * @param keybinds Keyboard key of each action.
+     * @param events Index of the timeline event each action comes from.
+     * @param keybars Key bar that is active right before each action.
+     */
+    ActionSchedule(long[] deadlines, byte[] ops, int[] keybinds, int[] events, byte[] keybars) {
+
+        this.deadlines = deadlines;
+        this.ops = ops;
+        this.keybinds = keybinds;
+        this.events = events;
+        this.keybars = keybars;
+    }
+
+
+    /**
+     * Compiles the schedule of the given timeline,
+     * playing every note on the keybar {@link KeybarPlanner planned} for it.
+     *
+     * @param midiTimeline Timeline to compile.
+     * @param instrument Instrument the timeline will be played with.
+     *
+     * @return The schedule.
+     */
+    public static ActionSchedule compile(MidiTimeline midiTimeline, Instrument instrument) {
+        return new ScheduleCompiler(midiTimeline, instrument, KeybarPlanner.plan(midiTimeline, instrument)).compile();
+    }
+
+
+    /**
+     * Returns the number of actions in the schedule.
+     *
+     * @return Number of actions.
+     */
+    public int size() {
+        return deadlines.length;
+    }
+
+
+    /**
+     * Returns the moment in time the given action is due.
+     *
+     * @param i Action index.
+     *
+     * @return Deadline (µs).
+     */
+    public long getDeadline(int i) {
+        return deadlines[i];
+    }
+
+
+    /**
+     * Returns the operation of the given action.
+     *
+     * @param i Action index.
+     *
+     * @return {@link #PRESS}, {@link #RELEASE}, {@link #OCTAVE_UP}, {@link #OCTAVE_DOWN} or {@link #CHORD}.
+     */
+    public int getOp(int i) {
+        return ops[i];
+    }
+
+
+    /**
+     * Returns the keyboard key of the given action.
+     *
+     * @param i Action index.
+     *
+     * @return Keybind (mask of key bar slots for a {@link #CHORD}).
+     */
+    public int getKeybind(int i) {
+        return keybinds[i];
+    }
+
+
+    /**
+     * Returns the timeline event the given action comes from.
+     *
+     * @param i Action index.
+     *
+     * @return Event index.
+     */
+    public int getEvent(int i) {
+        return events[i];
+    }
+
+
+    /**
+     * Returns the key bar that is active right before the given action.
+     *
+     * @param i Action index.
+     *
+     * @return Key bar index.
+     */
+    public int getKeybar(int i) {
+        return keybars[i];
+    }
+
+
+    /**
+     * Returns the first action coming from the given event or a later one.
+     *
+     * @param event Event index.
+     *
+     * @return Action index, the number of actions if there's none.
+     */
+    public int indexOfEvent(int event) {
+
+        int low = 0;
+        int high = events.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (events[mid] < event) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+}
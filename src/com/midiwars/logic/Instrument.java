@@ -1,14 +1,17 @@
 package com.midiwars.logic;
 
 import com.midiwars.logic.midi.MidiTimeline;
-import com.midiwars.logic.midi.NoteEvent;
+import com.midiwars.logic.midi.Timeline;
 
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import static com.midiwars.logic.Player.State.PAUSED;
 import static com.midiwars.logic.Player.State.STOPPED;
 import static com.midiwars.logic.Instrument.Warning.*;
+import static com.midiwars.logic.midi.Timeline.KEYS;
 import static javax.sound.midi.ShortMessage.NOTE_ON;
 
 /**
@@ -40,27 +43,39 @@ public class Instrument {
     /** Default minimum amount of time needed in-between key bar changes (ms). */
     public static final int DEFAULT_KEYBAR_COOLDOWN = 200;
 
+    /** Default horizon of the keybar lookahead (ms). */
+    public static final int DEFAULT_LOOKAHEAD = 2000;
+
     /** Upper limit to a note's duration (ms) - note will be played twice if duration is higher than this value. */
     public static final int NOTE_DURATION_LIMIT = 2250;
 
     /** Upper limit to a pause's duration (ms) - longer pauses are probably due to errors in the midi file. */
     public static final int PAUSE_DURATION_LIMIT = 5000;
 
-    /** Maximum amount of time (ms) Robot.delay() can sleep for. */
-    public static final int ROBOT_MAX_SLEEP = 60000;
-
 
     /* --- ATTRIBUTES --- */
 
     /** Minimum amount of time needed in-between key bar changes (ms). */
     private final int keyboardCooldown;
 
+    /** How far ahead keybar changes are planned while playing, when there's no plan (ms). 0 to only look at the next note. */
+    private final int lookahead;
+
     /** True if the instrument can hold notes (ie note duration matters). */
     private final boolean canHold;
 
+    /** True if the instrument accepts simultaneous keys (ie chords are played at once). */
+    private final boolean canChord;
+
     /** Each line represents a key bar (in-game skill bar - usually an octave) and its slots. */
     private final int[][] keybars;
 
+    /** For each midi key, a mask of the key bars holding it (0 if it can't be played). */
+    private final byte[] keybarMasks;
+
+    /** For each key bar and midi key, the slot of the key in the key bar (-1 if it's not there). */
+    private final byte[][] keySlots;
+
     /** The active key bar before and after the midi timeline is played. */
     private final int idleKeybarIndex;
 
@@ -76,6 +91,12 @@ public class Instrument {
     /** The keyboard key that is currently being held down. */
     private int heldKeybind;
 
+    /** Clock playback waits on. */
+    private final PlaybackClock clock;
+
+    /** Keybars planned by the latest lookahead, reused while playback follows them. */
+    private final KeybarPlanner.Window lookaheadWindow;
+
 
     /* --- METHODS --- */
 
@@ -98,13 +119,45 @@ public class Instrument {
      */
     public Instrument(boolean canHold, int keyboardCooldown) {
 
+        this(canHold, false, keyboardCooldown);
+    }
+
+
+    /**
+     * Creates a new Instrument object.
+     *
+     * @param canHold If the instrument can hold notes.
+     * @param canChord If the instrument accepts simultaneous keys.
+     * @param keyboardCooldown Minimum amount of time needed in-between key bar changes (ms).
+     */
+    public Instrument(boolean canHold, boolean canChord, int keyboardCooldown) {
+
+        this(canHold, canChord, keyboardCooldown, DEFAULT_LOOKAHEAD);
+    }
+
+
+    /**
+     * Creates a new Instrument object.
+     *
+     * @param canHold If the instrument can hold notes.
+     * @param canChord If the instrument accepts simultaneous keys.
+     * @param keyboardCooldown Minimum amount of time needed in-between key bar changes (ms).
+     * @param lookahead How far ahead keybar changes are planned while playing (ms), 0 to only look at the next note.
+     */
+    public Instrument(boolean canHold, boolean canChord, int keyboardCooldown, int lookahead) {
+
         if (keyboardCooldown < 0) keyboardCooldown = DEFAULT_KEYBAR_COOLDOWN;
+        if (lookahead < 0) lookahead = DEFAULT_LOOKAHEAD;
 
         this.keyboardCooldown = keyboardCooldown;
+        this.lookahead = lookahead;
         this.canHold = canHold;
+        this.canChord = canChord;
         robot = null;
         previousKeybarChange = -1;
         heldKeybind = -1;
+        clock = new PlaybackClock();
+        lookaheadWindow = new KeybarPlanner.Window();
         idleKeybarIndex = 1;
         activeKeybarIndex = idleKeybarIndex;
         keybars = new int[][] {
@@ -112,19 +165,30 @@ public class Instrument {
                 {60, 62, 64, 65, 67, 69, 71, 72},
                 {72, 74, 76, 77, 79, 81, 83, 84}
         };
+
+        // compile the key bars into lookup tables
+        keybarMasks = new byte[KEYS];
+        keySlots = new byte[keybars.length][KEYS];
+        for (int i = 0; i < keybars.length; i++) {
+            Arrays.fill(keySlots[i], (byte) -1);
+            for (int j = 0; j < keybars[i].length; j++) {
+                keybarMasks[keybars[i][j]] |= 1 << i;
+                keySlots[i][keybars[i][j]] = (byte) j;
+            }
+        }
     }
 
 
     /**
-     * Calculates the time left to complete delta.
+     * Checks if there's time left before the next event is due.
      *
-     * @param startTime Time countdown started.
-     * @param delta Total amount of time to complete.
+     * @param midiTimeline Midi timeline being played.
+     * @param i Index of the current event.
      *
-     * @return The amount of time left to complete delta.
+     * @return True if the next event isn't due yet, False otherwise (or if there's no next event).
      */
-    private int timeLeft(long startTime, int delta) {
-        return delta - (int) (System.currentTimeMillis() - startTime);
+    private boolean hasTimeLeft(Timeline midiTimeline, int i) {
+        return midiTimeline.has(i+1) && clock.now() < midiTimeline.getTimestampMicros(i+1);
     }
 
 
@@ -137,57 +201,114 @@ public class Instrument {
      *
      * @return -1 If playback finished, next note (index) to play otherwise (ie playback was paused or stopped).
      */
-    public int play(MidiTimeline midiTimeline, int startNote) throws AWTException {
+    public int play(Timeline midiTimeline, int startNote) throws AWTException {
+        return play(midiTimeline, startNote, null, new PausePoint());
+    }
+
+
+    /**
+     * Plays the given midi timeline.
+     *
+     * @param midiTimeline Midi timeline to play.
+     * @param startNote Note (index) to start playback from.
+     * @param plan Keybar each note is played on (see {@link KeybarPlanner}),
+     *             null to decide as playback goes (preferring the active key bar).
+     * @throws AWTException If the platform configuration does not allow low-level input control.
+     *
+     * @return -1 If playback finished, next note (index) to play otherwise (ie playback was paused or stopped).
+     */
+    public int play(Timeline midiTimeline, int startNote, byte[] plan) throws AWTException {
+        return play(midiTimeline, startNote, plan, new PausePoint());
+    }
+
+
+    /**
+     * Plays the given midi timeline.
+     *
+     * @param midiTimeline Midi timeline to play.
+     * @param startNote Note (index) to start playback from.
+     * @param plan Keybar each note is played on (see {@link KeybarPlanner}),
+     *             null to decide as playback goes (preferring the active key bar).
+     * @param pausePoint Where playback was paused, if it was (cleared once playback picks up from it).
+     *                   Set if playback is paused again.
+     * @throws AWTException If the platform configuration does not allow low-level input control.
+     *
+     * @return -1 If playback finished, next note (index) to play otherwise (ie playback was paused or stopped).
+     */
+    public int play(Timeline midiTimeline, int startNote, byte[] plan, PausePoint pausePoint) throws AWTException {
 
         robot = new MyRobot();
         Player player = Player.getInstance();
 
-        ArrayList<NoteEvent> timeline = midiTimeline.getTimeline();
+        // earlier notes won't be needed
+        midiTimeline.setCursor(startNote);
+
+        // planned for another timeline, or another moment in time
+        lookaheadWindow.clear();
+
+        // the key being held down, if any
+        BitSet held = new BitSet();
+
+        if (midiTimeline.has(startNote)) {
+
+            // keys held down when paused need the key bar they were pressed on
+            if (pausePoint.isSet()) {
+                changeKeybars(pausePoint.getKeybar());
+            }
+
+            resumeClock(pausePoint, held, midiTimeline.getTimestampMicros(startNote));
+        }
 
         int i = startNote;
-        for (; i < timeline.size(); i++) {
+        for (; midiTimeline.has(i); i++) {
+
+            midiTimeline.setCursor(i);
 
             // stop / pause playback
-            if (player.getState() == PAUSED || player.getState() == STOPPED) {
+            Player.State state = player.getState();
+            if (state == PAUSED || state == STOPPED) {
 
-                // release key
+                held.clear();
                 if (heldKeybind > -1) {
-                    robot.keyRelease(heldKeybind);
-                    heldKeybind = -1;
+                    held.set(heldKeybind);
                 }
 
-                // return to idle keybar
-                returnToIdleKeybar();
+                halt(state, held, pausePoint);
 
-                if (player.getState() == PAUSED) return i;
-                if (player.getState() == STOPPED) return 0;
+                return (state == PAUSED) ? i : 0;
             }
 
-            // store start time for this event's processing
-            long startTime = System.currentTimeMillis();
+            int key = midiTimeline.getKey(i);
+            int keybarIndex = getKeybarIndex(key);
 
-            NoteEvent noteEvent = timeline.get(i);
-            int keybarIndex = getKeybarIndex(noteEvent.getKey());
+            // follow the plan
+            if (plan != null && midiTimeline.getType(i) == NOTE_ON) {
+                keybarIndex = plan[i];
+            }
+
+            // or plan as far as the lookahead goes
+            else if (lookahead > 0 && keybarIndex >= 0 && midiTimeline.getType(i) == NOTE_ON) {
+                keybarIndex = getLookaheadKeybarIndex(midiTimeline, i);
+            }
 
             // ignore if note can't be played
             if (keybarIndex < 0) {
                 continue;
             }
 
-            // amount to sleep until next noteEvent
-            final int deltaTime;
-            if (i < timeline.size() - 1) {
-                deltaTime = timeline.get(i+1).getTimestamp() - noteEvent.getTimestamp();
-            } else {
-                deltaTime = 0;
+            // sleep until the event is due (woken up early if playback is paused or stopped)
+            if (!clock.await(midiTimeline.getTimestampMicros(i))) {
+                i--;
+                continue;
             }
 
             int keybind;
 
             // case NOTE_ON
-            if (noteEvent.getType() == NOTE_ON) {
+            if (midiTimeline.getType(i) == NOTE_ON) {
 
                 // if there's a key being held down
+                // (streamed playback stays monophonic, even if the instrument can play chords)
                 if (heldKeybind > -1) {
                     robot.keyRelease(heldKeybind);
                 }
@@ -195,48 +316,134 @@ public class Instrument {
                 // change keybars if needed
                 changeKeybars(keybarIndex);
 
-                // note keybind
-                keybind = Keymap.KEYBINDS[getKeyIndex(noteEvent.getKey())];
+                // note keybind (the key bar it's on is active by now)
+                keybind = Keymap.KEYBINDS[getKeySlot(keybarIndex, key)];
 
                 // play note
                 robot.keyPress(keybind);
                 heldKeybind = keybind;
 
                 // if there's time, look into the future and preemptively change key bars if needed
-                if (timeLeft(startTime, deltaTime) > 0 && !canHold) {
-                    preemptivelyChangeKeybars(i, timeline);
+                if (!canHold && hasTimeLeft(midiTimeline, i)) {
+                    preemptivelyChangeKeybars(i, midiTimeline, plan);
                 }
             }
 
             // case NOTE_OFF
             else {
-                keybind = Keymap.KEYBINDS[getKeyIndex(noteEvent.getKey())];
+                keybind = Keymap.KEYBINDS[getKeySlot(keybarIndex, key)];
                 if (keybind == heldKeybind) {
                     robot.keyRelease(keybind);
                     heldKeybind = -1;
 
                     // canHold instruments can only preemptively change key bars if there's no held key atm
                     // (ie if a key was just released)
-                    if (timeLeft(startTime, deltaTime) > 0 && canHold) {
-                        preemptivelyChangeKeybars(i, timeline);
+                    if (canHold && hasTimeLeft(midiTimeline, i)) {
+                        preemptivelyChangeKeybars(i, midiTimeline, plan);
                     }
                 }
             }
+        }
 
-            // sleep until next event
-            int delay;
-            if ((delay = timeLeft(startTime, deltaTime)) > 0) {
+        // return to idle keybar
+        returnToIdleKeybar();
 
-                // robot.delay() doesn't handle higher values
-                // and I don't want to Thread.sleep()
-                if (delay > ROBOT_MAX_SLEEP) {
-                    delay = ROBOT_MAX_SLEEP;
-                }
+        return -1;
+    }
+
+
+    /**
+     * Plays the given schedule, waiting for the deadline of each action and firing it.
+     *
+     * @param schedule Schedule to play.
+     * @param startAction Action (index) to start playback from.
+     * @param pausePoint Where playback was paused, if it was (cleared once playback picks up from it).
+     *                   Set if playback is paused again.
+     * @throws AWTException If the platform configuration does not allow low-level input control.
+     *
+     * @return -1 If playback finished, next action (index) to play otherwise (ie playback was paused or stopped).
+     */
+    public int play(ActionSchedule schedule, int startAction, PausePoint pausePoint) throws AWTException {
+
+        robot = new MyRobot();
+        Player player = Player.getInstance();
+
+        // keys pressed by the schedule and not released yet
+        BitSet pressed = new BitSet();
+
+        if (startAction < schedule.size()) {
+
+            // the schedule expects the key bar it had reached
+            changeKeybars(schedule.getKeybar(startAction));
+
+            resumeClock(pausePoint, pressed, schedule.getDeadline(startAction));
+        }
+
+        for (int i = startAction; i < schedule.size(); i++) {
 
-                robot.delay(delay);
+            // stop / pause playback
+            Player.State state = player.getState();
+            if (state == PAUSED || state == STOPPED) {
+
+                halt(state, pressed, pausePoint);
+
+                return (state == PAUSED) ? i : 0;
+            }
+
+            // sleep until the action is due (woken up early if playback is paused or stopped)
+            if (!clock.await(schedule.getDeadline(i))) {
+                i--;
+                continue;
+            }
+
+            int keybind = schedule.getKeybind(i);
+
+            switch (schedule.getOp(i)) {
+
+                case ActionSchedule.PRESS:
+                    robot.keyPress(keybind);
+                    pressed.set(keybind);
+                    heldKeybind = keybind;
+                    break;
+
+                case ActionSchedule.CHORD:
+                    int[] chord = new int[Integer.bitCount(keybind)];
+                    for (int j = 0, slots = keybind; slots != 0; j++, slots &= slots - 1) {
+                        chord[j] = Keymap.KEYBINDS[Integer.numberOfTrailingZeros(slots)];
+                        pressed.set(chord[j]);
+                    }
+                    robot.keyPressAll(chord);
+                    heldKeybind = chord[chord.length - 1];
+                    break;
+
+                case ActionSchedule.OCTAVE_UP:
+                case ActionSchedule.OCTAVE_DOWN:
+                    // the schedule is sped up along with the song, the cooldown isn't
+                    waitSinceKeybarChange(keyboardCooldown);
+                    robot.keyPress(keybind);
+                    pressed.set(keybind);
+                    previousKeybarChange = System.currentTimeMillis();
+                    activeKeybarIndex += (schedule.getOp(i) == ActionSchedule.OCTAVE_UP) ? 1 : -1;
+                    break;
+
+                default:
+                    // key bar changes need time to take effect, whatever the speed
+                    if (keybind == Keymap.OCTAVEUP_KEYBIND || keybind == Keymap.OCTAVEDOWN_KEYBIND) {
+                        waitSinceKeybarChange(ROBOT_SLEEP);
+                    }
+                    // keys released by a pause aren't released twice
+                    if (pressed.get(keybind)) {
+                        robot.keyRelease(keybind);
+                        pressed.clear(keybind);
+                    }
+                    if (keybind == heldKeybind) {
+                        heldKeybind = -1;
+                    }
             }
         }
 
+        releaseKeys(pressed);
+
         // return to idle keybar
         returnToIdleKeybar();
 
@@ -244,6 +451,79 @@ public class Instrument {
     }
 
 
+    /**
+     * Starts the clock from where playback was paused, pressing the note keys that were held down again
+     * (only if the instrument can hold notes, since pressing them again would play them twice otherwise).
+     * Starts it right away from the given time if playback wasn't paused.
+     *
+     * @param pausePoint Where playback was paused (cleared afterwards).
+     * @param pressed Keys that are being held down (updated).
+     * @param time Time (µs) of the first event or action to play.
+     */
+    private void resumeClock(PausePoint pausePoint, BitSet pressed, long time) {
+
+        if (!pausePoint.isSet()) {
+            clock.start(time);
+            return;
+        }
+
+        if (canHold) {
+            BitSet keys = pausePoint.getKeys();
+            for (int keybind = keys.nextSetBit(0); keybind >= 0; keybind = keys.nextSetBit(keybind + 1)) {
+                robot.keyPress(keybind);
+                pressed.set(keybind);
+                heldKeybind = keybind;
+            }
+        }
+
+        clock.startAt(pausePoint.getPosition());
+        pausePoint.clear();
+    }
+
+
+    /**
+     * Pauses or stops playback, releasing every key and returning to the idle keybar.
+     * When pausing, where playback was paused is saved first.
+     *
+     * @param state State of the player.
+     * @param pressed Keys that are being held down (cleared afterwards).
+     * @param pausePoint Where playback was paused (set if paused).
+     */
+    private void halt(Player.State state, BitSet pressed, PausePoint pausePoint) {
+
+        if (state == PAUSED) {
+
+            // key bar changes are redone when resuming, not pressed again
+            BitSet keys = (BitSet) pressed.clone();
+            keys.clear(Keymap.OCTAVEUP_KEYBIND);
+            keys.clear(Keymap.OCTAVEDOWN_KEYBIND);
+
+            pausePoint.set(clock.position(), activeKeybarIndex, keys);
+        }
+
+        releaseKeys(pressed);
+
+        // return to idle keybar
+        returnToIdleKeybar();
+    }
+
+
+    /**
+     * Releases the given keys.
+     *
+     * @param pressed Keys that are being held down (cleared afterwards).
+     */
+    private void releaseKeys(BitSet pressed) {
+
+        for (int keybind = pressed.nextSetBit(0); keybind >= 0; keybind = pressed.nextSetBit(keybind + 1)) {
+            robot.keyRelease(keybind);
+        }
+
+        pressed.clear();
+        heldKeybind = -1;
+    }
+
+
     /**
      * Returns the instrument to the idle keybar.
      */
@@ -256,19 +536,26 @@ public class Instrument {
      * Looks into the future (starting from given position) to preemptively change keybars if needed.
      *
      * @param i Index of starting position in the timeline.
-     * @param timeline Midi timeline to assess.
+     * @param midiTimeline Midi timeline to assess.
+     * @param plan Keybar each note is played on, null to prefer the active key bar.
      */
-    public void preemptivelyChangeKeybars(int i, ArrayList<NoteEvent> timeline) {
+    public void preemptivelyChangeKeybars(int i, Timeline midiTimeline, byte[] plan) {
 
-        for (int j = i; j < timeline.size() - 1; j++) {
+        // every change needed within the lookahead is accounted for, not only those of the next note
+        if (plan == null && lookahead > 0) {
+            int nextKeybarIndex = getLookaheadKeybarIndex(midiTimeline, i+1);
+            if (nextKeybarIndex >= 0) {
+                changeKeybars(nextKeybarIndex);
+            }
+            return;
+        }
 
-            // get next note event
-            NoteEvent nextNoteEvent = timeline.get(j+1);
+        for (int j = i; midiTimeline.has(j+1); j++) {
 
             // only interested in NOTE_ON events
-            if (nextNoteEvent.getType() == NOTE_ON) {
+            if (midiTimeline.getType(j+1) == NOTE_ON) {
 
-                int nextKeybarIndex = getKeybarIndex(nextNoteEvent.getKey());
+                int nextKeybarIndex = (plan != null) ? plan[j+1] : getKeybarIndex(midiTimeline.getKey(j+1));
 
                 // make sure key to play is within instrument's range
                 if (nextKeybarIndex >= 0) {
@@ -282,6 +569,39 @@ public class Instrument {
     }
 
 
+    /**
+     * Plans the keybar the next note that can be played (starting from given position) is played on,
+     * looking as far ahead as the {@link #lookahead} goes, from the active keybar and right now.
+     * The latest plan is reused until it changes keybars (or runs out of notes),
+     * at which point the change is planned again with its actual timing.
+     *
+     * @param midiTimeline Midi timeline being played.
+     * @param i Index of the event to start looking from.
+     *
+     * @return Key bar index. -1 if there's no note that can be played within the lookahead.
+     */
+    private int getLookaheadKeybarIndex(Timeline midiTimeline, int i) {
+
+        // the plan holds while it stays on the active key bar
+        int keybarIndex = lookaheadWindow.get(i);
+        if (keybarIndex >= 0 && keybarIndex == activeKeybarIndex) {
+            return keybarIndex;
+        }
+
+        long now = clock.now();
+        double speed = clock.getSpeed();
+
+        // the previous key bar change, on the timeline's clock
+        long change = -1;
+        if (previousKeybarChange > -1) {
+            change = Math.max(0, now - (long) (1000 * (System.currentTimeMillis() - previousKeybarChange) * speed));
+        }
+
+        return KeybarPlanner.lookahead(midiTimeline, this, i, 1000L * lookahead, activeKeybarIndex, change, now,
+                speed, lookaheadWindow);
+    }
+
+
     /**
      * Changes the active keybar to the given one.
      *
@@ -295,22 +615,8 @@ public class Instrument {
         int keybind;
         for (int j = 0; j < Math.abs(deltaKeybarIndex); j++) {
 
-            // amount of time needed to wait before changing key bar (ms)
-            int wait = 0;
-
-            // check if it's not the first time
-            if (previousKeybarChange > -1) {
-
-                // how much time passed since the previous key bar change (ms)
-                int deltaKeybarChange = (int) (System.currentTimeMillis() - previousKeybarChange);
-
-                // check if it needs to wait before changing key bar
-                if (deltaKeybarChange < keyboardCooldown) {
-                    wait = keyboardCooldown - deltaKeybarChange;
-                }
-
-                robot.delay(wait);
-            }
+            // wait for the cooldown of the previous change
+            waitSinceKeybarChange(keyboardCooldown);
 
             // decide key bar change direction
             if (deltaKeybarIndex > 0) {
@@ -345,92 +651,81 @@ public class Instrument {
 
 
     /**
-     * Returns the index of the keybar given key (note) belongs to,
-     * taking into account active key bar, in order to avoid
-     * unnecessary keybar (octave) changes.
+     * Waits until the given amount of time has passed since the previous key bar change.
+     * Measured in real time, whatever the playback speed.
      *
-     * @param key Key to assess.
-     *
-     * @return Key bar index. -1 if note can't be played.
+     * @param delay Amount of time (ms).
      */
-    private int getKeybarIndex(int key) {
+    private void waitSinceKeybarChange(int delay) {
 
-        // check active key bar first,
-        // in order to avoid unnecessary changes
-        for (int k : keybars[activeKeybarIndex]) {
-            if (k == key) {
-                return activeKeybarIndex;
-            }
-        }
+        // check if it's not the first time
+        if (previousKeybarChange > -1) {
 
-        // other key bars
-        for (int i = 0; i < keybars.length; i++) {
-            // this was already tested above
-            if (i == activeKeybarIndex) {
-                continue;
-            }
+            // how much time passed since the previous key bar change (ms)
+            int wait = delay - (int) (System.currentTimeMillis() - previousKeybarChange);
 
-            for (int k : keybars[i]) {
-                if (k == key) {
-                    return i;
-                }
+            if (wait > 0) {
+                robot.delay(wait);
             }
         }
-
-        // can't play this note
-        return -1;
     }
 
 
     /**
-     * Returns the index of given key (note) in a keybar.
+     * Returns the index of the keybar given key (note) belongs to,
+     * taking into account active key bar, in order to avoid
+     * unnecessary keybar (octave) changes.
      *
      * @param key Key to assess.
      *
-     * @return Key index. -1 if note can't be played.
+     * @return Key bar index. -1 if note can't be played.
      */
-    private int getKeyIndex(int key) {
+    private int getKeybarIndex(int key) {
 
-        // check active key bar first,
-        // since its the most common occurrence
-        for (int i = 0; i < keybars[activeKeybarIndex].length; i++) {
-            if (key == keybars[activeKeybarIndex][i]) {
-                return i;
-            }
-        }
+        int mask = keybarMasks[key] & 0xff;
 
-        // other key bars
-        for (int i = 0; i < keybars.length; i++) {
-            // this was already tested above
-            if (i == activeKeybarIndex) {
-                continue;
-            }
+        // can't play this note
+        if (mask == 0) {
+            return -1;
+        }
 
-            for (int j = 0; j < keybars[i].length; j++) {
-                if (keybars[i][j] == key) {
-                    return j;
-                }
-            }
+        // check active key bar first,
+        // in order to avoid unnecessary changes
+        if ((mask & (1 << activeKeybarIndex)) != 0) {
+            return activeKeybarIndex;
         }
 
-        // can't play this note
-        return -1;
+        // lowest of the other key bars
+        return Integer.numberOfTrailingZeros(mask);
     }
 
 
     /**
      * Checks if the given midi timeline can be properly played by this instrument
      * (ie no warnings pop up).
+     * Key bar changes are simulated on a copy of the instrument, so that the timeline
+     * can be assessed while this one is playing (e.g. from another thread).
      *
      * @param midiTimeline Timeline to assess.
      *
      * @return List of warnings caused by given timeline.
      */
     public ArrayList<Warning> canPlay(MidiTimeline midiTimeline) {
+        return new Instrument(canHold, canChord, keyboardCooldown, lookahead).assess(midiTimeline);
+    }
 
-        ArrayList<Warning> warnings = new ArrayList<>();
 
-        ArrayList<NoteEvent> timeline = midiTimeline.getTimeline();
+    /**
+     * Checks if the given midi timeline can be properly played by this instrument,
+     * simulating its key bar changes (which changes the state of the instrument).
+     *
+     * @param midiTimeline Timeline to assess.
+     *
+     * @return List of warnings caused by given timeline.
+     */
+    private ArrayList<Warning> assess(MidiTimeline midiTimeline) {
+
+        ArrayList<Warning> warnings = new ArrayList<>();
 
         // control
         boolean isInRange = true;
@@ -442,35 +737,34 @@ public class Instrument {
         previousKeybarChange = -1;
         activeKeybarIndex = idleKeybarIndex;
 
-        NoteEvent previousNoteEvent = null;
-        NoteEvent previousNoteOnEvent = null;
+        // index of the previous NOTE_ON event (-1 if none)
+        int previousNoteOn = -1;
 
-        for (NoteEvent noteEvent: timeline) {
+        for (int i = 0; i < midiTimeline.size(); i++) {
 
-            if (isInRange && !isInRange(noteEvent)) {
+            if (isInRange && !isInRange(midiTimeline.getKey(i))) {
                 warnings.add(NOT_IN_RANGE);
                 isInRange = false;
             }
 
-            if (!isTooFast && isTooFast(previousNoteOnEvent, noteEvent)) {
+            if (!isTooFast && isTooFast(midiTimeline, previousNoteOn, i)) {
                 warnings.add(TEMPO_TOO_FAST);
                 isTooFast = true;
             }
 
-            if (!areNotesTooLong && areNotesTooLong(noteEvent)) {
+            if (!areNotesTooLong && areNotesTooLong(midiTimeline.getDuration(i))) {
                 warnings.add(NOTES_TOO_LONG);
                 areNotesTooLong = true;
             }
 
-            if (!arePausesTooLong && arePausesTooLong(previousNoteEvent, noteEvent)) {
+            if (!arePausesTooLong && i > 0 && arePausesTooLong(midiTimeline.getTimestamp(i - 1), midiTimeline.getTimestamp(i))) {
                 warnings.add(PAUSES_TOO_LONG);
                 arePausesTooLong = true;
             }
 
             // prepare nex ite
-            previousNoteEvent = noteEvent;
-            if (noteEvent.getType() == NOTE_ON) {
-                previousNoteOnEvent = noteEvent;
+            if (midiTimeline.getType(i) == NOTE_ON) {
+                previousNoteOn = i;
             }
 
         }
@@ -487,20 +781,23 @@ public class Instrument {
      * Checks if the given note doesn't require key bar changes that are too fast,
      * thus hindering playback.
      *
-     * @param previousNoteOnEvent Previous NOTE_ON event assessed.
-     * @param noteEvent Current note event being assessed.
+     * @param midiTimeline Timeline being assessed.
+     * @param previousNoteOn Index of the previous NOTE_ON event assessed (-1 if none).
+     * @param i Index of the current note event being assessed.
      *
      * @return True if note will hinder playback, False otherwise.
      */
-    private boolean isTooFast(NoteEvent previousNoteOnEvent, NoteEvent noteEvent) {
+    private boolean isTooFast(MidiTimeline midiTimeline, int previousNoteOn, int i) {
 
-        int keybarIndex = getKeybarIndex(noteEvent.getKey());
+        int keybarIndex = getKeybarIndex(midiTimeline.getKey(i));
 
         // ignore if note can't be played
-        if (keybarIndex < 0 || noteEvent.getType() != NOTE_ON) {
+        if (keybarIndex < 0 || midiTimeline.getType(i) != NOTE_ON) {
             return false;
         }
 
+        int timestamp = midiTimeline.getTimestamp(i);
+
         // how many key bars are necessary to change
         int deltaKeybarIndex = keybarIndex - activeKeybarIndex;
 
@@ -511,7 +808,7 @@ public class Instrument {
             if (previousKeybarChange > -1) {
 
                 // how much time passed since the previous key bar change (ms)
-                int deltaKeybarChange = (int) (noteEvent.getTimestamp() - previousKeybarChange);
+                int deltaKeybarChange = (int) (timestamp - previousKeybarChange);
 
                 // ---------------------------------------------------------------
                 // these IFs could be under a single statement using OR operator,
@@ -526,17 +823,17 @@ public class Instrument {
                 }
 
                 // change is too fast, robot.delay() after octave change will affect note playtime
-                else if (previousNoteOnEvent != null && noteEvent.getTimestamp() != previousNoteOnEvent.getTimestamp()) {
+                else if (previousNoteOn >= 0 && timestamp != midiTimeline.getTimestamp(previousNoteOn)) {
 
                     // instrument can't hold notes
                     if ((!canHold &&
-                            (noteEvent.getTimestamp() < previousNoteOnEvent.getTimestamp() + ROBOT_SLEEP))) {
+                            (timestamp < midiTimeline.getTimestamp(previousNoteOn) + ROBOT_SLEEP))) {
                         exit = true;
                     }
 
                     // instrument can hold notes
                     else if ((canHold &&
-                            (noteEvent.getTimestamp() < previousNoteOnEvent.getTimestamp() + previousNoteOnEvent.getDuration() + ROBOT_SLEEP))) {
+                            (timestamp < midiTimeline.getTimestamp(previousNoteOn) + midiTimeline.getDuration(previousNoteOn) + ROBOT_SLEEP))) {
                         exit = true;
                     }
                 }
@@ -547,11 +844,11 @@ public class Instrument {
                 }
             }
 
-            if (!canHold && previousNoteOnEvent != null) {
-                previousKeybarChange = previousNoteOnEvent.getTimestamp();
+            if (!canHold && previousNoteOn >= 0) {
+                previousKeybarChange = midiTimeline.getTimestamp(previousNoteOn);
             }
-            if (canHold && previousNoteOnEvent != null) {
-                previousKeybarChange = previousNoteOnEvent.getTimestamp() + previousNoteOnEvent.getDuration();
+            if (canHold && previousNoteOn >= 0) {
+                previousKeybarChange = midiTimeline.getTimestamp(previousNoteOn) + midiTimeline.getDuration(previousNoteOn);
             }
 
             activeKeybarIndex = keybarIndex;
@@ -565,47 +862,149 @@ public class Instrument {
     /**
      * Checks if given note can be played by this instrument.
      *
-     * @param noteEvent Note event to assess.
+     * @param key Key of the note event to assess.
      *
      * @return True if note is in range, False otherwise.
      */
-    private boolean isInRange(NoteEvent noteEvent) {
+    public boolean isInRange(int key) {
+        return keybarMasks[key] != 0;
+    }
 
-        for (int[] keybar : keybars) {
-            for (int key : keybar) {
-                if (key == noteEvent.getKey()) {
-                    return true;
-                }
-            }
+
+    /**
+     * Getter.
+     *
+     * @return {@link #keyboardCooldown Keybar cooldown} (ms).
+     */
+    public int getKeyboardCooldown() {
+        return keyboardCooldown;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return {@link #lookahead Lookahead} (ms).
+     */
+    public int getLookahead() {
+        return lookahead;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return True if the instrument {@link #canHold can hold} notes, False otherwise.
+     */
+    public boolean canHold() {
+        return canHold;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return True if the instrument {@link #canChord accepts simultaneous keys}, False otherwise.
+     */
+    public boolean canChord() {
+        return canChord;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return The {@link #clock} playback waits on.
+     */
+    public PlaybackClock getClock() {
+        return clock;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return {@link #idleKeybarIndex Idle keybar index}.
+     */
+    public int getIdleKeybarIndex() {
+        return idleKeybarIndex;
+    }
+
+
+    /**
+     * Returns the key bars holding the given key.
+     *
+     * @param key Key to assess.
+     *
+     * @return Mask of key bars (bit i set if key bar i holds the key), 0 if the key can't be played.
+     */
+    int getKeybarMask(int key) {
+        return keybarMasks[key] & 0xff;
+    }
+
+
+    /**
+     * Returns the slot of the given key in the given key bar.
+     *
+     * @param keybarIndex Key bar index.
+     * @param key Key to assess.
+     *
+     * @return Slot index. -1 if the key isn't in the key bar.
+     */
+    int getKeySlot(int keybarIndex, int key) {
+        return keySlots[keybarIndex][key];
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return A copy of the {@link #keybars}.
+     */
+    public int[][] getKeybars() {
+
+        int[][] copy = new int[keybars.length][];
+        for (int i = 0; i < keybars.length; i++) {
+            copy[i] = keybars[i].clone();
         }
 
-        return false;
+        return copy;
+    }
+
+
+    /**
+     * Returns the number of {@link #keybars}, without copying them.
+     *
+     * @return Number of key bars.
+     */
+    public int getKeybarCount() {
+        return keybars.length;
     }
 
 
     /**
      * Checks if the given note goes over the duration limit.
      *
-     * @param noteEvent Note event to assess.
+     * @param duration Duration of the note event to assess (ms).
      *
      * @return True if note is above the limit, False otherwise.
      */
-    private boolean areNotesTooLong(NoteEvent noteEvent) {
+    private boolean areNotesTooLong(int duration) {
 
-        return (noteEvent.getDuration() > NOTE_DURATION_LIMIT);
+        return (duration > NOTE_DURATION_LIMIT);
     }
 
 
     /**
      * Checks if there are pauses (time between events) that go over the duration limit.
      *
-     * @param previousNoteEvent Previous note event assessed.
-     * @param noteEvent Current note event being assessed.
+     * @param previousTimestamp Timestamp of the previous note event assessed (ms).
+     * @param timestamp Timestamp of the current note event being assessed (ms).
      *
      * @return True if pause is above the limit, False otherwise.
      */
-    private boolean arePausesTooLong(NoteEvent previousNoteEvent, NoteEvent noteEvent) {
+    private boolean arePausesTooLong(int previousTimestamp, int timestamp) {
 
-        return (previousNoteEvent != null && noteEvent.getTimestamp() - previousNoteEvent.getTimestamp() > PAUSE_DURATION_LIMIT);
+        return (timestamp - previousTimestamp > PAUSE_DURATION_LIMIT);
     }
 }
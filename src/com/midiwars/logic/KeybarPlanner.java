@@ -0,0 +1,318 @@
+package com.midiwars.logic;
+
+import com.midiwars.logic.midi.MidiTimeline;
+import com.midiwars.logic.midi.Timeline;
+
+import java.util.Arrays;
+
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Plans which keybar each note of a timeline is played on, looking at the whole timeline at once.
+ * Keys shared by two keybars (e.g. 60 and 72) can be played from either, so the choice is made
+ * by dynamic programming over the notes: for each note and keybar, only the cheapest way to
+ * get there is kept, along with when its latest keybar change happened (needed for the cooldown).
+ * A keybar change starts right after the previous note (or its release, if the instrument can hold notes),
+ * waits for the cooldown of the previous change and blocks the robot for {@link Instrument#ROBOT_SLEEP}.
+ * Each change costs that blocking time, plus however late it makes the note.
+ * When the whole timeline isn't known (e.g. while it's still being read), the same planning
+ * can {@link #lookahead look ahead} as far as a given horizon, from the key bar playback is on.
+ */
+public class KeybarPlanner {
+
+    /* --- DEFINES --- */
+
+    /** Cost of unreachable states. */
+    private static final long UNREACHABLE = Long.MAX_VALUE;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new KeybarPlanner object.
+     */
+    private KeybarPlanner() {
+
+    }
+
+
+    /**
+     * Plans the keybar each note of the given timeline is played on.
+     *
+     * @param midiTimeline Timeline to plan.
+     * @param instrument Instrument the timeline will be played with.
+     *
+     * @return For each event, the keybar its note is played on. -1 for NOTE_OFF events and notes that can't be played.
+     */
+    public static byte[] plan(MidiTimeline midiTimeline, Instrument instrument) {
+
+        byte[] plan = new byte[midiTimeline.size()];
+        Arrays.fill(plan, (byte) -1);
+
+        // notes that can be played
+        int n = 0;
+        int[] notes = new int[midiTimeline.size()];
+        for (int i = 0; i < midiTimeline.size(); i++) {
+            if (midiTimeline.getType(i) == NOTE_ON && instrument.isInRange(midiTimeline.getKey(i))) {
+                notes[n++] = i;
+            }
+        }
+
+        if (n == 0) {
+            return plan;
+        }
+
+        // playback starts on the idle keybar
+        byte[] keybars = solve(midiTimeline, instrument, notes, n, instrument.getIdleKeybarIndex(), -1,
+                midiTimeline.getTimestampMicros(notes[0]), 1);
+
+        for (int k = 0; k < n; k++) {
+            plan[notes[k]] = keybars[k];
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * Decides the keybar the next note of the given timeline is played on,
+     * planning only as far as the given horizon (e.g. when the rest of the timeline isn't known yet).
+     * Every change needed within the horizon is taken into account, so that the note
+     * may be played on a keybar that brings later notes closer.
+     * The keybars of the other notes within the horizon are kept in the given window, to be reused.
+     *
+     * @param midiTimeline Timeline being played.
+     * @param instrument Instrument the timeline is played with.
+     * @param i Index of the event to start looking from.
+     * @param horizon How far to look ahead of the next note (µs). No further than that from event i, if there's no note.
+     * @param keybarIndex The currently active keybar.
+     * @param previousChange Moment in time of the latest keybar change (µs), on the timeline's clock. -1 if none.
+     * @param start Moment in time keybar changes can start (µs), on the timeline's clock.
+     * @param speed Playback speed, since keybar changes take the same (wall-clock) time at any speed.
+     * @param window Where the planned notes are kept.
+     *
+     * @return Keybar the next note that can be played is played on. -1 if there's none within the horizon.
+     */
+    public static int lookahead(Timeline midiTimeline, Instrument instrument, int i, long horizon,
+                                int keybarIndex, long previousChange, long start, double speed, Window window) {
+
+        window.from = i;
+        window.size = 0;
+
+        // notes that can be played, within the horizon
+        int n = 0;
+        int[] notes = window.notes;
+        long end = Long.MAX_VALUE;
+        for (int j = i; midiTimeline.has(j); j++) {
+
+            long time = midiTimeline.getTimestampMicros(j);
+            if (j == i) {
+                end = time + horizon;
+            }
+            if (time > end) {
+                break;
+            }
+
+            if (midiTimeline.getType(j) != NOTE_ON || !instrument.isInRange(midiTimeline.getKey(j))) {
+                continue;
+            }
+
+            // the horizon starts at the first note
+            if (n == 0) {
+                end = time + horizon;
+            }
+
+            if (n == notes.length) {
+                notes = Arrays.copyOf(notes, 2 * n);
+            }
+            notes[n++] = j;
+        }
+
+        window.notes = notes;
+
+        if (n == 0) {
+            return -1;
+        }
+
+        window.keybars = solve(midiTimeline, instrument, notes, n, keybarIndex, previousChange, start, speed);
+        window.size = n;
+
+        return window.keybars[0];
+    }
+
+
+    /**
+     * Plans the keybar each of the given notes is played on.
+     *
+     * @param midiTimeline Timeline the notes belong to.
+     * @param instrument Instrument the timeline is played with.
+     * @param notes Indexes of the notes, all of which can be played.
+     * @param n Number of notes.
+     * @param keybarIndex The active keybar before the first note.
+     * @param previousChange Moment in time of the latest keybar change (µs). -1 if none.
+     * @param available Moment in time keybar changes can start, before the first note (µs).
+     * @param speed Playback speed the timeline's clock runs at.
+     *
+     * @return For each note, the keybar it's played on.
+     */
+    private static byte[] solve(Timeline midiTimeline, Instrument instrument, int[] notes, int n,
+                                int keybarIndex, long previousChange, long available, double speed) {
+
+        // changes take wall-clock time, which goes by faster on the timeline's clock as the speed goes up
+        int keybarCount = instrument.getKeybarCount();
+        long cooldown = (long) (1000 * instrument.getKeyboardCooldown() * speed);
+        long changeTime = (long) (1000 * Instrument.ROBOT_SLEEP * speed);
+        long step = Math.max(cooldown, changeTime);
+
+        // cheapest way to reach each keybar, and when its latest change happened (-1 if none)
+        long[] costs = new long[keybarCount];
+        long[] changes = new long[keybarCount];
+        long[] nextCosts = new long[keybarCount];
+        long[] nextChanges = new long[keybarCount];
+
+        // keybar of the previous note, for each keybar of each note (k * keybarCount + keybar)
+        byte[] previous = new byte[n * keybarCount];
+
+        Arrays.fill(costs, UNREACHABLE);
+        costs[keybarIndex] = 0;
+        Arrays.fill(changes, -1);
+        changes[keybarIndex] = previousChange;
+
+        long previousTime = available;
+        long previousEnd = available;
+
+        for (int k = 0; k < n; k++) {
+
+            int i = notes[k];
+            long time = midiTimeline.getTimestampMicros(i);
+            int mask = instrument.getKeybarMask(midiTimeline.getKey(i));
+
+            // changes start once the previous note is played (or released)
+            long start = instrument.canHold() ? Math.min(time, previousEnd) : previousTime;
+
+            Arrays.fill(nextCosts, UNREACHABLE);
+
+            for (int to = 0; to < keybarCount; to++) {
+
+                if ((mask & (1 << to)) == 0) {
+                    continue;
+                }
+
+                for (int from = 0; from < keybarCount; from++) {
+
+                    if (costs[from] == UNREACHABLE) {
+                        continue;
+                    }
+
+                    int distance = Math.abs(to - from);
+                    long cost = costs[from];
+                    long change = changes[from];
+
+                    if (distance > 0) {
+
+                        // first change waits for the cooldown of the previous one, the others for each other
+                        long first = (change < 0) ? start : Math.max(start, change + cooldown);
+                        change = first + (distance - 1) * step;
+
+                        long lateness = Math.max(0, change + changeTime - time);
+                        cost += distance * changeTime + lateness;
+                    }
+
+                    // cheaper, or as cheap but with more time since the latest change
+                    if (cost < nextCosts[to] || (cost == nextCosts[to] && change < nextChanges[to])) {
+                        nextCosts[to] = cost;
+                        nextChanges[to] = change;
+                        previous[k * keybarCount + to] = (byte) from;
+                    }
+                }
+            }
+
+            long[] swap = costs;
+            costs = nextCosts;
+            nextCosts = swap;
+            swap = changes;
+            changes = nextChanges;
+            nextChanges = swap;
+
+            previousTime = time;
+            previousEnd = time + Math.max(0, midiTimeline.getDurationMicros(i));
+        }
+
+        // cheapest keybar to end on
+        int keybar = -1;
+        for (int to = 0; to < keybarCount; to++) {
+            if (costs[to] != UNREACHABLE && (keybar < 0 || costs[to] < costs[keybar])) {
+                keybar = to;
+            }
+        }
+
+        // walk the plan back
+        byte[] keybars = new byte[n];
+        for (int k = n - 1; k >= 0; k--) {
+            keybars[k] = (byte) keybar;
+            keybar = previous[k * keybarCount + keybar];
+        }
+
+        return keybars;
+    }
+
+
+    /**
+     * Keybars planned for the notes within a {@link #lookahead}'s horizon,
+     * so that the plan can be reused for the following notes instead of planning again.
+     */
+    public static class Window {
+
+        /* --- ATTRIBUTES --- */
+
+        /** Index of the event the plan started looking from. */
+        private int from;
+
+        /** Indexes of the planned notes, in order. */
+        private int[] notes;
+
+        /** Keybar each planned note is played on. */
+        private byte[] keybars;
+
+        /** Number of planned notes (0 if there's no plan). */
+        private int size;
+
+
+        /* --- METHODS --- */
+
+        /**
+         * Creates a new Window object, with no plan.
+         */
+        public Window() {
+            notes = new int[16];
+            keybars = new byte[0];
+            size = 0;
+        }
+
+
+        /**
+         * Drops the plan (e.g. when another timeline is played).
+         */
+        public void clear() {
+            size = 0;
+        }
+
+
+        /**
+         * Returns the planned keybar of the next note that can be played, starting from the given event.
+         *
+         * @param i Index of the event to start looking from.
+         *
+         * @return Keybar index. -1 if the event isn't within the plan.
+         */
+        public int get(int i) {
+
+            if (size == 0 || i < from || i > notes[size - 1]) {
+                return -1;
+            }
+
+            int k = Arrays.binarySearch(notes, 0, size, i);
+            return keybars[(k >= 0) ? k : -k - 1];
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package com.midiwars.logic;
 
 import com.midiwars.logic.Instrument.*;
+import com.midiwars.util.MyExceptions.InvalidOptionException;
 import com.midiwars.util.MyExceptions.MidiPathNotFoundException;
 import com.midiwars.util.MyExceptions.MidifilesNotFoundException;
 import com.midiwars.logic.midi.MidiTimeline;
+import com.midiwars.logic.midi.TimelineCache;
+import com.midiwars.logic.midi.TimelineStore;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -28,6 +32,9 @@ public class MidiWars {
     /** Path to configurations file. */
     public static final String CONFIGPATH = "config.xml";
 
+    /** Default path to where compiled timelines are stored. */
+    public static final String DEFAULT_CACHEPATH = "cache";
+
 
     /* --- ATTRIBUTES --- */
 
@@ -64,18 +71,22 @@ public class MidiWars {
 
     /**
      * Plays the given midi file or playlist.
+     * Playlists may declare a chain of stages in a transform element (e.g. {@code <transform><transpose>-12</transpose></transform>}),
+     * which run before the ones given along with the command.
      *
      * @param filename Name of midi file / playlist to play.
+     * @param options Options to play with.
      *
      * @throws AWTException If the platform configuration does not allow low-level input control.
      * @throws InterruptedException If a thread was interrupted.
      * @throws InvalidMidiDataException If midi file is invalid.
+     * @throws InvalidOptionException If the playlist declares an invalid stage.
      * @throws IOException If can't open file.
      * @throws MidifilesNotFoundException If couldn't find the midi files listed in the playlist.
      * @throws ParserConfigurationException If there was a configuration error within the parser.
      * @throws SAXException If couldn't parse playlist file.
      */
-    public void play(String filename) throws AWTException, InterruptedException, InvalidMidiDataException, IOException, MidifilesNotFoundException, ParserConfigurationException, SAXException {
+    public void play(String filename, PlaybackOptions options) throws AWTException, InterruptedException, InvalidMidiDataException, InvalidOptionException, IOException, MidifilesNotFoundException, ParserConfigurationException, SAXException {
 
         if (filename.endsWith(".xml")) {
 
@@ -96,6 +107,18 @@ public class MidiWars {
             boolean shuffle = doc.getDocumentElement().getElementsByTagName("shuffle").getLength() > 0;
             boolean repeat = doc.getDocumentElement().getElementsByTagName("repeat").getLength() > 0;
 
+            // get stages (first occurrence only), each child being an option
+            NodeList transform = doc.getDocumentElement().getElementsByTagName("transform");
+            if (transform.getLength() > 0) {
+                ArrayList<String> stages = new ArrayList<>();
+                for (Node node = transform.item(0).getFirstChild(); node != null; node = node.getNextSibling()) {
+                    if (node.getNodeType() == Node.ELEMENT_NODE) {
+                        stages.add(node.getNodeName() + "=" + node.getTextContent().trim());
+                    }
+                }
+                options = PlaybackOptions.parse(stages.toArray(new String[0])).then(options.getOptions());
+            }
+
             // check if midifiles are valid
             for (String midifile : midifiles) {
                 File file = new File(midifile);
@@ -105,11 +128,11 @@ public class MidiWars {
             }
 
             // play list
-            player.play(midifiles, shuffle, repeat, defaultInstrument);
+            player.play(midifiles, shuffle, repeat, defaultInstrument, options);
         }
         else {
             // play
-            player.play(new String[] {midiPath + filename}, false, false, defaultInstrument);
+            player.play(new String[] {midiPath + filename}, false, false, defaultInstrument, options);
         }
     }
 
@@ -173,10 +196,43 @@ public class MidiWars {
     }
 
 
+    /**
+     * Moves playback of the current song to the given moment in time.
+     *
+     * @param seconds Moment in time to move to (s).
+     *
+     * @throws AWTException If the platform configuration does not allow low-level input control.
+     * @throws InterruptedException If a thread was interrupted.
+     * @throws InvalidMidiDataException If midi file is invalid.
+     * @throws IOException If can't open file.
+     */
+    public void seek(int seconds) throws AWTException, InterruptedException, InvalidMidiDataException, IOException {
+        player.seek(1000000L * seconds);
+    }
+
+
+    /**
+     * Changes the playback speed, taking effect right away (even mid-song).
+     *
+     * @param speed Playback speed (e.g. 0.85 plays a bit slower).
+     *
+     * @throws InvalidOptionException If the speed is out of bounds.
+     */
+    public void setSpeed(double speed) throws InvalidOptionException {
+
+        try {
+            defaultInstrument.getClock().setSpeed(speed);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOptionException();
+        }
+    }
+
+
     /**
      * Checks if the given midi file can be played by the given instrument.
      *
      * @param filepath Path of midi file to play.
+     * @param options Options the file would be played with.
      *
      * @return List of warnings.
      *
@@ -185,12 +241,12 @@ public class MidiWars {
      *
      * @see Instrument.Warning
      */
-    public ArrayList<Warning> canPlay(String filepath) throws InvalidMidiDataException, IOException {
+    public ArrayList<Warning> canPlay(String filepath, PlaybackOptions options) throws InvalidMidiDataException, IOException {
 
-        // construct timeline from midi file
-        MidiTimeline midiTimeline = new MidiTimeline(midiPath + filepath);
+        // construct timeline from the selected parts of the midi file
+        MidiTimeline midiTimeline = TimelineCache.getInstance().get(midiPath + filepath, options.getParts());
 
-        return defaultInstrument.canPlay(midiTimeline);
+        return defaultInstrument.canPlay(options.apply(midiTimeline, defaultInstrument));
     }
 
 
@@ -239,15 +295,37 @@ public class MidiWars {
             throw new MidiPathNotFoundException();
         }
 
+        boolean chords;
+
+        try {
+
+            // get first occurrence only
+            chords = Boolean.parseBoolean(doc.getDocumentElement().getElementsByTagName("chords").item(0).getTextContent().trim());
+
+        } catch (NullPointerException e) {
+            chords = false;
+        }
+
+        int lookahead;
+
+        try {
+
+            // get first occurrence only
+            lookahead = Integer.parseInt(doc.getDocumentElement().getElementsByTagName("lookahead").item(0).getTextContent().trim());
+
+        } catch (NullPointerException | NumberFormatException e) {
+            lookahead = Instrument.DEFAULT_LOOKAHEAD;
+        }
+
         try {
 
             // get first occurrence only
             int cd = Integer.parseInt(doc.getDocumentElement().getElementsByTagName("octavecd").item(0).getTextContent());
 
-            defaultInstrument = new Instrument(false, cd);
+            defaultInstrument = new Instrument(false, chords, cd, lookahead);
 
         } catch (NullPointerException | NumberFormatException e) {
-            defaultInstrument = new Instrument(false);
+            defaultInstrument = new Instrument(false, chords, Instrument.DEFAULT_KEYBAR_COOLDOWN, lookahead);
         }
 
         try {
@@ -258,6 +336,29 @@ public class MidiWars {
         } catch (NullPointerException e) {
             windowTitle = "TITLE OF TARGET WINDOW HERE";
         }
+
+        try {
+
+            // get first occurrence only
+            String cachePath = doc.getDocumentElement().getElementsByTagName("cachepath").item(0).getTextContent();
+
+            // an empty path disables the cache
+            TimelineStore.getInstance().setCachePath(cachePath.trim().isEmpty() ? null : cachePath);
+
+        } catch (NullPointerException e) {
+            TimelineStore.getInstance().setCachePath(DEFAULT_CACHEPATH);
+        }
+
+        try {
+
+            // get first occurrence only
+            long cacheSize = Long.parseLong(doc.getDocumentElement().getElementsByTagName("cachesize").item(0).getTextContent().trim());
+
+            TimelineCache.getInstance().setCapacity(cacheSize);
+
+        } catch (NullPointerException | NumberFormatException e) {
+            TimelineCache.getInstance().setCapacity(TimelineCache.DEFAULT_CAPACITY);
+        }
     }
 
 
@@ -271,6 +372,26 @@ public class MidiWars {
     }
 
 
+    /**
+     * Getter.
+     *
+     * @return Clock playback waits on, which keeps track of how late notes were played.
+     */
+    public PlaybackClock getClock() {
+        return defaultInstrument.getClock();
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return Cache of recently played timelines, which keeps track of its hits, misses and evictions.
+     */
+    public TimelineCache getCache() {
+        return TimelineCache.getInstance();
+    }
+
+
     /**
      * Getter.
      *
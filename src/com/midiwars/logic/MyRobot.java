@@ -49,12 +49,26 @@ public class MyRobot extends Robot {
      */
     @Override
     public synchronized void keyPress(int keycode) {
+        keyPressAll(new int[] {keycode});
+    }
+
+
+    /**
+     * Presses the given keys together (e.g. a chord).
+     * If the in-game chat is currently open, it is closed
+     * and re-opened only once for all of them.
+     *
+     * @param keycodes Keys to press.
+     */
+    public synchronized void keyPressAll(int[] keycodes) {
         if (!UserInterface.getInstance().isActive()) {
             return;
         }
 
         if (!chat.isOpen()) {
-            super.keyPress(keycode);
+            for (int keycode : keycodes) {
+                super.keyPress(keycode);
+            }
             return;
         }
 
@@ -71,8 +85,10 @@ public class MyRobot extends Robot {
         super.keyPress(VK_ESCAPE);
         super.keyRelease(VK_ESCAPE);
 
-        // press key
-        super.keyPress(keycode);
+        // press keys
+        for (int keycode : keycodes) {
+            super.keyPress(keycode);
+        }
 
         // re-open chat
         super.keyPress(VK_ENTER);
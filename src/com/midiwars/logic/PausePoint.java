@@ -0,0 +1,107 @@
+package com.midiwars.logic;
+
+import java.util.BitSet;
+
+/**
+ * Where playback was paused, precisely enough to pick up as if it had never stopped:
+ * the position of the playback clock, the active key bar and the note keys that were being held down.
+ */
+public class PausePoint {
+
+    /* --- DEFINES --- */
+
+    /** Position of a pause point that isn't set. */
+    public static final long NONE = Long.MIN_VALUE;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Position of the playback clock (ns), on the timeline's clock. {@link #NONE} if not set. */
+    private long position;
+
+    /** Key bar that was active. */
+    private int keybar;
+
+    /** Note keys that were being held down. */
+    private final BitSet keys;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new PausePoint object, not set.
+     */
+    public PausePoint() {
+
+        position = NONE;
+        keybar = -1;
+        keys = new BitSet();
+    }
+
+
+    /**
+     * Sets the pause point.
+     *
+     * @param position Position of the playback clock (ns).
+     * @param keybar Key bar that was active.
+     * @param keys Note keys that were being held down.
+     */
+    public void set(long position, int keybar, BitSet keys) {
+
+        this.position = position;
+        this.keybar = keybar;
+        this.keys.clear();
+        this.keys.or(keys);
+    }
+
+
+    /**
+     * Forgets the pause point, so that playback picks up from the next event itself.
+     */
+    public void clear() {
+
+        position = NONE;
+        keybar = -1;
+        keys.clear();
+    }
+
+
+    /**
+     * Checks if the pause point is set.
+     *
+     * @return True if set, False otherwise.
+     */
+    public boolean isSet() {
+        return position != NONE;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return {@link #position Position} (ns).
+     */
+    public long getPosition() {
+        return position;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return {@link #keybar Key bar} that was active.
+     */
+    public int getKeybar() {
+        return keybar;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return Note {@link #keys} that were being held down.
+     */
+    public BitSet getKeys() {
+        return keys;
+    }
+}
@@ -0,0 +1,309 @@
+package com.midiwars.logic;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock that playback waits on.
+ * Every deadline is measured from a single origin, so the time spent firing actions
+ * never adds up over a song. Waiting parks the thread until shortly before the deadline
+ * and spins for the rest, since parking alone often wakes up a few milliseconds late.
+ * How long to spin for is calibrated as playback goes, from how late parking actually wakes up.
+ * Deadlines are on the timeline's clock, which runs at the playback {@link #setSpeed speed};
+ * the speed can be changed at any time, even while waiting, without the position jumping.
+ * Waiting can be {@link #interrupt interrupted}, e.g. when playback is paused,
+ * and the exact position of the clock taken, so that playback can later pick up from that very instant.
+ * The clock also keeps track of how late each deadline was met.
+ */
+public class PlaybackClock {
+
+    /* --- DEFINES --- */
+
+    /** Shortest amount of time to spin for (ns). */
+    public static final long MIN_SPIN = 100000;
+
+    /** Longest amount of time to spin for (ns), enough to cover coarse system timers. */
+    public static final long MAX_SPIN = 16000000;
+
+    /** Amount of time to spin for before any calibration (ns). */
+    public static final long INITIAL_SPIN = 1000000;
+
+    /** Slowest playback speed. */
+    public static final double MIN_SPEED = 0.25;
+
+    /** Fastest playback speed. */
+    public static final double MAX_SPEED = 4;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** System time (ns) at which the timeline was at {@link #anchorPosition}. */
+    private long anchorNanos;
+
+    /** Position (ns), on the timeline's clock, deadlines are measured from. */
+    private long anchorPosition;
+
+    /** Playback speed since the anchor. */
+    private double speed;
+
+    /** Playback speed to switch to, applied by the playing thread. */
+    private volatile double requestedSpeed;
+
+    /** Thread currently waiting on the clock, if any. */
+    private volatile Thread waiter;
+
+    /** True if waiting should stop right away. */
+    private volatile boolean interrupted;
+
+    /** Average amount of time (ns) parking wakes up late. */
+    private long oversleep;
+
+    /** Amount of time to spin for (ns). */
+    private long spin;
+
+    /** Number of deadlines met since the last reset. */
+    private long count;
+
+    /** Total lateness (ns) since the last reset. */
+    private long totalLateness;
+
+    /** Highest lateness (ns) since the last reset. */
+    private long maxLateness;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new PlaybackClock object.
+     */
+    public PlaybackClock() {
+
+        anchorNanos = System.nanoTime();
+        anchorPosition = 0;
+        speed = 1;
+        requestedSpeed = 1;
+        waiter = null;
+        interrupted = false;
+        oversleep = INITIAL_SPIN / 2;
+        spin = INITIAL_SPIN;
+        reset();
+    }
+
+
+    /**
+     * Forgets the lateness of the deadlines met so far.
+     */
+    public void reset() {
+
+        count = 0;
+        totalLateness = 0;
+        maxLateness = 0;
+    }
+
+
+    /**
+     * Moves the origin so that the given deadline is due right now.
+     *
+     * @param deadline Deadline (µs).
+     */
+    public void start(long deadline) {
+        startAt(1000 * deadline);
+    }
+
+
+    /**
+     * Moves the origin so that the clock is at the given position right now.
+     *
+     * @param position Position (ns), on the timeline's clock.
+     */
+    public void startAt(long position) {
+
+        anchorNanos = System.nanoTime();
+        anchorPosition = position;
+        speed = requestedSpeed;
+        interrupted = false;
+    }
+
+
+    /**
+     * Makes the thread waiting on the clock (or the next one to) stop waiting right away.
+     * Can be called from any thread.
+     */
+    public void interrupt() {
+
+        interrupted = true;
+
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Changes the playback speed, from now on.
+     * Can be called from any thread; a thread waiting on the clock is woken up to take it into account.
+     *
+     * @param speed Playback speed (e.g. 0.5 plays twice as slow).
+     *
+     * @throws IllegalArgumentException If the speed is out of bounds.
+     */
+    public void setSpeed(double speed) {
+
+        if (!(speed >= MIN_SPEED && speed <= MAX_SPEED)) {
+            throw new IllegalArgumentException("speed out of bounds: " + speed);
+        }
+
+        requestedSpeed = speed;
+
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return Playback speed.
+     */
+    public double getSpeed() {
+        return requestedSpeed;
+    }
+
+
+    /**
+     * Switches to the requested speed, if it changed,
+     * moving the anchor to the current position so that it doesn't jump.
+     */
+    private void applySpeed() {
+
+        double requested = requestedSpeed;
+        if (requested != speed) {
+            long nanos = System.nanoTime();
+            anchorPosition += (long) ((nanos - anchorNanos) * speed);
+            anchorNanos = nanos;
+            speed = requested;
+        }
+    }
+
+
+    /**
+     * Converts a deadline to system time.
+     *
+     * @param deadline Deadline (µs), on the timeline's clock.
+     *
+     * @return System time (ns).
+     */
+    private long toNanos(long deadline) {
+        return anchorNanos + (long) ((1000 * deadline - anchorPosition) / speed);
+    }
+
+
+    /**
+     * Waits for the given deadline.
+     *
+     * @param deadline Deadline (µs), on the timeline's clock.
+     *
+     * @return True if the deadline was met, False if waiting was {@link #interrupt interrupted}.
+     */
+    public boolean await(long deadline) {
+
+        waiter = Thread.currentThread();
+
+        // park until shortly before the deadline (which moves if the speed changes)
+        long target;
+        long remaining;
+        while (true) {
+
+            if (interrupted) {
+                interrupted = false;
+                waiter = null;
+                return false;
+            }
+
+            applySpeed();
+            target = toNanos(deadline);
+            if ((remaining = target - System.nanoTime()) <= spin) {
+                break;
+            }
+
+            long before = System.nanoTime();
+            LockSupport.parkNanos(remaining - spin);
+
+            // calibrate the spin from how late parking woke up (unless woken up on purpose)
+            long late = System.nanoTime() - before - (remaining - spin);
+            if (late > 0 && requestedSpeed == speed) {
+                oversleep += (late - oversleep) / 8;
+                spin = Math.max(MIN_SPIN, Math.min(MAX_SPIN, 2 * oversleep));
+            }
+        }
+
+        // spin for the rest
+        while (target - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+
+        waiter = null;
+
+        long lateness = System.nanoTime() - target;
+
+        count++;
+        totalLateness += lateness;
+        maxLateness = Math.max(maxLateness, lateness);
+
+        return true;
+    }
+
+
+    /**
+     * Returns the current position, on the timeline's clock.
+     *
+     * @return Current position (ns).
+     */
+    public long position() {
+
+        applySpeed();
+        return anchorPosition + (long) ((System.nanoTime() - anchorNanos) * speed);
+    }
+
+
+    /**
+     * Returns the current time, on the timeline's clock.
+     *
+     * @return Current time (µs).
+     */
+    public long now() {
+        return position() / 1000;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return Number of deadlines met since the last reset.
+     */
+    public long getCount() {
+        return count;
+    }
+
+
+    /**
+     * Returns the average lateness of the deadlines met since the last reset.
+     *
+     * @return Average lateness (µs), 0 if none.
+     */
+    public long getAverageLateness() {
+        return (count == 0) ? 0 : totalLateness / count / 1000;
+    }
+
+
+    /**
+     * Returns the highest lateness of the deadlines met since the last reset.
+     *
+     * @return Highest lateness (µs).
+     */
+    public long getMaxLateness() {
+        return maxLateness / 1000;
+    }
+}
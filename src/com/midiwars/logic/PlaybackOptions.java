@@ -0,0 +1,297 @@
+package com.midiwars.logic;
+
+import com.midiwars.logic.midi.AutoTranspose;
+import com.midiwars.logic.midi.CooldownWarp;
+import com.midiwars.logic.midi.MidiTimeline;
+import com.midiwars.logic.midi.PartSelector;
+import com.midiwars.logic.midi.Quantizer;
+import com.midiwars.logic.midi.Skyline;
+import com.midiwars.logic.midi.TimelineTransform;
+import com.midiwars.logic.midi.TimelineTransforms;
+import com.midiwars.util.MyExceptions.InvalidOptionException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiFunction;
+
+/**
+ * Options given along with a play or canplay command, written as key=value pairs after the filename.
+ * e.g. "track=2 channel=1-9,11-16" plays the second track, leaving the drums out.
+ * Options that reshape the timeline (e.g. "transpose=-12 melody=highest") are chained,
+ * in the order they're given, into a single {@link TimelineTransform pipeline}.
+ * The only exception is quantize, which always comes first: its grid follows the tempo map
+ * of the midi file, which no longer matches the timestamps once other stages move them (e.g. timescale).
+ */
+public class PlaybackOptions {
+
+    /* --- DEFINES --- */
+
+    /** Option selecting which tracks are played. */
+    public static final String OPT_TRACK = "track";
+
+    /** Option selecting which channels are played. */
+    public static final String OPT_CHANNEL = "channel";
+
+    /** Option reducing the midi file to a single melodic line. */
+    public static final String OPT_MELODY = "melody";
+
+    /** Option shifting every note by some semitones. */
+    public static final String OPT_TRANSPOSE = "transpose";
+
+    /** Value of {@link #OPT_TRANSPOSE} shifting the notes by whichever amount best fits the instrument. */
+    public static final String TRANSPOSE_AUTO = "auto";
+
+    /** Option snapping notes to a rhythmic grid. */
+    public static final String OPT_QUANTIZE = "quantize";
+
+    /** Option stretching the midi file in time. */
+    public static final String OPT_TIMESCALE = "timescale";
+
+    /** Option keeping only a range of keys. */
+    public static final String OPT_KEYS = "keys";
+
+    /** Option deciding what to do with NOTE_OFF events. */
+    public static final String OPT_NOTEOFF = "noteoff";
+
+    /** Value of {@link #OPT_NOTEOFF} holding each note until the next one is pressed. */
+    public static final String NOTEOFF_DROP = "drop";
+
+    /** Value of {@link #OPT_NOTEOFF} releasing each note when it ends (default). */
+    public static final String NOTEOFF_KEEP = "keep";
+
+    /** Option deciding what to do when keybar changes come faster than the instrument allows. */
+    public static final String OPT_COOLDOWN = "cooldown";
+
+    /** Value of {@link #OPT_COOLDOWN} slowing down only the sections that are too fast, catching up in the rests. */
+    public static final String COOLDOWN_WARP = "warp";
+
+    /** Value of {@link #OPT_COOLDOWN} waiting for the cooldown during playback (default). */
+    public static final String COOLDOWN_WAIT = "wait";
+
+    /** Plays the whole midi file. */
+    public static final PlaybackOptions DEFAULT = new PlaybackOptions(new String[0], PartSelector.ALL, new ArrayList<>());
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** The options, as they were given. */
+    private final String[] options;
+
+    /** Parts (tracks and channels) of the midi file to play. */
+    private final PartSelector parts;
+
+    /** Stages the timeline goes through, in order, given the timeline and the instrument it will be played with. */
+    private final ArrayList<BiFunction<MidiTimeline, Instrument, TimelineTransform>> stages;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new PlaybackOptions object.
+     *
+     * @param options The options, as they were given.
+     * @param parts Parts of the midi file to play.
+     * @param stages Stages the timeline goes through, in order.
+     */
+    private PlaybackOptions(String[] options, PartSelector parts, ArrayList<BiFunction<MidiTimeline, Instrument, TimelineTransform>> stages) {
+        this.options = options;
+        this.parts = parts;
+        this.stages = stages;
+    }
+
+
+    /**
+     * Parses the given options.
+     * Later track, channel and quantize options override earlier ones, while other stages are chained in order
+     * (after quantize, if any).
+     *
+     * @param options List of key=value pairs.
+     *
+     * @return The options.
+     *
+     * @throws InvalidOptionException If an option is unknown or has an invalid value.
+     */
+    public static PlaybackOptions parse(String[] options) throws InvalidOptionException {
+
+        String tracks = null;
+        String channels = null;
+        BiFunction<MidiTimeline, Instrument, TimelineTransform> quantize = null;
+        ArrayList<BiFunction<MidiTimeline, Instrument, TimelineTransform>> stages = new ArrayList<>();
+
+        for (String option : options) {
+
+            String[] pair = option.split("=", 2);
+            if (pair.length != 2) {
+                throw new InvalidOptionException();
+            }
+
+            String value = pair[1].trim();
+
+            try {
+
+                switch (pair[0].trim().toLowerCase()) {
+
+                    case OPT_TRACK: {
+                        tracks = value;
+                        break;
+                    }
+
+                    case OPT_CHANNEL: {
+                        channels = value;
+                        break;
+                    }
+
+                    case OPT_MELODY: {
+                        Skyline.Strategy strategy = Skyline.Strategy.valueOf(value.toUpperCase());
+                        stages.add((midiTimeline, instrument) -> new Skyline(strategy, instrument::isInRange));
+                        break;
+                    }
+
+                    case OPT_TRANSPOSE: {
+                        if (value.equalsIgnoreCase(TRANSPOSE_AUTO)) {
+                            stages.add((midiTimeline, instrument) -> new AutoTranspose(instrument::getKeybarMask));
+                        } else {
+                            TimelineTransform stage = TimelineTransforms.transpose(Integer.parseInt(value));
+                            stages.add((midiTimeline, instrument) -> stage);
+                        }
+                        break;
+                    }
+
+                    case OPT_QUANTIZE: {
+                        int division = Integer.parseInt(value);
+                        if (division <= 0) {
+                            throw new InvalidOptionException();
+                        }
+                        quantize = (midiTimeline, instrument) -> new Quantizer(midiTimeline, division);
+                        break;
+                    }
+
+                    case OPT_TIMESCALE: {
+                        TimelineTransform stage = TimelineTransforms.timeScale(Double.parseDouble(value));
+                        stages.add((midiTimeline, instrument) -> stage);
+                        break;
+                    }
+
+                    case OPT_KEYS: {
+                        String[] range = value.split("-", 2);
+                        if (range.length != 2) {
+                            throw new InvalidOptionException();
+                        }
+                        TimelineTransform stage = TimelineTransforms.keyRange(Integer.parseInt(range[0].trim()), Integer.parseInt(range[1].trim()));
+                        stages.add((midiTimeline, instrument) -> stage);
+                        break;
+                    }
+
+                    case OPT_NOTEOFF: {
+                        if (value.equalsIgnoreCase(NOTEOFF_DROP)) {
+                            stages.add((midiTimeline, instrument) -> TimelineTransforms.dropNoteOffs());
+                        } else if (!value.equalsIgnoreCase(NOTEOFF_KEEP)) {
+                            throw new InvalidOptionException();
+                        }
+                        break;
+                    }
+
+                    case OPT_COOLDOWN: {
+                        if (value.equalsIgnoreCase(COOLDOWN_WARP)) {
+                            // keybar changes are predicted from the same plan playback follows
+                            stages.add((midiTimeline, instrument) -> new CooldownWarp(midiTimeline,
+                                    timeline -> KeybarPlanner.plan(timeline, instrument), instrument.getIdleKeybarIndex(),
+                                    instrument.getKeyboardCooldown(), Instrument.ROBOT_SLEEP, instrument.canHold()));
+                        } else if (!value.equalsIgnoreCase(COOLDOWN_WAIT)) {
+                            throw new InvalidOptionException();
+                        }
+                        break;
+                    }
+
+                    default:
+                        throw new InvalidOptionException();
+                }
+
+            } catch (IllegalArgumentException e) {
+                // also catches NumberFormatException
+                throw new InvalidOptionException();
+            }
+        }
+
+        // the grid follows the tempo map of the midi file, so snap before timestamps are moved
+        if (quantize != null) {
+            stages.add(0, quantize);
+        }
+
+        return new PlaybackOptions(options.clone(), PartSelector.parse(tracks, channels), stages);
+    }
+
+
+    /**
+     * Parses the given options after these ones, so that they take precedence.
+     *
+     * @param options List of key=value pairs.
+     *
+     * @return The combined options.
+     *
+     * @throws InvalidOptionException If an option is unknown or has an invalid value.
+     */
+    public PlaybackOptions then(String[] options) throws InvalidOptionException {
+
+        String[] combined = Arrays.copyOf(this.options, this.options.length + options.length);
+        System.arraycopy(options, 0, combined, this.options.length, options.length);
+
+        return parse(combined);
+    }
+
+
+    /**
+     * Runs the selected parts of a midi file through the options that reshape it
+     * (e.g. melody extraction), in a single pass.
+     *
+     * @param midiTimeline Timeline of the selected {@link #parts}.
+     * @param instrument Instrument the timeline will be played with.
+     *
+     * @return The timeline to play.
+     */
+    public MidiTimeline apply(MidiTimeline midiTimeline, Instrument instrument) {
+
+        ArrayList<TimelineTransform> transforms = new ArrayList<>(stages.size());
+        for (BiFunction<MidiTimeline, Instrument, TimelineTransform> stage : stages) {
+            transforms.add(stage.apply(midiTimeline, instrument));
+        }
+
+        return midiTimeline.transform(transforms);
+    }
+
+
+    /**
+     * Checks if the options reshape the timeline, in which case it can't be played while it's still being decoded.
+     *
+     * @return True if {@link #apply} changes the timeline, False otherwise.
+     */
+    public boolean reshapes() {
+        return !stages.isEmpty();
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return {@link #parts Parts} of the midi file to play.
+     */
+    public PartSelector getParts() {
+        return parts;
+    }
+
+
+    /**
+     * Getter.
+     *
+     * @return The {@link #options}, as they were given.
+     */
+    public String[] getOptions() {
+        return options.clone();
+    }
+
+
+    @Override
+    public String toString() {
+        return String.join(" ", options);
+    }
+}
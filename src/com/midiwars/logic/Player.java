@@ -1,6 +1,10 @@
 package com.midiwars.logic;
 
 import com.midiwars.logic.midi.MidiTimeline;
+import com.midiwars.logic.midi.PartSelector;
+import com.midiwars.logic.midi.StreamingTimeline;
+import com.midiwars.logic.midi.Timeline;
+import com.midiwars.logic.midi.TimelineCache;
 import com.midiwars.ui.UserInterface;
 
 import javax.sound.midi.InvalidMidiDataException;
@@ -64,12 +68,27 @@ public class Player {
     /** Instrument to play midi files with. */
     private Instrument instrument;
 
+    /** Options the playlist is played with. */
+    private PlaybackOptions options;
+
     /** The file that's currently playing. */
     private final AtomicInteger currentSong;
 
-    /** Note (index) to resume playback from. */
+    /** Position to resume playback from: action (index) of the {@link #schedule}, or note (index) of a streamed timeline. */
     private int resumeNote;
 
+    /** Timeline of the song that's currently playing, kept while paused. */
+    private Timeline timeline;
+
+    /** The song {@link #timeline} belongs to. */
+    private String timelineSong;
+
+    /** Compiled schedule of the {@link #timeline}, null if the timeline is streamed. */
+    private ActionSchedule schedule;
+
+    /** Where playback of the {@link #timeline} was paused, so that it picks up from that very instant. */
+    private final PausePoint pausePoint;
+
     /** The thread that is currently playing. */
     private Thread currentPlayingThread;
 
@@ -95,12 +114,17 @@ public class Player {
     private Player() {
 
         instrument = null;
+        options = PlaybackOptions.DEFAULT;
         shuffle = false;
         repeat = false;
         playlist = new String[0];
         prevSong = "";
         currentSong = new AtomicInteger(0);
         resumeNote = 0;
+        timeline = null;
+        timelineSong = null;
+        schedule = null;
+        pausePoint = new PausePoint();
         currentPlayingThread = null;
     }
 
@@ -149,26 +173,45 @@ public class Player {
                 }
 
                 // update
-                prevSong = playlist[currentSong.get()];
+                String song = playlist[currentSong.get()];
+                prevSong = song;
+
+                openTimeline(song);
+                boolean streaming = (timeline instanceof StreamingTimeline);
 
                 // check for warnings
                 if (resumeNote == 0) {
-                    UserInterface.getInstance().canPlay(prevSong, false);
+                    if (streaming) {
+                        // don't hold playback back (this also parses the file for next time)
+                        PlaybackOptions songOptions = options;
+                        Thread warnings = new Thread(() -> UserInterface.getInstance().canPlay(song, songOptions, false));
+                        warnings.setDaemon(true);
+                        warnings.start();
+                    } else {
+                        UserInterface.getInstance().canPlay(song, options, false);
+                    }
                 }
 
-                // construct timeline from midi file
-                MidiTimeline midiTimeline = new MidiTimeline(playlist[currentSong.get()]);
-
                 // play
-                resumeNote = instrument.play(midiTimeline, resumeNote);
+                if (schedule != null) {
+                    resumeNote = instrument.play(schedule, resumeNote, pausePoint);
+                } else {
+                    resumeNote = instrument.play(timeline, resumeNote, null, pausePoint);
+                }
 
                 // playback was stopped
                 if (resumeNote >= 0) {
                     return;
                 }
 
+                // a streamed song also ends when the rest of the file can't be decoded
+                if (streaming) {
+                    checkStream();
+                }
+
                 // prepare next song
                 resumeNote = 0;
+                closeTimeline();
 
                 // small break in-between songs
                 if (repeat || currentSong.get() < playlist.length - 1) {
@@ -188,6 +231,87 @@ public class Player {
     }
 
 
+    /**
+     * Opens the {@link #timeline} of the given song.
+     * The parsed timeline is used if it's at hand, otherwise the song is played
+     * while the file is still being decoded, keeping only a window of its events in memory.
+     * Options that reshape the timeline (e.g. melody extraction) need the whole song to be parsed first.
+     * A song that was paused keeps its timeline, so resuming it doesn't decode it from the start.
+     * Fully parsed timelines are compiled into a schedule of key presses (keybar changes included) before playback.
+     *
+     * @param song Path to midi file.
+     *
+     * @throws InvalidMidiDataException If midi file is invalid.
+     * @throws IOException If can't open file.
+     */
+    private void openTimeline(String song) throws InvalidMidiDataException, IOException {
+
+        PartSelector parts = options.getParts();
+
+        // a paused song keeps its timeline (positions are only valid within it)
+        if (song.equals(timelineSong)) {
+            return;
+        }
+
+        closeTimeline();
+
+        // reshaped timelines need the whole song first
+        if (options.reshapes()) {
+            timeline = options.apply(TimelineCache.getInstance().get(song, parts), instrument);
+        }
+        else {
+            Timeline cached = TimelineCache.getInstance().getIfPresent(song, parts);
+            timeline = (cached != null) ? cached : new StreamingTimeline(song, parts);
+        }
+
+        // the schedule can only be compiled once the whole song is at hand
+        if (timeline instanceof MidiTimeline) {
+            schedule = ActionSchedule.compile((MidiTimeline) timeline, instrument);
+        }
+
+        timelineSong = song;
+    }
+
+
+    /**
+     * Checks why the streamed {@link #timeline} of the current song ended,
+     * so that an invalid or truncated file isn't taken for a song that finished.
+     *
+     * @throws InterruptedException If the playing thread was interrupted while waiting for the timeline.
+     * @throws InvalidMidiDataException If the rest of the midi file is invalid.
+     */
+    private void checkStream() throws InterruptedException, InvalidMidiDataException {
+
+        InvalidMidiDataException error = ((StreamingTimeline) timeline).getError();
+
+        if (Thread.interrupted()) {
+            closeTimeline();
+            throw new InterruptedException();
+        }
+
+        if (error != null) {
+            closeTimeline();
+            throw error;
+        }
+    }
+
+
+    /**
+     * Closes the {@link #timeline} of the current song, if there's one.
+     */
+    private void closeTimeline() {
+
+        if (timeline != null) {
+            timeline.close();
+            timeline = null;
+            timelineSong = null;
+            schedule = null;
+        }
+
+        pausePoint.clear();
+    }
+
+
     /**
      * Starts playback.
      *
@@ -195,21 +319,26 @@ public class Player {
      * @param shuffle True if player should switch to shuffle mode.
      * @param repeat True if playlist should repeat upon ending.
      * @param instrument Instrument to play given playlist with.
+     * @param options Options to play given playlist with.
      *
      * @throws AWTException If the platform configuration does not allow low-level input control.
      * @throws InterruptedException If a thread was interrupted.
      * @throws InvalidMidiDataException If midi file is invalid.
      * @throws IOException If can't open file.
      */
-    public void play(String[] playlist, boolean shuffle, boolean repeat, Instrument instrument) throws AWTException, InterruptedException, InvalidMidiDataException, IOException {
+    public void play(String[] playlist, boolean shuffle, boolean repeat, Instrument instrument, PlaybackOptions options) throws AWTException, InterruptedException, InvalidMidiDataException, IOException {
 
         // stop playback
         if (state == PLAYING) {
             stop();
         }
 
+        // a paused song may still hold on to its timeline
+        closeTimeline();
+
         // inits
         this.instrument = instrument;
+        this.options = options;
         this.shuffle = shuffle;
         this.repeat = repeat;
         this.playlist = playlist;
@@ -217,6 +346,9 @@ public class Player {
         currentSong.set(0);
         resumeNote = 0;
 
+        // lateness is kept track of per playback
+        instrument.getClock().reset();
+
         // start playback
         resume();
     }
@@ -230,6 +362,7 @@ public class Player {
     public void stop() throws InterruptedException {
 
         state = STOPPED;
+        wakeUp();
 
         // wait for playing thread to terminate
         if (currentPlayingThread != null) {
@@ -239,6 +372,7 @@ public class Player {
 
         // needed in case player was paused
         resumeNote = 0;
+        closeTimeline();
     }
 
 
@@ -250,6 +384,7 @@ public class Player {
     public void pause() throws InterruptedException {
 
         state = PAUSED;
+        wakeUp();
 
         // wait for playing thread to terminate
         if (currentPlayingThread != null) {
@@ -259,6 +394,70 @@ public class Player {
     }
 
 
+    /**
+     * Wakes the playing thread up if it's waiting for the next note,
+     * so that it notices the new state right away.
+     */
+    private void wakeUp() {
+
+        if (instrument != null) {
+            instrument.getClock().interrupt();
+        }
+    }
+
+
+    /**
+     * Moves playback of the current song to the given moment in time.
+     * The position is found by binary search, and the keybar the schedule had reached there is
+     * looked up rather than replayed. Streamed songs are decoded from the nearest checkpoint before that moment instead.
+     * Does nothing if there's no song playing or paused.
+     *
+     * @param micros Moment in time to move to (µs), on the song's clock.
+     *
+     * @throws AWTException If the platform configuration does not allow low-level input control.
+     * @throws InterruptedException If a thread was interrupted.
+     * @throws InvalidMidiDataException If midi file is invalid.
+     * @throws IOException If can't open file.
+     */
+    public void seek(long micros) throws AWTException, InterruptedException, InvalidMidiDataException, IOException {
+
+        if (state == STOPPED) {
+            return;
+        }
+
+        State oldState = state;
+
+        // stop where it is
+        pause();
+
+        // in-between songs
+        if (timeline == null) {
+            if (oldState == PLAYING) {
+                resume();
+            }
+            return;
+        }
+
+        // streamed songs resume from an event, parsed ones from an action of their schedule
+        int position;
+        if (timeline instanceof StreamingTimeline) {
+            position = ((StreamingTimeline) timeline).indexAt(Math.max(0, micros));
+        } else {
+            position = schedule.indexOfEvent(((MidiTimeline) timeline).indexAt(Math.max(0, micros)));
+        }
+
+        pausePoint.clear();
+
+        // prevent shuffling (-1 also starts from the beginning)
+        resumeNote = (position > 0) ? position : -1;
+
+        // resume playback
+        if (oldState == PLAYING) {
+            resume();
+        }
+    }
+
+
     /**
      * Shuffles the playlist,
      * following the Fisher–Yates shuffle algorithm.
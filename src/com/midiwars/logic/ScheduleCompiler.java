@@ -0,0 +1,387 @@
+package com.midiwars.logic;
+
+import com.midiwars.logic.midi.MidiTimeline;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static com.midiwars.logic.ActionSchedule.*;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Compiles the {@link ActionSchedule} of a timeline.
+ * Playback is simulated on the timeline's clock, the way {@link Instrument#play(com.midiwars.logic.midi.Timeline, int)}
+ * would go about it: every action is due as soon as its event is, unless the robot is still busy
+ * with earlier keybar changes (or their cooldown), in which case it is due as soon as the robot is free.
+ * On instruments that {@link Instrument#canChord accept simultaneous keys}, notes starting together on the same
+ * key bar are pressed at once by a single {@link ActionSchedule#CHORD} action, and each is released at its own end.
+ */
+class ScheduleCompiler {
+
+    /* --- DEFINES --- */
+
+    /** Minimum capacity of each column. */
+    public static final int MIN_CAPACITY = 256;
+
+    /** Time of the previous keybar change when there hasn't been one. */
+    private static final long NONE = Long.MIN_VALUE;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Moment in time each action is due (µs). */
+    private long[] deadlines;
+
+    /** Operation of each action. */
+    private byte[] ops;
+
+    /** Keyboard key of each action. */
+    private int[] keybinds;
+
+    /** Index of the timeline event each action comes from. */
+    private int[] events;
+
+    /** Key bar that is active right before each action. */
+    private byte[] keybars;
+
+    /** Number of actions compiled. */
+    private int size;
+
+    /** Timeline to compile. */
+    private final MidiTimeline midiTimeline;
+
+    /** Instrument the timeline will be played with. */
+    private final Instrument instrument;
+
+    /** Keybar each note is played on. */
+    private final byte[] plan;
+
+    /** Minimum amount of time needed in-between key bar changes (µs). */
+    private final long cooldown;
+
+    /** Amount of time a key bar change takes to take effect (µs). */
+    private final long changeTime;
+
+    /** Moment in time the robot is free again (µs). */
+    private long now;
+
+    /** Moment in time of the previous key bar change (µs), {@link #NONE} if none. */
+    private long previousKeybarChange;
+
+    /** The currently active key bar. */
+    private int activeKeybarIndex;
+
+    /** The keyboard keys that are currently being held down. */
+    private final BitSet held;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new ScheduleCompiler object.
+     *
+     * @param midiTimeline Timeline to compile.
+     * @param instrument Instrument the timeline will be played with.
+     * @param plan Keybar each note is played on (see {@link KeybarPlanner}).
+     */
+    ScheduleCompiler(MidiTimeline midiTimeline, Instrument instrument, byte[] plan) {
+
+        int capacity = Math.max(MIN_CAPACITY, 2 * midiTimeline.size());
+
+        deadlines = new long[capacity];
+        ops = new byte[capacity];
+        keybinds = new int[capacity];
+        events = new int[capacity];
+        keybars = new byte[capacity];
+        size = 0;
+        this.midiTimeline = midiTimeline;
+        this.instrument = instrument;
+        this.plan = plan;
+        cooldown = 1000L * instrument.getKeyboardCooldown();
+        changeTime = 1000L * Instrument.ROBOT_SLEEP;
+        now = Long.MIN_VALUE;
+        previousKeybarChange = NONE;
+        activeKeybarIndex = instrument.getIdleKeybarIndex();
+        held = new BitSet();
+    }
+
+
+    /**
+     * Compiles the schedule.
+     *
+     * @return The schedule.
+     */
+    ActionSchedule compile() {
+
+        for (int i = 0; i < midiTimeline.size(); i++) {
+
+            long time = midiTimeline.getTimestampMicros(i);
+            now = Math.max(now, time);
+
+            int key = midiTimeline.getKey(i);
+            boolean noteOn = (midiTimeline.getType(i) == NOTE_ON);
+            int keybarIndex = noteOn ? plan[i] : getKeybarIndex(key);
+
+            // ignore if note can't be played
+            if (keybarIndex < 0) {
+                continue;
+            }
+
+            // case NOTE_ON
+            if (noteOn) {
+
+                // notes played at once, if the instrument accepts them
+                int last = instrument.canChord() ? getChordEnd(i, keybarIndex) : i;
+
+                // if there's a key being held down (chords hold their keys until their own note off)
+                if (!instrument.canChord()) {
+                    releaseHeld(i);
+                }
+
+                // notes ending as the chord starts are released first
+                for (int j = i + 1; j <= last; j++) {
+                    if (midiTimeline.getType(j) != NOTE_ON) {
+                        release(midiTimeline.getKey(j), i);
+                    }
+                }
+
+                // change keybars if needed
+                changeKeybars(keybarIndex, i);
+
+                // key bar slots to press
+                int slots = 0;
+                for (int j = i; j <= last; j++) {
+                    if (midiTimeline.getType(j) == NOTE_ON && plan[j] >= 0) {
+                        slots |= 1 << instrument.getKeySlot(keybarIndex, midiTimeline.getKey(j));
+                    }
+                }
+
+                // keys still held down are released, so that their notes are played again
+                for (int s = slots; s != 0; s &= s - 1) {
+                    int keybind = Keymap.KEYBINDS[Integer.numberOfTrailingZeros(s)];
+                    if (held.get(keybind)) {
+                        add(RELEASE, keybind, i);
+                        held.clear(keybind);
+                    }
+                }
+
+                // play note(s)
+                if (Integer.bitCount(slots) == 1) {
+                    add(PRESS, Keymap.KEYBINDS[Integer.numberOfTrailingZeros(slots)], i);
+                } else {
+                    add(CHORD, slots, i);
+                }
+                for (int s = slots; s != 0; s &= s - 1) {
+                    held.set(Keymap.KEYBINDS[Integer.numberOfTrailingZeros(s)]);
+                }
+                i = last;
+
+                // if there's time, change key bars ahead of the next note
+                if (now < getNextTimestamp(i) && !instrument.canHold()) {
+                    preemptivelyChangeKeybars(i);
+                }
+            }
+
+            // case NOTE_OFF
+            else {
+                int keybind = Keymap.KEYBINDS[instrument.getKeySlot(keybarIndex, key)];
+                if (held.get(keybind)) {
+                    add(RELEASE, keybind, i);
+                    held.clear(keybind);
+
+                    // canHold instruments can only change key bars ahead once every key is released
+                    if (now < getNextTimestamp(i) && instrument.canHold() && held.isEmpty()) {
+                        preemptivelyChangeKeybars(i);
+                    }
+                }
+            }
+        }
+
+        return new ActionSchedule(Arrays.copyOf(deadlines, size), Arrays.copyOf(ops, size),
+                Arrays.copyOf(keybinds, size), Arrays.copyOf(events, size), Arrays.copyOf(keybars, size));
+    }
+
+
+    /**
+     * Returns the moment in time of the event following the given one.
+     *
+     * @param i Index of the current event.
+     *
+     * @return Timestamp (µs), that of the current event if there's no next one.
+     */
+    private long getNextTimestamp(int i) {
+
+        int next = (i + 1 < midiTimeline.size()) ? i + 1 : i;
+        return midiTimeline.getTimestampMicros(next);
+    }
+
+
+    /**
+     * Returns the last event of the chord starting at the given note:
+     * the notes that follow it at the same moment in time and are played on the same key bar,
+     * along with the notes ending at that moment, which are sorted in-between them by key
+     * (notes that can't be played don't break the chord).
+     *
+     * @param i Index of the first note of the chord.
+     * @param keybarIndex Key bar the note is played on.
+     *
+     * @return Index of the last event of the chord, i if it's a single note.
+     */
+    private int getChordEnd(int i, int keybarIndex) {
+
+        long time = midiTimeline.getTimestampMicros(i);
+
+        int last = i;
+        for (int j = i + 1; j < midiTimeline.size() && midiTimeline.getTimestampMicros(j) == time; j++) {
+
+            // the next chord starts here
+            if (midiTimeline.getType(j) == NOTE_ON && plan[j] != keybarIndex && plan[j] >= 0) {
+                break;
+            }
+
+            last = j;
+        }
+
+        return last;
+    }
+
+
+    /**
+     * Releases the key of the given note, if it's being held down.
+     *
+     * @param key Key of the note.
+     * @param i Index of the event the release is made for.
+     */
+    private void release(int key, int i) {
+
+        int keybarIndex = getKeybarIndex(key);
+        if (keybarIndex < 0) {
+            return;
+        }
+
+        int keybind = Keymap.KEYBINDS[instrument.getKeySlot(keybarIndex, key)];
+        if (held.get(keybind)) {
+            add(RELEASE, keybind, i);
+            held.clear(keybind);
+        }
+    }
+
+
+    /**
+     * Releases every key that is being held down.
+     *
+     * @param i Index of the event the release is made for.
+     */
+    private void releaseHeld(int i) {
+
+        for (int keybind = held.nextSetBit(0); keybind >= 0; keybind = held.nextSetBit(keybind + 1)) {
+            add(RELEASE, keybind, i);
+        }
+
+        held.clear();
+    }
+
+
+    /**
+     * Changes key bars ahead of the next note that can be played, if needed.
+     *
+     * @param i Index of the current event.
+     */
+    private void preemptivelyChangeKeybars(int i) {
+
+        for (int j = i + 1; j < midiTimeline.size(); j++) {
+            if (midiTimeline.getType(j) == NOTE_ON && plan[j] >= 0) {
+                changeKeybars(plan[j], i);
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Changes the active keybar to the given one,
+     * one key bar at a time, each waiting for the cooldown of the previous one.
+     *
+     * @param keybarIndex New active keybar.
+     * @param i Index of the event the change is made for.
+     */
+    private void changeKeybars(int keybarIndex, int i) {
+
+        // how many key bars are necessary to change
+        int deltaKeybarIndex = keybarIndex - activeKeybarIndex;
+
+        int op = (deltaKeybarIndex > 0) ? OCTAVE_UP : OCTAVE_DOWN;
+        int keybind = (deltaKeybarIndex > 0) ? Keymap.OCTAVEUP_KEYBIND : Keymap.OCTAVEDOWN_KEYBIND;
+
+        for (int j = 0; j < Math.abs(deltaKeybarIndex); j++) {
+
+            // wait for the cooldown of the previous change
+            if (previousKeybarChange != NONE) {
+                now = Math.max(now, previousKeybarChange + cooldown);
+            }
+
+            // key bar changes immediately release keys
+            releaseHeld(i);
+
+            // change keybar, letting it take effect before releasing its key
+            add(op, keybind, i);
+            activeKeybarIndex += (deltaKeybarIndex > 0) ? 1 : -1;
+            previousKeybarChange = now;
+            now += changeTime;
+            add(RELEASE, keybind, i);
+        }
+    }
+
+
+    /**
+     * Returns the index of the keybar given key belongs to,
+     * preferring the active key bar.
+     *
+     * @param key Key to assess.
+     *
+     * @return Key bar index. -1 if note can't be played.
+     */
+    private int getKeybarIndex(int key) {
+
+        int mask = instrument.getKeybarMask(key);
+
+        // can't play this note
+        if (mask == 0) {
+            return -1;
+        }
+
+        if ((mask & (1 << activeKeybarIndex)) != 0) {
+            return activeKeybarIndex;
+        }
+
+        return Integer.numberOfTrailingZeros(mask);
+    }
+
+
+    /**
+     * Adds an action, due right now.
+     *
+     * @param op Operation.
+     * @param keybind Keyboard key.
+     * @param i Index of the event the action comes from.
+     */
+    private void add(int op, int keybind, int i) {
+
+        // make room for the new action
+        if (size == deadlines.length) {
+            int capacity = 2 * size;
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            ops = Arrays.copyOf(ops, capacity);
+            keybinds = Arrays.copyOf(keybinds, capacity);
+            events = Arrays.copyOf(events, capacity);
+            keybars = Arrays.copyOf(keybars, capacity);
+        }
+
+        deadlines[size] = now;
+        ops[size] = (byte) op;
+        keybinds[size] = keybind;
+        events[size] = i;
+        keybars[size] = (byte) activeKeybarIndex;
+        size++;
+    }
+}
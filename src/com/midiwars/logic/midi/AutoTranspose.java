@@ -0,0 +1,202 @@
+package com.midiwars.logic.midi;
+
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+import static com.midiwars.logic.midi.Timeline.KEYS;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Transposes a timeline by whichever amount of semitones best fits an instrument's keybars.
+ * Since keybars only hold the keys of the C major scale, finding that amount also finds the key of the song.
+ * The whole timeline is summed up once, in a pitch histogram and a table of consecutive notes,
+ * after which every candidate transposition is scored in parallel without looking at the events again:
+ * playable notes score points, while predicted keybar switches take some away.
+ * This stage needs every event before pushing any of them down.
+ */
+public class AutoTranspose implements TimelineTransform {
+
+    /* --- DEFINES --- */
+
+    /** Transpositions are searched between -MAX_SEMITONES and +MAX_SEMITONES. */
+    public static final int MAX_SEMITONES = 24;
+
+    /** A note that can't be played weighs as much as this many keybar switches. */
+    public static final int SWITCHES_PER_NOTE = 4;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Maps each key to a mask of the keybars holding it (0 if it can't be played). */
+    private final IntUnaryOperator keybarMasks;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new AutoTranspose object.
+     *
+     * @param keybarMasks Maps each key [0-127] to a mask of the instrument's keybars holding it
+     *                    (bit i set if keybar i holds the key, 0 if the key can't be played).
+     */
+    public AutoTranspose(IntUnaryOperator keybarMasks) {
+        this.keybarMasks = keybarMasks;
+    }
+
+
+    @Override
+    public TimelineSink apply(TimelineSink downstream) {
+        return new Search(downstream);
+    }
+
+
+    /**
+     * Finds the best transposition.
+     * Ties go to the smallest shift.
+     *
+     * @param histogram How many notes start on each key.
+     * @param transitions How many times each key (row) is followed by each other key (column), in a KEYS x KEYS table.
+     *
+     * @return Amount of semitones.
+     */
+    public int search(int[] histogram, int[] transitions) {
+
+        // only the transitions that actually happen are scored
+        int n = 0;
+        for (int count : transitions) {
+            if (count > 0) {
+                n++;
+            }
+        }
+        int[] pairs = new int[n];
+        int[] counts = new int[n];
+        for (int i = 0, j = 0; j < n; i++) {
+            if (transitions[i] > 0) {
+                pairs[j] = i;
+                counts[j] = transitions[i];
+                j++;
+            }
+        }
+
+        // score every candidate in parallel
+        long[] scores = new long[2 * MAX_SEMITONES + 1];
+        IntStream.range(0, scores.length).parallel()
+                .forEach(i -> scores[i] = score(i - MAX_SEMITONES, histogram, pairs, counts));
+
+        // pick the best one, looking at smaller shifts first
+        int best = 0;
+        for (int shift = 1; shift <= MAX_SEMITONES; shift++) {
+            if (scores[MAX_SEMITONES - shift] > scores[MAX_SEMITONES + best]) {
+                best = -shift;
+            }
+            if (scores[MAX_SEMITONES + shift] > scores[MAX_SEMITONES + best]) {
+                best = shift;
+            }
+        }
+
+        return best;
+    }
+
+
+    /**
+     * Scores the given transposition.
+     *
+     * @param semitones Amount of semitones.
+     * @param histogram How many notes start on each key.
+     * @param pairs Transitions that happen, as (key * KEYS + next key).
+     * @param counts How many times each of the pairs happens.
+     *
+     * @return Score. Higher is better.
+     */
+    private long score(int semitones, int[] histogram, int[] pairs, int[] counts) {
+
+        // notes that can be played
+        long playable = 0;
+        for (int key = 0; key < KEYS; key++) {
+            if (histogram[key] > 0 && mask(key + semitones) != 0) {
+                playable += histogram[key];
+            }
+        }
+
+        // playable notes followed by a playable note of another keybar
+        long switches = 0;
+        for (int i = 0; i < pairs.length; i++) {
+            int from = mask(pairs[i] / KEYS + semitones);
+            int to = mask(pairs[i] % KEYS + semitones);
+            if (from != 0 && to != 0 && (from & to) == 0) {
+                switches += counts[i];
+            }
+        }
+
+        return SWITCHES_PER_NOTE * playable - switches;
+    }
+
+
+    /**
+     * Returns the keybars holding the given key.
+     *
+     * @param key Key number (may be out of the midi range).
+     *
+     * @return Mask of keybars, 0 if the key can't be played.
+     */
+    private int mask(int key) {
+        return (key >= 0 && key < KEYS) ? keybarMasks.applyAsInt(key) : 0;
+    }
+
+
+    /**
+     * Sums up the events of a single pass, holding them back until the transposition is known.
+     */
+    private class Search implements TimelineSink {
+
+        /** Sink of the next stage. */
+        private final TimelineSink downstream;
+
+        /** Events held back. */
+        private final TimelineCollector events;
+
+        /** How many notes start on each key. */
+        private final int[] histogram;
+
+        /** How many times each key is followed by each other key. */
+        private final int[] transitions;
+
+        /** Key of the previous note, -1 if none. */
+        private int previousKey;
+
+
+        /**
+         * Creates a new Search object.
+         *
+         * @param downstream Sink of the next stage.
+         */
+        Search(TimelineSink downstream) {
+            this.downstream = downstream;
+            events = new TimelineCollector(null);
+            histogram = new int[KEYS];
+            transitions = new int[KEYS * KEYS];
+            previousKey = -1;
+        }
+
+
+        @Override
+        public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+
+            events.accept(timestamp, duration, type, key, track, channel);
+
+            if (type == NOTE_ON) {
+                histogram[key]++;
+                if (previousKey >= 0) {
+                    transitions[previousKey * KEYS + key]++;
+                }
+                previousKey = key;
+            }
+        }
+
+
+        @Override
+        public void end() {
+            events.replay(TimelineTransforms.transpose(search(histogram, transitions)).apply(downstream));
+        }
+    }
+}
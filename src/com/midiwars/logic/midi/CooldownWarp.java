@@ -0,0 +1,352 @@
+package com.midiwars.logic.midi;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static com.midiwars.logic.midi.Timeline.KEYS;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Slows down only the parts of a timeline where keybar changes come faster than the instrument allows,
+ * by the least amount needed, and makes up for the delay in the rests that follow
+ * (moments where no note is sounding), so the rest of the song keeps its tempo.
+ * Keybar changes are predicted from the keybar plan of the events (the same plan playback follows),
+ * worked out once every event is read:
+ * a change starts once the previous note is played (or released, if the instrument can hold notes),
+ * and can't start until the cooldown of the previous change has passed.
+ * This stage needs every event before pushing any of them down.
+ */
+public class CooldownWarp implements TimelineTransform {
+
+    /* --- DEFINES --- */
+
+    /** Number of midi channels. */
+    private static final int CHANNELS = 16;
+
+    /** Duration of notes whose NOTE_OFF event hasn't been read yet. */
+    private static final int OPEN = Integer.MIN_VALUE;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Timeline the events come from (provides the tempo map). */
+    private final MidiTimeline source;
+
+    /** Plans the keybar each note of a timeline is played on (-1 for other events and notes that can't be played). */
+    private final Function<MidiTimeline, byte[]> planner;
+
+    /** The active keybar before the timeline is played. */
+    private final int idleKeybar;
+
+    /** Minimum amount of time needed in-between keybar changes (µs). */
+    private final long cooldown;
+
+    /** Amount of time a keybar change takes to take effect (µs). */
+    private final long changeTime;
+
+    /** True if the instrument can hold notes (ie note duration matters). */
+    private final boolean canHold;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new CooldownWarp object.
+     *
+     * @param midiTimeline Timeline the events come from (provides the tempo map).
+     * @param planner Plans the keybar each note of a timeline is played on, for each event
+     *                (-1 for NOTE_OFF events and notes that can't be played).
+     * @param idleKeybar The active keybar before the timeline is played.
+     * @param cooldown Minimum amount of time needed in-between keybar changes (ms).
+     * @param changeTime Amount of time a keybar change takes to take effect (ms).
+     * @param canHold True if the instrument can hold notes.
+     */
+    public CooldownWarp(MidiTimeline midiTimeline, Function<MidiTimeline, byte[]> planner,
+                        int idleKeybar, int cooldown, int changeTime, boolean canHold) {
+
+        this.source = midiTimeline;
+        this.planner = planner;
+        this.idleKeybar = idleKeybar;
+        this.cooldown = 1000L * cooldown;
+        this.changeTime = 1000L * changeTime;
+        this.canHold = canHold;
+    }
+
+
+    @Override
+    public TimelineSink apply(TimelineSink downstream) {
+
+        TimelineCollector events = new TimelineCollector(source);
+
+        return new TimelineSink() {
+
+            @Override
+            public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+                events.accept(timestamp, duration, type, key, track, channel);
+            }
+
+            @Override
+            public void end() {
+                Warp warp = new Warp(planner.apply(events.build()));
+                events.replay(warp);
+                events.replay(warp.new Output(downstream));
+            }
+        };
+    }
+
+
+    /**
+     * Works out the new timestamps, in a first pass over the events.
+     */
+    private class Warp implements TimelineSink {
+
+        /** Keybar each note is played on. */
+        private final byte[] plan;
+
+        /** New timestamp of each event (µs). */
+        private final long[] timestamps;
+
+        /** New duration of each event (µs). */
+        private final int[] durations;
+
+        /**
+         * For each track, the latest note waiting for its NOTE_OFF event, for each channel and key (channel * KEYS + key).
+         * -1 if there's none. Tables are created as their tracks show up.
+         */
+        private int[][] openNotes;
+
+        /** Links each open note to the previous open note of the same track, channel and key (-1 if none). */
+        private final int[] openLinks;
+
+        /** Number of events read. */
+        private int n;
+
+        /** Original timestamp of each instant (µs). */
+        private long[] instants;
+
+        /** Delay of each instant, once all of its events are read (µs). */
+        private long[] delays;
+
+        /** Number of instants read. */
+        private int instantCount;
+
+        /** Current delay (µs). */
+        private long delay;
+
+        /** Moment the notes read so far stop sounding (original µs). */
+        private long soundingUntil;
+
+        /** The active keybar. */
+        private int active;
+
+        /** New timestamp of the previous keybar change (µs). -1 if none. */
+        private long previousChange;
+
+        /** New timestamp of the previous NOTE_ON event (µs). -1 if none. */
+        private long previousNoteOn;
+
+        /** Index of the previous NOTE_ON event. */
+        private int previousIndex;
+
+
+        /**
+         * Creates a new Warp object.
+         *
+         * @param plan Keybar each note is played on, for each event.
+         */
+        Warp(byte[] plan) {
+            int size = plan.length;
+            this.plan = plan;
+            timestamps = new long[size];
+            durations = new int[size];
+            openNotes = new int[16][];
+            openLinks = new int[size];
+            instants = new long[16];
+            delays = new long[16];
+            soundingUntil = Long.MIN_VALUE;
+            active = idleKeybar;
+            previousChange = -1;
+            previousNoteOn = -1;
+        }
+
+
+        @Override
+        public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+
+            // a new instant
+            if (instantCount == 0 || timestamp != instants[instantCount - 1]) {
+
+                // make up for the delay in the rest before it
+                if (instantCount > 0 && timestamp > soundingUntil) {
+                    long rest = timestamp - Math.max(soundingUntil, instants[instantCount - 1]);
+                    delay -= Math.min(delay, rest);
+                }
+
+                if (instantCount == instants.length) {
+                    instants = Arrays.copyOf(instants, 2 * instantCount);
+                    delays = Arrays.copyOf(delays, 2 * instantCount);
+                }
+                instants[instantCount++] = timestamp;
+            }
+
+            long time = timestamp + delay;
+
+            if (type == NOTE_ON) {
+
+                int keybar = plan[n];
+
+                if (keybar >= 0 && keybar != active) {
+
+                    // changes start once the previous note is played (or released),
+                    // a note still sounding is released by the change itself
+                    long previousEnd = getPreviousEnd();
+                    long change = (previousNoteOn >= 0 && previousEnd >= 0) ? Math.min(previousEnd, time) : time;
+
+                    // one keybar at a time, each waiting for the cooldown of the previous one
+                    for (int j = 0; j < Math.abs(keybar - active); j++) {
+                        if (previousChange >= 0) {
+                            change = Math.max(change, previousChange + cooldown);
+                        }
+                        previousChange = change;
+                        change += changeTime;
+                    }
+
+                    time = Math.max(time, change);
+                    delay = time - timestamp;
+                    active = keybar;
+                }
+
+                previousNoteOn = time;
+                previousIndex = n;
+                soundingUntil = Math.max(soundingUntil, timestamp + Math.max(duration, 0));
+            }
+
+            timestamps[n] = time;
+            durations[n] = duration;
+            delays[instantCount - 1] = delay;
+
+            // notes are paired within their own track, channel and key, like when the midi file is read
+            int[] trackNotes = getOpenNotes(track);
+            int note = channel * KEYS + key;
+            if (type == NOTE_ON) {
+                if (duration > 0) {
+                    openLinks[n] = trackNotes[note];
+                    trackNotes[note] = n;
+                    durations[n] = OPEN;
+                }
+            } else {
+                for (int i = trackNotes[note]; i >= 0; i = openLinks[i]) {
+                    durations[i] = (int) Math.min(time - timestamps[i], Integer.MAX_VALUE);
+                }
+                trackNotes[note] = -1;
+            }
+
+            n++;
+        }
+
+
+        /**
+         * Returns the open notes of the given track, creating its table if needed.
+         *
+         * @param track Track index.
+         *
+         * @return Latest open note of each channel and key (channel * KEYS + key), -1 if there's none.
+         */
+        private int[] getOpenNotes(int track) {
+
+            if (track >= openNotes.length) {
+                openNotes = Arrays.copyOf(openNotes, Math.max(track + 1, 2 * openNotes.length));
+            }
+
+            if (openNotes[track] == null) {
+                openNotes[track] = new int[CHANNELS * KEYS];
+                Arrays.fill(openNotes[track], -1);
+            }
+
+            return openNotes[track];
+        }
+
+
+        /**
+         * Returns when the previous note is released, that is when the instrument can change keybars.
+         * Instruments that can't hold notes release them right away.
+         *
+         * @return New timestamp (µs), -1 if the note is still sounding.
+         */
+        private long getPreviousEnd() {
+
+            if (!canHold) {
+                return previousNoteOn;
+            }
+
+            int duration = durations[previousIndex];
+
+            if (duration == OPEN) {
+                return -1;
+            }
+
+            return previousNoteOn + Math.max(duration, 0);
+        }
+
+
+        /**
+         * Returns the new timestamp of the given moment, once every event up to it is read.
+         *
+         * @param timestamp Original timestamp (µs).
+         *
+         * @return New timestamp (µs).
+         */
+        private long warp(long timestamp) {
+
+            int i = Arrays.binarySearch(instants, 0, instantCount, timestamp);
+            if (i < 0) {
+                i = -i - 2;
+            }
+
+            return timestamp + (i < 0 ? 0 : delays[i]);
+        }
+
+
+        /**
+         * Pushes down the events with their new timestamps, in a second pass.
+         */
+        private class Output implements TimelineSink {
+
+            /** Sink of the next stage. */
+            private final TimelineSink downstream;
+
+            /** Index of the next event. */
+            private int i;
+
+
+            /**
+             * Creates a new Output object.
+             *
+             * @param downstream Sink of the next stage.
+             */
+            Output(TimelineSink downstream) {
+                this.downstream = downstream;
+            }
+
+
+            @Override
+            public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+
+                // notes left without a NOTE_OFF event (e.g. dropped by an earlier stage) end at their warped end
+                int newDuration = durations[i];
+                if (newDuration == OPEN) {
+                    newDuration = (int) Math.min(warp(timestamp + duration) - timestamps[i], Integer.MAX_VALUE);
+                }
+
+                downstream.accept(timestamps[i], newDuration, type, key, track, channel);
+                i++;
+            }
+
+
+            @Override
+            public void end() {
+                downstream.end();
+            }
+        }
+    }
+}
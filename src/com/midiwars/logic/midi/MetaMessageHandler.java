@@ -1,9 +1,9 @@
 package com.midiwars.logic.midi;
 
-import javax.sound.midi.MetaMessage;
+import java.nio.ByteBuffer;
 
 /**
- * Collection of handlers called when dealing with MidiMessages of type MetaMessage.
+ * Collection of handlers called when dealing with meta events.
  */
 public class MetaMessageHandler {
 
@@ -16,19 +16,22 @@ public class MetaMessageHandler {
     /* --- METHODS --- */
 
     /**
-     * Called when a MetaMessage is received.
+     * Called when a meta event is read.
      *
-     * @param midiTimeline midi timeline.
-     * @param metaMessage Message received.
-     * @param tick MidiEvent time-stamp (ticks).
+     * @param sink Receives the decoded events.
+     * @param type Meta event type.
+     * @param buffer Buffer holding the event's data.
+     * @param offset Position of the event's data in the buffer.
+     * @param length Length of the event's data (bytes).
+     * @param tick Event time-stamp (ticks).
      */
-    public static void metaMessageHandler(MidiTimeline midiTimeline, MetaMessage metaMessage, long tick) {
+    public static void metaMessageHandler(MidiEventSink sink, int type, ByteBuffer buffer, int offset, int length, long tick) {
 
-        switch (metaMessage.getType()) {
+        switch (type) {
 
             case SET_TEMPO: {
 
-                setTempo(midiTimeline, metaMessage, tick);
+                setTempo(sink, buffer, offset, length, tick);
                 break;
             }
 
@@ -39,23 +42,31 @@ public class MetaMessageHandler {
 
 
     /**
-     * Called when MetaMessage is of type SET_TEMPO.
+     * Called when meta event is of type SET_TEMPO.
      *
-     * @param midiTimeline midi timeline.
-     * @param metaMessage Message received.
-     * @param tick MidiEvent time-stamp (ticks).
+     * @param sink Receives the decoded events.
+     * @param buffer Buffer holding the event's data.
+     * @param offset Position of the event's data in the buffer.
+     * @param length Length of the event's data (bytes).
+     * @param tick Event time-stamp (ticks).
      *
-     * @see #metaMessageHandler(MidiTimeline, MetaMessage, long)
+     * @see #metaMessageHandler(MidiEventSink, int, ByteBuffer, int, int, long)
      */
-    private static void setTempo(MidiTimeline midiTimeline, MetaMessage metaMessage, long tick) {
+    private static void setTempo(MidiEventSink sink, ByteBuffer buffer, int offset, int length, long tick) {
 
-        // read message data
-        byte[] data = metaMessage.getData();
+        // malformed event
+        if (length < 3) {
+            return;
+        }
 
         // microseconds per quarter-note
-        int mspq = (data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | (data[2] & 0xff);
+        int mspq = (buffer.get(offset) & 0xff) << 16 | (buffer.get(offset + 1) & 0xff) << 8 | (buffer.get(offset + 2) & 0xff);
+
+        // a tempo of 0 would stop time (and make converting time to ticks impossible)
+        if (mspq == 0) {
+            return;
+        }
 
-        // 1 min = 60 s = 60 000 000 ms
-        midiTimeline.addTempo(tick, (60.0 * 1000000) / mspq);
+        sink.addTempo(tick, mspq);
     }
 }
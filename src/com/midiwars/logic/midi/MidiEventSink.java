@@ -0,0 +1,31 @@
+package com.midiwars.logic.midi;
+
+/**
+ * Receives the events of interest decoded from a midi file.
+ * Events of a single track are received in order of ticks.
+ */
+public interface MidiEventSink {
+
+    /**
+     * Called when a tempo change is decoded.
+     *
+     * @param tick Instant in time (ticks) this tempo change happened.
+     * @param tempo New tempo (microseconds per quarter-note).
+     */
+    default void addTempo(long tick, int tempo) {
+
+    }
+
+
+    /**
+     * Called when a note event is decoded.
+     *
+     * @param type NOTE_ON (0x90) or NOTE_OFF (0x80).
+     * @param channel Channel number [0-15].
+     * @param key Key number [0-127].
+     * @param tick MidiEvent time-stamp (ticks).
+     */
+    default void addNoteEvent(int type, int channel, int key, long tick) {
+
+    }
+}
@@ -0,0 +1,566 @@
+package com.midiwars.logic.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.midiwars.logic.midi.MetaMessageHandler.metaMessageHandler;
+import static com.midiwars.logic.midi.ShortMessageHandler.shortMessageHandler;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+import static javax.sound.midi.Sequence.*;
+
+/**
+ * Reads Standard MIDI Files straight from their bytes.
+ * The file is memory-mapped and its MThd / MTrk chunks are decoded in place,
+ * without building an intermediate javax.sound.midi.Sequence.
+ */
+public class MidiFileReader {
+
+    /* --- DEFINES --- */
+
+    /** Type of the header chunk ("MThd"). */
+    public static final int MTHD = 0x4d546864;
+
+    /** Type of a track chunk ("MTrk"). */
+    public static final int MTRK = 0x4d54726b;
+
+    /** Minimum length of the header chunk's data (bytes). */
+    public static final int MTHD_LENGTH = 6;
+
+    /** Status byte of a system exclusive message. */
+    public static final int SYSEX = 0xf0;
+
+    /** Status byte of a system exclusive continuation (or escape) message. */
+    public static final int SYSEX_ESCAPE = 0xf7;
+
+    /** Status byte of a meta event. */
+    public static final int META = 0xff;
+
+    /** This meta event marks the end of a track. */
+    public static final int END_OF_TRACK = 0x2f;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Contents of the midi file. */
+    private final ByteBuffer buffer;
+
+    /** Timing division type (PPQ or one of the SMPTE types). */
+    private float divisionType;
+
+    /** Timing resolution (ticks per quarter-note or ticks per frame). */
+    private int resolution;
+
+    /** Position in the buffer where each track's data starts. */
+    private int[] trackOffsets;
+
+    /** Length of each track's data (bytes). */
+    private int[] trackLengths;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new MidiFileReader object,
+     * mapping the given file into memory and reading its header.
+     *
+     * @param filepath Path to midi file.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     * @throws IOException Can't open file.
+     */
+    public MidiFileReader(String filepath) throws InvalidMidiDataException, IOException {
+
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(Paths.get(filepath), READ)) {
+            buffer = channel.map(READ_ONLY, 0, channel.size());
+        }
+
+        readHeader();
+    }
+
+
+    /**
+     * Reads the header chunk and locates every track chunk.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     */
+    private void readHeader() throws InvalidMidiDataException {
+
+        if (buffer.limit() < 8 + MTHD_LENGTH || buffer.getInt(0) != MTHD) {
+            throw new InvalidMidiDataException("could not get sequence from file");
+        }
+
+        int headerLength = buffer.getInt(4);
+        if (headerLength < MTHD_LENGTH) {
+            throw new InvalidMidiDataException("Invalid header chunk length: " + headerLength);
+        }
+
+        int format = buffer.getShort(8) & 0xffff;
+        if (format > 2) {
+            throw new InvalidMidiDataException("Invalid or unsupported file type: " + format);
+        }
+
+        int nTracks = buffer.getShort(10) & 0xffff;
+
+        // read as a signed value, since SMPTE divisions are negative
+        int division = buffer.getShort(12);
+
+        if (division > 0) {
+            divisionType = PPQ;
+            resolution = division;
+        }
+        else {
+            int framesPerSecond = -(division >> 8);
+            switch (framesPerSecond) {
+                case 24:
+                    divisionType = SMPTE_24;
+                    break;
+                case 25:
+                    divisionType = SMPTE_25;
+                    break;
+                case 29:
+                    divisionType = SMPTE_30DROP;
+                    break;
+                case 30:
+                    divisionType = SMPTE_30;
+                    break;
+                default:
+                    throw new InvalidMidiDataException("Unknown frame code: " + framesPerSecond);
+            }
+            resolution = division & 0xff;
+        }
+
+        if (resolution == 0) {
+            throw new InvalidMidiDataException("Invalid timing resolution: 0");
+        }
+
+        // locate track chunks, skipping any chunk of unknown type
+        int[] offsets = new int[nTracks];
+        int[] lengths = new int[nTracks];
+        int found = 0;
+        int pos = 8 + headerLength;
+
+        while (found < nTracks && pos + 8 <= buffer.limit()) {
+
+            int type = buffer.getInt(pos);
+            long length = buffer.getInt(pos + 4) & 0xffffffffL;
+            pos += 8;
+
+            if (pos + length > buffer.limit()) {
+                throw new InvalidMidiDataException("Truncated chunk at position " + (pos - 8));
+            }
+
+            if (type == MTRK) {
+                offsets[found] = pos;
+                lengths[found] = (int) length;
+                found++;
+            }
+
+            pos += (int) length;
+        }
+
+        if (found < nTracks) {
+            trackOffsets = new int[found];
+            trackLengths = new int[found];
+            System.arraycopy(offsets, 0, trackOffsets, 0, found);
+            System.arraycopy(lengths, 0, trackLengths, 0, found);
+        }
+        else {
+            trackOffsets = offsets;
+            trackLengths = lengths;
+        }
+    }
+
+
+    /**
+     * Decodes every track, sending only its tempo events to the given timeline.
+     * Needed before {@link #readNotes(TimelineBuilder, PartSelector)}, since a note's time
+     * depends on every tempo change before it, whatever track it is in.
+     *
+     * @param builder Timeline to fill.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     */
+    public void readTempos(TimelineBuilder builder) throws InvalidMidiDataException {
+
+        for (int i = 0; i < trackOffsets.length; i++) {
+            new TrackReader(i).read(builder);
+        }
+    }
+
+
+    /**
+     * Decodes every selected track, adding a run with its note events of the given parts to the given timeline.
+     * Tracks that aren't selected get an empty run (their tempo changes were already read).
+     *
+     * @param builder Timeline to fill.
+     * @param parts Parts of the midi file to keep.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     */
+    public void readNotes(TimelineBuilder builder, PartSelector parts) throws InvalidMidiDataException {
+
+        for (int i = 0; i < trackOffsets.length; i++) {
+            TrackRun run = builder.newRun(parts);
+            if (parts.selectsTrack(i)) {
+                readTrack(i, run);
+            }
+        }
+    }
+
+
+    /**
+     * Decodes every selected track in parallel on the given pool,
+     * adding a run with its note events of the given parts to the given timeline.
+     * Runs are added in order of tracks, whatever order they finish in.
+     * Tracks that aren't selected get an empty run (their tempo changes were already read).
+     *
+     * @param builder Timeline to fill.
+     * @param parts Parts of the midi file to keep.
+     * @param pool Pool to decode tracks on.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     */
+    public void readNotes(TimelineBuilder builder, PartSelector parts, ForkJoinPool pool) throws InvalidMidiDataException {
+
+        List<Callable<Void>> tasks = new ArrayList<>(trackOffsets.length);
+
+        for (int i = 0; i < trackOffsets.length; i++) {
+            int track = i;
+            TrackRun run = builder.newRun(parts);
+            if (!parts.selectsTrack(track)) {
+                continue;
+            }
+            tasks.add(() -> {
+                readTrack(track, run);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> task : pool.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvalidMidiDataException("Interrupted while reading tracks");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+
+    /**
+     * Decodes a single track, sending only its note events to the given run.
+     * Tracks are independent of each other once the tempo map is known,
+     * so different tracks can be read at the same time.
+     *
+     * @param track Index of the track to read.
+     * @param run Run to fill.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     */
+    public void readTrack(int track, TrackRun run) throws InvalidMidiDataException {
+
+        new TrackReader(track).read(run);
+        run.finish();
+    }
+
+
+    /**
+     * Returns {@link #divisionType}.
+     *
+     * @return {@link #divisionType Division type}.
+     */
+    public float getDivisionType() {
+        return divisionType;
+    }
+
+
+    /**
+     * Returns {@link #resolution}.
+     *
+     * @return {@link #resolution Resolution}.
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+
+    /**
+     * Returns the number of tracks in the midi file.
+     *
+     * @return Number of tracks.
+     */
+    public int getTrackCount() {
+        return trackOffsets.length;
+    }
+
+
+    /**
+     * Returns a reader over the given track, positioned before its first event.
+     *
+     * @param track Index of the track to read.
+     *
+     * @return Track reader.
+     */
+    TrackReader getTrackReader(int track) {
+        return new TrackReader(track);
+    }
+
+
+    /**
+     * Decodes the events of a single track chunk, one event at a time.
+     */
+    class TrackReader {
+
+        /** Current position in the buffer. */
+        private int pos;
+
+        /** Position in the buffer where this track's data ends. */
+        private final int end;
+
+        /** Time-stamp of the current event (ticks). */
+        private long tick;
+
+        /** Running status - like javax.sound.midi, any status byte (including meta and sysex) is kept. */
+        private int status;
+
+
+        /**
+         * Creates a new TrackReader object.
+         *
+         * @param track Index of the track to read.
+         */
+        private TrackReader(int track) {
+            pos = trackOffsets[track];
+            end = pos + trackLengths[track];
+            tick = 0;
+            status = 0;
+        }
+
+
+        /**
+         * Reads the next byte of the track.
+         *
+         * @return Unsigned byte value.
+         *
+         * @throws InvalidMidiDataException If the track ends unexpectedly.
+         */
+        private int readUnsigned() throws InvalidMidiDataException {
+
+            if (pos >= end) {
+                throw new InvalidMidiDataException("Unexpected end of track");
+            }
+
+            return buffer.get(pos++) & 0xff;
+        }
+
+
+        /**
+         * Reads a variable-length quantity.
+         *
+         * @return Value read.
+         *
+         * @throws InvalidMidiDataException If the track ends unexpectedly.
+         */
+        private long readVarInt() throws InvalidMidiDataException {
+
+            long value = 0;
+            int b;
+
+            do {
+                b = readUnsigned();
+                value = (value << 7) + (b & 0x7f);
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+
+        /**
+         * Skips the given amount of bytes.
+         *
+         * @param length Amount of bytes to skip.
+         *
+         * @throws InvalidMidiDataException If the track ends unexpectedly.
+         */
+        private void skip(long length) throws InvalidMidiDataException {
+
+            if (length > end - pos) {
+                throw new InvalidMidiDataException("Unexpected end of track");
+            }
+
+            pos += (int) length;
+        }
+
+
+        /**
+         * Decodes every event in the track, sending them to the given sink.
+         *
+         * @param sink Receives the decoded events.
+         *
+         * @throws InvalidMidiDataException If the track is invalid.
+         */
+        void read(MidiEventSink sink) throws InvalidMidiDataException {
+
+            while (advance()) {
+                readEvent(sink);
+            }
+        }
+
+
+        /**
+         * Moves on to the next event, reading its delta-time.
+         *
+         * @return True if there is a next event, False if the track has ended.
+         *
+         * @throws InvalidMidiDataException If the track ends unexpectedly.
+         */
+        boolean advance() throws InvalidMidiDataException {
+
+            if (pos >= end) {
+                return false;
+            }
+
+            tick += readVarInt();
+            return true;
+        }
+
+
+        /**
+         * Returns {@link #tick}.
+         *
+         * @return {@link #tick Time-stamp} of the current event (ticks).
+         */
+        long getTick() {
+            return tick;
+        }
+
+
+        /**
+         * Returns the current position in the track.
+         *
+         * @return Position in the buffer.
+         */
+        int getPosition() {
+            return pos;
+        }
+
+
+        /**
+         * Returns {@link #status}.
+         *
+         * @return Running {@link #status}.
+         */
+        int getStatus() {
+            return status;
+        }
+
+
+        /**
+         * Moves the reader back (or forth) to a state it was in before.
+         *
+         * @param pos Position in the buffer.
+         * @param tick Time-stamp of the current event (ticks).
+         * @param status Running status.
+         */
+        void restore(int pos, long tick, int status) {
+            this.pos = pos;
+            this.tick = tick;
+            this.status = status;
+        }
+
+
+        /**
+         * Decodes the current event, sending it to the given sink.
+         * Must be called once after each successful {@link #advance()}.
+         *
+         * @param sink Receives the decoded event.
+         *
+         * @throws InvalidMidiDataException If the event is invalid.
+         */
+        void readEvent(MidiEventSink sink) throws InvalidMidiDataException {
+
+            int data1 = -1;
+            int value = readUnsigned();
+
+            if (value >= 0x80) {
+                status = value;
+            } else {
+                data1 = value;
+            }
+
+            switch (status & 0xf0) {
+
+                // two data bytes
+                case 0x80:
+                case 0x90:
+                case 0xa0:
+                case 0xb0:
+                case 0xe0: {
+
+                    if (data1 == -1) data1 = readUnsigned();
+                    int data2 = readUnsigned();
+
+                    shortMessageHandler(sink, status, data1, data2, tick);
+                    break;
+                }
+
+                // one data byte
+                case 0xc0:
+                case 0xd0: {
+
+                    if (data1 == -1) readUnsigned();
+                    break;
+                }
+
+                case 0xf0: {
+
+                    if (status == SYSEX || status == SYSEX_ESCAPE) {
+                        skip(readVarInt());
+                    }
+                    else if (status == META) {
+
+                        int type = readUnsigned();
+                        if (type >= 0x80) {
+                            throw new InvalidMidiDataException("Invalid meta event with type " + type);
+                        }
+
+                        long length = readVarInt();
+                        int offset = pos;
+                        skip(length);
+
+                        // nothing after this event belongs to the track
+                        if (type == END_OF_TRACK) {
+                            pos = end;
+                            return;
+                        }
+
+                        metaMessageHandler(sink, type, buffer, offset, (int) length, tick);
+                    }
+                    else {
+                        throw new InvalidMidiDataException("Invalid status byte: " + status);
+                    }
+                    break;
+                }
+
+                default:
+                    throw new InvalidMidiDataException("Invalid status byte: " + status);
+            }
+        }
+    }
+}
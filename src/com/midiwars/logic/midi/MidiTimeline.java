@@ -1,36 +1,54 @@
 package com.midiwars.logic.midi;
 
-import javax.sound.midi.*;
-import java.io.File;
+import javax.sound.midi.InvalidMidiDataException;
 import java.io.IOException;
-import java.util.*;
-
-import static com.midiwars.logic.midi.MetaMessageHandler.metaMessageHandler;
-import static com.midiwars.logic.midi.ShortMessageHandler.shortMessageHandler;
-import static javax.sound.midi.Sequence.*;
-import static javax.sound.midi.ShortMessage.NOTE_OFF;
-import static javax.sound.midi.ShortMessage.NOTE_ON;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Timeline of a given midi file.
  * Holds information about all the notes played, their start time and duration.
+ * Events are stored column by column in primitive arrays, in ascendant order of timestamps.
+ * Every event remembers the track and channel it came from, so that a single parse
+ * is enough to {@link #select(PartSelector) select} any part of the song afterwards.
+ * Timelines are immutable, so a single instance can be safely shared between threads.
  */
-public class MidiTimeline {
+public class MidiTimeline implements Timeline {
+
+    /* --- DEFINES --- */
+
+    /** Files with at least this many tracks have their tracks decoded in parallel. */
+    public static final int PARALLEL_MIN_TRACKS = 4;
+
 
     /* --- ATTRIBUTES --- */
 
-    /** Sequence present in midi file. */
-    private Sequence sequence;
+    /** Timing division type of the midi file (PPQ or one of the SMPTE types). */
+    private final float divisionType;
 
-    /** Notes played. */
-    private ArrayList<NoteEvent> timeline;
+    /** Timing resolution of the midi file (ticks per quarter-note or ticks per frame). */
+    private final int resolution;
 
-    /**
-     * Maps tempo (QPM) changes (SET_TEMPO midi message) to the instant (tick) it happens.
-     * Note that tempo is mapped as QPM (quarter-note per minute) and not the usual BPM (beat per minute).
-     * This makes it so that all time signatures are handled the same way.
-     */
-    private TreeMap<Long, Double> tempo;
+    /** Tempo map of the midi file, used to convert ticks to time. */
+    private final TempoMap tempoMap;
+
+    /** Moment in time each event was generated (µs). */
+    private final long[] timestamps;
+
+    /** How long each note was played for (µs). 0 for NOTE_OFF events. */
+    private final int[] durations;
+
+    /** NOTE_ON (0x90) or NOTE_OFF (0x80), for each event. */
+    private final byte[] types;
+
+    /** Key number [0-127] of each event. */
+    private final byte[] keys;
+
+    /** Track of each event. */
+    private final short[] tracks;
+
+    /** Channel number [0-15] of each event. */
+    private final byte[] channels;
 
 
     /* --- METHODS --- */
@@ -44,218 +62,363 @@ public class MidiTimeline {
      * @throws IOException Can't open file.
      */
     public MidiTimeline(String filepath) throws InvalidMidiDataException, IOException {
+        this(filepath, PartSelector.ALL);
+    }
+
 
-        sequence = null;
-        timeline = new ArrayList<>();
-        tempo = new TreeMap<>();
+    /**
+     * Creates a new MidiTimeline object with only the events of the given parts.
+     * Events of other parts are dropped as soon as they're decoded
+     * (their tracks are still read, since they may change the tempo).
+     *
+     * @param filepath Path to midi file.
+     * @param parts Parts of the midi file to keep.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     * @throws IOException Can't open file.
+     */
+    public MidiTimeline(String filepath, PartSelector parts) throws InvalidMidiDataException, IOException {
 
         // read the midi file and construct its timeline
-        constructTimeline(filepath);
+        this(constructTimeline(filepath, parts));
     }
 
 
     /**
-     * Sorts the timeline in ascendant order of timestamps.
+     * Creates a new MidiTimeline object, copying the given one.
+     *
+     * @param midiTimeline Timeline to copy.
      */
-    private void sort() {
+    private MidiTimeline(MidiTimeline midiTimeline) {
+
+        this(midiTimeline.timestamps, midiTimeline.durations, midiTimeline.types, midiTimeline.keys,
+                midiTimeline.tracks, midiTimeline.channels, midiTimeline.tempoMap, midiTimeline.divisionType, midiTimeline.resolution);
+    }
+
 
-        timeline.sort((n1, n2) -> {
-            if (n1.getTimestamp() == n2.getTimestamp()) return n1.compareTo(n2);
-            else return Double.compare(n1.getTimestamp(), n2.getTimestamp());
-        });
+    /**
+     * Creates a new MidiTimeline object from the given columns,
+     * which must already be sorted and must not be modified afterwards.
+     *
+     * @param timestamps Moment in time each event was generated (µs).
+     * @param durations How long each note was played for (µs).
+     * @param types NOTE_ON (0x90) or NOTE_OFF (0x80), for each event.
+     * @param keys Key number of each event.
+     * @param tracks Track of each event.
+     * @param channels Channel number of each event.
+     * @param tempoMap Tempo map of the midi file.
+     * @param divisionType Timing division type of the midi file.
+     * @param resolution Timing resolution of the midi file.
+     */
+    MidiTimeline(long[] timestamps, int[] durations, byte[] types, byte[] keys, short[] tracks, byte[] channels, TempoMap tempoMap, float divisionType, int resolution) {
+
+        this.timestamps = timestamps;
+        this.durations = durations;
+        this.types = types;
+        this.keys = keys;
+        this.tracks = tracks;
+        this.channels = channels;
+        this.tempoMap = tempoMap;
+        this.divisionType = divisionType;
+        this.resolution = resolution;
     }
 
 
     /**
      * Reads the contents of the given midi file
-     * and constructs its timeline.
+     * and constructs the timeline of the given parts.
      *
      * @param filepath Path to midi file.
+     * @param parts Parts of the midi file to keep.
+     *
+     * @return The timeline.
      *
      * @throws InvalidMidiDataException midi file is invalid.
      * @throws IOException Can't open file.
      */
-    public void constructTimeline(String filepath) throws InvalidMidiDataException, IOException {
+    private static MidiTimeline constructTimeline(String filepath, PartSelector parts) throws InvalidMidiDataException, IOException {
+
+        // map the midi file and read its header
+        MidiFileReader reader = new MidiFileReader(filepath);
+        TimelineBuilder builder = new TimelineBuilder();
+
+        // the whole tempo map is needed before any note can be timed
+        reader.readTempos(builder);
+        builder.freezeTempos(reader.getDivisionType(), reader.getResolution());
+
+        // decode every track into its own run, already in order
+        if (reader.getTrackCount() >= PARALLEL_MIN_TRACKS && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            reader.readNotes(builder, parts, ForkJoinPool.commonPool());
+        } else {
+            reader.readNotes(builder, parts);
+        }
+
+        return builder.build(reader.getDivisionType(), reader.getResolution());
+    }
 
-        // read Sequence from midi file
-        sequence = MidiSystem.getSequence(new File(filepath));
 
-        // iterate through every Track
-        for (Track track : sequence.getTracks()) {
+    /**
+     * Returns the number of events in the timeline.
+     *
+     * @return Number of events.
+     */
+    public int size() {
+        return timestamps.length;
+    }
 
-            // iterate through every MidiEvent
-            for (int i = 0; i < track.size(); i++) {
 
-                // get current MidiEvent
-                MidiEvent event = track.get(i);
+    @Override
+    public boolean has(int i) {
+        return i >= 0 && i < timestamps.length;
+    }
 
-                // get event time-stamp (ticks)
-                long tick = event.getTick();
 
-                // get current MidiMessage
-                MidiMessage message = event.getMessage();
+    /**
+     * Returns the first event generated at or after the given moment in time.
+     *
+     * @param micros Moment in time (µs).
+     *
+     * @return Event index, the number of events if there's none.
+     */
+    public int indexAt(long micros) {
 
-                // case ShortMessage
-                if (message instanceof ShortMessage) {
-                    shortMessageHandler(this, (ShortMessage) message, tick);
-                }
+        int low = 0;
+        int high = timestamps.length;
 
-                // case MetaMessage
-                else if (message instanceof MetaMessage) {
-                   metaMessageHandler(this, (MetaMessage) message, tick);
-                }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < micros) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
         }
 
-        // in case there are multiple tracks in the sequence,
-        // timeline wouldn't be sorted without this call
-        sort();
+        return low;
+    }
+
+
+    /**
+     * Returns the type of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return NOTE_ON (0x90) or NOTE_OFF (0x80).
+     */
+    @Override
+    public int getType(int i) {
+        return types[i] & 0xff;
+    }
+
+
+    /**
+     * Returns the key number of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Key number [0-127].
+     */
+    @Override
+    public int getKey(int i) {
+        return keys[i];
     }
 
 
     /**
-     * Adds an entry to the tempo map.
+     * Returns the moment in time the given event was generated.
+     *
+     * @param i Event index.
      *
-     * @param tick Instant in time (ticks) this tempo change happened.
-     * @param tempo New tempo.
+     * @return Timestamp (ms).
      */
-    public void addTempo(long tick, double tempo) {
-        this.tempo.put(tick, tempo);
+    @Override
+    public int getTimestamp(int i) {
+        return (int) (timestamps[i] / 1000);
     }
 
 
     /**
-     * Adds note event to timeline.
+     * Returns the moment in time the given event was generated.
      *
-     * @param type NOTE_ON (0x90) or NOTE_OFF (0x80).
-     * @param key Key number [0-127].
-     * @param tick MidiEvent time-stamp (ticks).
+     * @param i Event index.
+     *
+     * @return Timestamp (µs).
      */
-    public void addNoteEvent(int type, int key, long tick) {
+    @Override
+    public long getTimestampMicros(int i) {
+        return timestamps[i];
+    }
 
-        int timestamp = ticksToMilliseconds(tick);
 
-        // add note event
-        timeline.add(new NoteEvent(
-                type,
-                key,
-                timestamp
-        ));
+    /**
+     * Returns how long the given note was played for.
+     *
+     * @param i Event index.
+     *
+     * @return Duration (ms). 0 for NOTE_OFF events.
+     */
+    @Override
+    public int getDuration(int i) {
+        return durations[i] / 1000;
+    }
 
-        // key released
-        if (type == NOTE_OFF) {
 
-            // search respective NOTE_ON event
-            for (int i = timeline.size() - 1; i >= 0; i--) {
+    /**
+     * Returns how long the given note was played for.
+     *
+     * @param i Event index.
+     *
+     * @return Duration (µs). 0 for NOTE_OFF events.
+     */
+    @Override
+    public int getDurationMicros(int i) {
+        return durations[i];
+    }
 
-                NoteEvent noteEvent = timeline.get(i);
 
-                // set duration of respective NOTE_ON event
-                if (noteEvent.getKey() == key && noteEvent.getType() == NOTE_ON && noteEvent.getDuration() == 0) {
-                    noteEvent.setDuration(timestamp - noteEvent.getTimestamp());
-                }
-            }
-        }
+    /**
+     * Returns the track the given event came from.
+     *
+     * @param i Event index.
+     *
+     * @return Track index.
+     */
+    public int getTrack(int i) {
+        return tracks[i] & 0xffff;
     }
 
 
     /**
-     * Returns an ordered list of tick-tempos between the given time frame.
+     * Returns the channel the given event came from.
      *
-     * @param ticki Lower limit of time frame to look at.
-     * @param tickf Upper limit of time frame to look at.
+     * @param i Event index.
      *
-     * @return  List of tempos.
+     * @return Channel number [0-15].
      */
-    public ArrayList<Map.Entry<Long, Double>> getTempos(long ticki, long tickf) {
-
-        return new ArrayList<>(
-                tempo.subMap(
-                        tempo.floorKey(ticki),
-                        true,
-                        tickf,
-                        true
-                ).entrySet()
-        );
+    public int getChannel(int i) {
+        return channels[i];
     }
 
 
     /**
-     * Converts ticks to milliseconds,
-     * taking into account division type
-     * and tempo changes (if applicable).
+     * Returns a timeline with only the events of the given parts,
+     * in the same order (durations don't change, since notes are paired within their own track and channel).
      *
-     * @param tick Ticks.
+     * @param parts Tracks and channels to keep.
      *
-     * @return Milliseconds.
+     * @return The selected timeline, or this one if every part is selected.
      */
-    private int ticksToMilliseconds(long tick) {
+    public MidiTimeline select(PartSelector parts) {
 
-        int ms = 0;
+        if (parts.isAll()) {
+            return this;
+        }
 
-        float division = sequence.getDivisionType();
-        int resolution = sequence.getResolution();
+        int size = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (parts.selects(getTrack(i), channels[i])) {
+                size++;
+            }
+        }
 
-        if (division == PPQ) {
+        long[] selectedTimestamps = new long[size];
+        int[] selectedDurations = new int[size];
+        byte[] selectedTypes = new byte[size];
+        byte[] selectedKeys = new byte[size];
+        short[] selectedTracks = new short[size];
+        byte[] selectedChannels = new byte[size];
+
+        for (int i = 0, j = 0; j < size; i++) {
+            if (parts.selects(getTrack(i), channels[i])) {
+                selectedTimestamps[j] = timestamps[i];
+                selectedDurations[j] = durations[i];
+                selectedTypes[j] = types[i];
+                selectedKeys[j] = keys[i];
+                selectedTracks[j] = tracks[i];
+                selectedChannels[j] = channels[i];
+                j++;
+            }
+        }
 
-            ArrayList<Map.Entry<Long, Double>> tempos = getTempos(0, tick);
+        return new MidiTimeline(selectedTimestamps, selectedDurations, selectedTypes, selectedKeys,
+                selectedTracks, selectedChannels, tempoMap, divisionType, resolution);
+    }
 
-            for (int i = 0; i < tempos.size(); i++) {
 
-                Map.Entry<Long, Double> entry = tempos.get(i);
+    /**
+     * Pushes every event of the timeline, in order, to the given sink.
+     *
+     * @param sink Sink receiving the events.
+     */
+    public void forEach(TimelineSink sink) {
 
-                // how many ticks passed
-                long deltaTick;
+        for (int i = 0; i < timestamps.length; i++) {
+            sink.accept(timestamps[i], durations[i], getType(i), keys[i], getTrack(i), channels[i]);
+        }
 
-                if (tempos.size() == 1) {
-                    deltaTick = tick;
-                } else if (i == tempos.size() - 1) {
-                    deltaTick = tick - entry.getKey();
-                } else {
-                    Map.Entry<Long, Double> nextEntry = tempos.get(i + 1);
-                    deltaTick = nextEntry.getKey() - entry.getKey();
-                }
+        sink.end();
+    }
 
-                double ticksPerSecond = resolution * (entry.getValue() / 60.0);
 
-                // duration of each tick (ms)
-                double tickSize = (1.0 / ticksPerSecond) * 1000;
+    /**
+     * Runs the timeline through the given stages, in order.
+     * The whole chain is evaluated in a single pass, and only the final timeline is built.
+     *
+     * @param stages Stages to run through.
+     *
+     * @return The transformed timeline, or this one if there are no stages.
+     */
+    public MidiTimeline transform(List<TimelineTransform> stages) {
 
-                ms += (int) (deltaTick * tickSize);
-            }
+        if (stages.isEmpty()) {
+            return this;
         }
-        else {
 
-            float framesPerSecond;
+        TimelineCollector collector = new TimelineCollector(this);
+        forEach(TimelineTransform.chain(stages, collector));
+
+        return collector.build();
+    }
 
-            if (division == SMPTE_24) {
-                framesPerSecond = 24;
-            } else if (division == SMPTE_25) {
-                framesPerSecond = 25;
-            } else if (division == SMPTE_30) {
-                framesPerSecond = 30;
-            } else {
-                framesPerSecond = (float) 29.97;
-            }
 
-            double ticksPerSecond = resolution * framesPerSecond;
+    /**
+     * Returns a view of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Note event.
+     */
+    public NoteEvent getNoteEvent(int i) {
+        return new NoteEvent(getType(i), getKey(i), timestamps[i], durations[i]);
+    }
 
-            // duration of each tick (ms)
-            double tickSize = (1.0 / ticksPerSecond) * 1000;
 
-            ms += (int) (tick * tickSize);
-        }
+    /**
+     * Returns {@link #tempoMap}.
+     *
+     * @return {@link #tempoMap Tempo map}.
+     */
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+
 
-        return ms;
+    /**
+     * Returns {@link #divisionType}.
+     *
+     * @return {@link #divisionType Division type}.
+     */
+    public float getDivisionType() {
+        return divisionType;
     }
 
 
     /**
-     * Returns {@link #timeline}.
+     * Returns {@link #resolution}.
      *
-     * @return {@link #timeline Timeline}.
+     * @return {@link #resolution Resolution}.
      */
-    public ArrayList<NoteEvent> getTimeline() {
-        return timeline;
+    public int getResolution() {
+        return resolution;
     }
 }
@@ -4,6 +4,7 @@ import static javax.sound.midi.ShortMessage.NOTE_ON;
 
 /**
  * A midi event about a keypress (NOTE_ON) or keyrelease (NOTE_OFF).
+ * Immutable view of a single event of a {@link MidiTimeline}.
  */
 public class NoteEvent implements Comparable<NoteEvent> {
     /* --- ATTRIBUTES --- */
@@ -14,11 +15,11 @@ public class NoteEvent implements Comparable<NoteEvent> {
     /** Number of the key that originated the event [0-127]. */
     private final int key;
 
-    /** Moment in time this event was generated (ms). */
-    private final int timestamp;
+    /** Moment in time this event was generated (µs). */
+    private final long timestamp;
 
-    /** How long the note was played for (ms). */
-    private int duration;
+    /** How long the note was played for (µs). */
+    private final int duration;
 
 
     /* --- METHODS --- */
@@ -28,14 +29,15 @@ public class NoteEvent implements Comparable<NoteEvent> {
      *
      * @param type NOTE_ON (0x90) or NOTE_OFF (0x80).
      * @param key Key number [0-127].
-     * @param timestamp Moment in time this event was generated (ms).
+     * @param timestamp Moment in time this event was generated (µs).
+     * @param duration How long the note was played for (µs).
      */
-    public NoteEvent(int type, int key, int timestamp) {
+    public NoteEvent(int type, int key, long timestamp, int duration) {
 
         this.type = type;
         this.key = key;
         this.timestamp = timestamp;
-        duration = 0;
+        this.duration = duration;
     }
 
 
@@ -44,7 +46,7 @@ public class NoteEvent implements Comparable<NoteEvent> {
         if (timestamp == e.timestamp) {
             return Integer.compare(key, e.key);
         } else {
-            return Integer.compare(timestamp, e.timestamp);
+            return Long.compare(timestamp, e.timestamp);
         }
     }
 
@@ -52,9 +54,9 @@ public class NoteEvent implements Comparable<NoteEvent> {
     @Override
     public String toString() {
         if (type == NOTE_ON) {
-            return "NOTE_ON: " + timestamp + ", KEY: " + key;
+            return "NOTE_ON: " + getTimestamp() + ", KEY: " + key;
         } else {
-            return "NOTE_OFF: " + timestamp + ", KEY: " + key;
+            return "NOTE_OFF: " + getTimestamp() + ", KEY: " + key;
         }
     }
 
@@ -70,11 +72,21 @@ public class NoteEvent implements Comparable<NoteEvent> {
 
 
     /**
-     * Returns {@link #timestamp}.
+     * Returns {@link #timestamp} in milliseconds.
      *
-     * @return {@link #timestamp Timestamp}.
+     * @return {@link #timestamp Timestamp} (ms).
      */
     public int getTimestamp() {
+        return (int) (timestamp / 1000);
+    }
+
+
+    /**
+     * Returns {@link #timestamp}.
+     *
+     * @return {@link #timestamp Timestamp} (µs).
+     */
+    public long getTimestampMicros() {
         return timestamp;
     }
 
@@ -90,22 +102,22 @@ public class NoteEvent implements Comparable<NoteEvent> {
 
 
     /**
-     * Returns {@link #duration}.
+     * Returns {@link #duration} in milliseconds.
      *
-     * @return {@link #duration Duration}.
+     * @return {@link #duration Duration} (ms).
      */
     public int getDuration() {
-        return duration;
+        return duration / 1000;
     }
 
 
     /**
-     * Sets {@link #duration}.
+     * Returns {@link #duration}.
      *
-     * @param duration New duration.
+     * @return {@link #duration Duration} (µs).
      */
-    public void setDuration(int duration) {
-        this.duration = duration;
+    public int getDurationMicros() {
+        return duration;
     }
 
 }
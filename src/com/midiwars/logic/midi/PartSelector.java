@@ -0,0 +1,206 @@
+package com.midiwars.logic.midi;
+
+import com.midiwars.util.MyExceptions.InvalidOptionException;
+
+import java.util.BitSet;
+
+/**
+ * Selects which parts (tracks and channels) of a midi file are played,
+ * e.g. only the melody of a band arrangement, leaving the drums (channel 10) out.
+ * Tracks and channels are numbered from 1 when written, and from 0 internally.
+ */
+public class PartSelector {
+
+    /* --- DEFINES --- */
+
+    /** Number of channels of a midi file. */
+    public static final int CHANNELS = 16;
+
+    /** Every channel. */
+    public static final int ALL_CHANNELS = (1 << CHANNELS) - 1;
+
+    /** Selects every track and channel. */
+    public static final PartSelector ALL = new PartSelector(null, ALL_CHANNELS);
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Selected tracks. Null if every track is selected. */
+    private final BitSet tracks;
+
+    /** Selected channels, one bit per channel. */
+    private final int channels;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new PartSelector object.
+     *
+     * @param tracks Selected tracks, null to select every track.
+     * @param channels Selected channels, one bit per channel.
+     */
+    public PartSelector(BitSet tracks, int channels) {
+        this.tracks = (tracks == null) ? null : (BitSet) tracks.clone();
+        this.channels = channels & ALL_CHANNELS;
+    }
+
+
+    /**
+     * Parses the given lists of tracks and channels.
+     * Lists are comma separated numbers or ranges, e.g. "1,3-5".
+     *
+     * @param tracks List of tracks, null to select every track.
+     * @param channels List of channels, null to select every channel.
+     *
+     * @return The selector.
+     *
+     * @throws InvalidOptionException If a list is invalid.
+     */
+    public static PartSelector parse(String tracks, String channels) throws InvalidOptionException {
+
+        BitSet selectedTracks = (tracks == null) ? null : parseList(tracks, 65535);
+
+        int selectedChannels = ALL_CHANNELS;
+        if (channels != null) {
+            long[] words = parseList(channels, CHANNELS).toLongArray();
+            selectedChannels = (words.length == 0) ? 0 : (int) words[0];
+        }
+
+        return new PartSelector(selectedTracks, selectedChannels);
+    }
+
+
+    /**
+     * Parses a list of numbers and ranges, numbered from 1.
+     *
+     * @param list Comma separated numbers or ranges.
+     * @param max Highest number allowed.
+     *
+     * @return The numbers, from 0.
+     *
+     * @throws InvalidOptionException If the list is invalid.
+     */
+    private static BitSet parseList(String list, int max) throws InvalidOptionException {
+
+        BitSet bits = new BitSet();
+
+        try {
+
+            for (String item : list.split(",")) {
+
+                String[] range = item.trim().split("-", 2);
+                int from = Integer.parseInt(range[0].trim());
+                int to = (range.length == 1) ? from : Integer.parseInt(range[1].trim());
+
+                if (from < 1 || to > max || from > to) {
+                    throw new InvalidOptionException();
+                }
+
+                bits.set(from - 1, to);
+            }
+
+        } catch (NumberFormatException e) {
+            throw new InvalidOptionException();
+        }
+
+        return bits;
+    }
+
+
+    /**
+     * Checks if the given track is selected.
+     *
+     * @param track Track index.
+     *
+     * @return True if selected, False otherwise.
+     */
+    public boolean selectsTrack(int track) {
+        return tracks == null || tracks.get(track);
+    }
+
+
+    /**
+     * Checks if events of the given track and channel are selected.
+     *
+     * @param track Track index.
+     * @param channel Channel number [0-15].
+     *
+     * @return True if selected, False otherwise.
+     */
+    public boolean selects(int track, int channel) {
+        return (channels & (1 << channel)) != 0 && selectsTrack(track);
+    }
+
+
+    /**
+     * Checks if every track and channel is selected.
+     *
+     * @return True if nothing is left out, False otherwise.
+     */
+    public boolean isAll() {
+        return tracks == null && channels == ALL_CHANNELS;
+    }
+
+
+    /**
+     * Writes the given numbers as a list of ranges, numbered from 1.
+     *
+     * @param bits The numbers, from 0.
+     *
+     * @return List of ranges.
+     */
+    private static String toList(BitSet bits) {
+
+        StringBuilder list = new StringBuilder();
+
+        for (int from = bits.nextSetBit(0); from >= 0; from = bits.nextSetBit(from)) {
+
+            int to = bits.nextClearBit(from);
+
+            list.append(list.length() == 0 ? "" : ",").append(from + 1);
+            if (to - from > 1) {
+                list.append('-').append(to);
+            }
+
+            from = to;
+        }
+
+        return list.toString();
+    }
+
+
+    @Override
+    public String toString() {
+
+        StringBuilder str = new StringBuilder();
+
+        if (tracks != null) {
+            str.append("track=").append(toList(tracks));
+        }
+
+        if (channels != ALL_CHANNELS) {
+            str.append(str.length() == 0 ? "" : " ").append("channel=").append(toList(BitSet.valueOf(new long[] {channels})));
+        }
+
+        return str.toString();
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (!(o instanceof PartSelector)) {
+            return false;
+        }
+
+        PartSelector other = (PartSelector) o;
+        return channels == other.channels && (tracks == null ? other.tracks == null : tracks.equals(other.tracks));
+    }
+
+
+    @Override
+    public int hashCode() {
+        return 31 * channels + (tracks == null ? 0 : tracks.hashCode());
+    }
+}
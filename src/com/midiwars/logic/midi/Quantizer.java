@@ -0,0 +1,366 @@
+package com.midiwars.logic.midi;
+
+import java.util.Arrays;
+
+import static com.midiwars.logic.midi.Timeline.KEYS;
+import static javax.sound.midi.Sequence.PPQ;
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Snaps notes to a rhythmic grid (e.g. sixteenth notes), following the tempo map of the midi file,
+ * so that notes a few milliseconds apart (common in recorded performances) start at the same instant.
+ * Notes of the same key that end up starting together are merged into the longest one.
+ * Both ends of each note are snapped: its NOTE_OFF events are generated anew,
+ * never less than a grid step after the note starts.
+ * Runs in a single pass, holding back only the notes starting at the current instant
+ * and the NOTE_OFF events still to come.
+ * Timestamps must be those of the midi file (ie no earlier stage moved them), since the grid follows its tempo map.
+ */
+public class Quantizer implements TimelineTransform {
+
+    /* --- DEFINES --- */
+
+    /** End of notes that never stop sounding (no NOTE_OFF in the midi file). */
+    private static final long NO_END = Long.MAX_VALUE;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Tempo map of the midi file. */
+    private final TempoMap tempoMap;
+
+    /** Length of a grid step (ticks). */
+    private final double step;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new Quantizer object.
+     *
+     * @param midiTimeline Timeline the events come from (provides the tempo map).
+     * @param division Grid steps per whole note (e.g. 16 for sixteenth notes). Must be positive.
+     */
+    public Quantizer(MidiTimeline midiTimeline, int division) {
+
+        if (division <= 0) {
+            throw new IllegalArgumentException("Grid division must be positive.");
+        }
+
+        tempoMap = midiTimeline.getTempoMap();
+
+        // SMPTE timing has no quarter-notes, so a quarter-note at the default tempo is assumed
+        double ticksPerQuarter;
+        if (midiTimeline.getDivisionType() == PPQ) {
+            ticksPerQuarter = midiTimeline.getResolution();
+        } else {
+            ticksPerQuarter = tempoMap.toTicks(TempoMap.DEFAULT_MSPQ);
+        }
+
+        step = 4 * ticksPerQuarter / division;
+    }
+
+
+    @Override
+    public TimelineSink apply(TimelineSink downstream) {
+        return new Grid(downstream);
+    }
+
+
+    /**
+     * Snaps the given time to the grid.
+     *
+     * @param micros Time (µs).
+     *
+     * @return Snapped time (µs).
+     */
+    private long snap(long micros) {
+        return tempoMap.toMicroseconds(Math.round(Math.round(tempoMap.toTicks(micros) / step) * step));
+    }
+
+
+    /**
+     * Returns the grid point right after the given one.
+     *
+     * @param micros Time of a grid point (µs).
+     *
+     * @return Time of the next grid point (µs).
+     */
+    private long next(long micros) {
+        return tempoMap.toMicroseconds(Math.round((Math.round(tempoMap.toTicks(micros) / step) + 1) * step));
+    }
+
+
+    /**
+     * Snaps the events of a single pass.
+     */
+    private class Grid implements TimelineSink {
+
+        /** Sink of the next stage. */
+        private final TimelineSink downstream;
+
+        /** Instant the held back notes start at (µs). -1 if there are none. */
+        private long instant;
+
+        /** For each key, the note starting at {@link #instant} (index in the columns below), -1 if none. */
+        private final int[] notes;
+
+        /** Keys of the notes starting at {@link #instant}. */
+        private int[] noteKeys;
+
+        /** Tracks of the notes starting at {@link #instant}. */
+        private int[] noteTracks;
+
+        /** Channels of the notes starting at {@link #instant}. */
+        private int[] noteChannels;
+
+        /** Snapped ends of the notes starting at {@link #instant} (µs). */
+        private long[] noteEnds;
+
+        /** Number of notes starting at {@link #instant}. */
+        private int noteCount;
+
+        /** NOTE_OFF events still to come, as a min-heap ordered by timestamp, key, then track. */
+        private long[] offTimestamps;
+
+        /** Keys of the NOTE_OFF events still to come. */
+        private int[] offKeys;
+
+        /** Tracks of the NOTE_OFF events still to come. */
+        private int[] offTracks;
+
+        /** Channels of the NOTE_OFF events still to come. */
+        private int[] offChannels;
+
+        /** Number of NOTE_OFF events still to come. */
+        private int offCount;
+
+
+        /**
+         * Creates a new Grid object.
+         *
+         * @param downstream Sink of the next stage.
+         */
+        Grid(TimelineSink downstream) {
+
+            this.downstream = downstream;
+            instant = -1;
+            notes = new int[KEYS];
+            Arrays.fill(notes, -1);
+            noteKeys = new int[16];
+            noteTracks = new int[16];
+            noteChannels = new int[16];
+            noteEnds = new long[16];
+            noteCount = 0;
+            offTimestamps = new long[16];
+            offKeys = new int[16];
+            offTracks = new int[16];
+            offChannels = new int[16];
+            offCount = 0;
+        }
+
+
+        @Override
+        public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+
+            // NOTE_OFF events are generated from the snapped notes
+            if (type != NOTE_ON) {
+                return;
+            }
+
+            long start = snap(timestamp);
+            long end = NO_END;
+            if (duration > 0) {
+                end = Math.max(snap(timestamp + duration), next(start));
+            }
+
+            // every note of the previous instant is known
+            if (start != instant) {
+                flush();
+                instant = start;
+            }
+
+            // merge notes of the same key
+            int note = notes[key];
+            if (note >= 0) {
+                noteEnds[note] = Math.max(noteEnds[note], end);
+                return;
+            }
+
+            if (noteCount == noteKeys.length) {
+                noteKeys = Arrays.copyOf(noteKeys, 2 * noteCount);
+                noteTracks = Arrays.copyOf(noteTracks, 2 * noteCount);
+                noteChannels = Arrays.copyOf(noteChannels, 2 * noteCount);
+                noteEnds = Arrays.copyOf(noteEnds, 2 * noteCount);
+            }
+
+            notes[key] = noteCount;
+            noteKeys[noteCount] = key;
+            noteTracks[noteCount] = track;
+            noteChannels[noteCount] = channel;
+            noteEnds[noteCount] = end;
+            noteCount++;
+        }
+
+
+        @Override
+        public void end() {
+
+            flush();
+
+            while (offCount > 0) {
+                release();
+            }
+
+            downstream.end();
+        }
+
+
+        /**
+         * Pushes down the notes starting at the current {@link #instant},
+         * after every NOTE_OFF event up to that instant.
+         */
+        private void flush() {
+
+            if (noteCount == 0) {
+                return;
+            }
+
+            // notes are released before being pressed again
+            while (offCount > 0 && offTimestamps[0] <= instant) {
+                release();
+            }
+
+            // in order of keys
+            for (int key = 0; key < KEYS; key++) {
+
+                int note = notes[key];
+                if (note < 0) {
+                    continue;
+                }
+
+                long end = noteEnds[note];
+                int duration = (end == NO_END) ? 0 : (int) Math.min(end - instant, Integer.MAX_VALUE);
+                downstream.accept(instant, duration, NOTE_ON, key, noteTracks[note], noteChannels[note]);
+
+                if (end != NO_END) {
+                    push(end, key, noteTracks[note], noteChannels[note]);
+                }
+
+                notes[key] = -1;
+            }
+
+            noteCount = 0;
+        }
+
+
+        /**
+         * Adds a NOTE_OFF event to the heap.
+         *
+         * @param timestamp Timestamp (µs).
+         * @param key Key number.
+         * @param track Track.
+         * @param channel Channel number.
+         */
+        private void push(long timestamp, int key, int track, int channel) {
+
+            if (offCount == offTimestamps.length) {
+                offTimestamps = Arrays.copyOf(offTimestamps, 2 * offCount);
+                offKeys = Arrays.copyOf(offKeys, 2 * offCount);
+                offTracks = Arrays.copyOf(offTracks, 2 * offCount);
+                offChannels = Arrays.copyOf(offChannels, 2 * offCount);
+            }
+
+            // sift up
+            int i = offCount++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (compare(parent, timestamp, key, track) <= 0) {
+                    break;
+                }
+                set(i, parent);
+                i = parent;
+            }
+
+            offTimestamps[i] = timestamp;
+            offKeys[i] = key;
+            offTracks[i] = track;
+            offChannels[i] = channel;
+        }
+
+
+        /**
+         * Pushes down the earliest NOTE_OFF event, removing it from the heap.
+         */
+        private void release() {
+
+            downstream.accept(offTimestamps[0], 0, NOTE_OFF, offKeys[0], offTracks[0], offChannels[0]);
+
+            // move the last event to the top and sift it down
+            int last = --offCount;
+            long timestamp = offTimestamps[last];
+            int key = offKeys[last];
+            int track = offTracks[last];
+            int channel = offChannels[last];
+
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= offCount) {
+                    break;
+                }
+                if (child + 1 < offCount && compare(child + 1, offTimestamps[child], offKeys[child], offTracks[child]) < 0) {
+                    child++;
+                }
+                if (compare(child, timestamp, key, track) >= 0) {
+                    break;
+                }
+                set(i, child);
+                i = child;
+            }
+
+            offTimestamps[i] = timestamp;
+            offKeys[i] = key;
+            offTracks[i] = track;
+            offChannels[i] = channel;
+        }
+
+
+        /**
+         * Copies a NOTE_OFF event of the heap to another position.
+         *
+         * @param to Destination position.
+         * @param from Source position.
+         */
+        private void set(int to, int from) {
+            offTimestamps[to] = offTimestamps[from];
+            offKeys[to] = offKeys[from];
+            offTracks[to] = offTracks[from];
+            offChannels[to] = offChannels[from];
+        }
+
+
+        /**
+         * Compares a NOTE_OFF event of the heap to the given one, by timestamp, key, then track.
+         *
+         * @param i Position of the event in the heap.
+         * @param timestamp Timestamp of the other event.
+         * @param key Key of the other event.
+         * @param track Track of the other event.
+         *
+         * @return A negative integer, zero, or a positive integer as the event of the heap
+         *         is less than, equal to, or greater than the other one.
+         */
+        private int compare(int i, long timestamp, int key, int track) {
+
+            if (offTimestamps[i] != timestamp) {
+                return Long.compare(offTimestamps[i], timestamp);
+            }
+            if (offKeys[i] != key) {
+                return Integer.compare(offKeys[i], key);
+            }
+            return Integer.compare(offTracks[i], track);
+        }
+    }
+}
@@ -1,35 +1,37 @@
 package com.midiwars.logic.midi;
 
-import javax.sound.midi.ShortMessage;
-
 import static javax.sound.midi.ShortMessage.NOTE_OFF;
 import static javax.sound.midi.ShortMessage.NOTE_ON;
 
 /**
- * Collection of handlers called when dealing with MidiMessages of type ShortMessage.
+ * Collection of handlers called when dealing with channel messages.
  */
 public abstract class ShortMessageHandler {
 
     /**
-     * Called when a ShortMessage is received.
+     * Called when a channel message is read.
      *
-     * @param midiTimeline midi timeline.
-     * @param shortMessage Message received.
-     * @param tick MidiEvent time-stamp (ticks).
+     * @param sink Receives the decoded events.
+     * @param status Status byte (command and channel).
+     * @param data1 First data byte.
+     * @param data2 Second data byte.
+     * @param tick Event time-stamp (ticks).
      */
-    public static void shortMessageHandler(MidiTimeline midiTimeline, ShortMessage shortMessage, long tick) {
+    public static void shortMessageHandler(MidiEventSink sink, int status, int data1, int data2, long tick) {
+
+        int channel = status & 0x0f;
 
-        switch (shortMessage.getCommand()) {
+        switch (status & 0xf0) {
 
             case NOTE_ON: {
 
-                noteOn(midiTimeline, shortMessage, tick);
+                noteOn(sink, channel, data1, data2, tick);
                 break;
             }
 
-            case ShortMessage.NOTE_OFF: {
+            case NOTE_OFF: {
 
-                noteOff(midiTimeline, shortMessage, tick);
+                noteOff(sink, channel, data1, tick);
                 break;
             }
 
@@ -40,48 +42,52 @@ public abstract class ShortMessageHandler {
 
 
     /**
-     * Called when ShortMessage is of type NOTE_ON.
+     * Called when channel message is of type NOTE_ON.
      *
-     * @param midiTimeline midi timeline.
-     * @param shortMessage Message received.
-     * @param tick MidiEvent time-stamp (ticks).
+     * @param sink Receives the decoded events.
+     * @param channel Channel number [0-15].
+     * @param key Key number [0-127].
+     * @param velocity Velocity [0-127].
+     * @param tick Event time-stamp (ticks).
      *
-     * @see #shortMessageHandler(MidiTimeline, ShortMessage, long)
+     * @see #shortMessageHandler(MidiEventSink, int, int, int, long)
      */
-    private static void noteOn(MidiTimeline midiTimeline, ShortMessage shortMessage, long tick) {
-
-        // get velocity
-        int velocity = shortMessage.getData2();
+    private static void noteOn(MidiEventSink sink, int channel, int key, int velocity, long tick) {
 
         // message should have been NOTE_OFF
         if (velocity == 0) {
-            noteOff(midiTimeline, shortMessage, tick);
+            noteOff(sink, channel, key, tick);
             return;
         }
 
-        // get key number [0-127]
-        int key = shortMessage.getData1();
+        // malformed data byte
+        if (key > 127) {
+            return;
+        }
 
         // add new note event to timeline
-        midiTimeline.addNoteEvent(NOTE_ON, key, tick);
+        sink.addNoteEvent(NOTE_ON, channel, key, tick);
     }
 
 
     /**
-     * Called when ShortMessage is of type NOTE_OFF.
+     * Called when channel message is of type NOTE_OFF.
      *
-     * @param midiTimeline midi timeline.
-     * @param shortMessage Message received.
-     * @param tick MidiEvent time-stamp (ticks).
+     * @param sink Receives the decoded events.
+     * @param channel Channel number [0-15].
+     * @param key Key number [0-127].
+     * @param tick Event time-stamp (ticks).
      *
-     * @see #shortMessageHandler(MidiTimeline, ShortMessage, long)
+     * @see #shortMessageHandler(MidiEventSink, int, int, int, long)
      */
-    private static void noteOff(MidiTimeline midiTimeline, ShortMessage shortMessage, long tick) {
+    private static void noteOff(MidiEventSink sink, int channel, int key, long tick) {
 
-        // get key number [0-127]
-        int key = shortMessage.getData1();
+        // malformed data byte
+        if (key > 127) {
+            return;
+        }
 
         // add new note event to timeline
-        midiTimeline.addNoteEvent(NOTE_OFF, key, tick);
+        sink.addNoteEvent(NOTE_OFF, channel, key, tick);
     }
 }
@@ -0,0 +1,207 @@
+package com.midiwars.logic.midi;
+
+import java.util.function.IntPredicate;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Reduces a polyphonic timeline to a single melodic line, so that an instrument
+ * that can only hold one key at a time isn't flooded with chords.
+ * Follows the skyline algorithm: at each onset, the best note starting there
+ * takes over the melody, unless the note currently playing is still sounding and is better.
+ * Runs in a single pass, holding back only the note of the melody currently playing
+ * (its duration is only known once the next one takes over).
+ */
+public class Skyline implements TimelineTransform {
+
+    /* --- DEFINES --- */
+
+    /** How the melody is picked out of the notes playing at the same time. */
+    public enum Strategy {
+
+        /** The highest note (the classic skyline). */
+        HIGHEST,
+
+        /** The lowest note (e.g. for bass lines). */
+        LOWEST,
+
+        /** Notes the instrument can play first, then the highest note. */
+        PLAYABLE
+    }
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** How the melody is picked. */
+    private final Strategy strategy;
+
+    /** Checks if a key can be played (only used by {@link Strategy#PLAYABLE}). */
+    private final IntPredicate playable;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new Skyline object.
+     * Every note of the melody is released before the next one is pressed,
+     * even if both happen at the same time.
+     *
+     * @param strategy How the melody is picked.
+     * @param playable Checks if a key can be played (only used by {@link Strategy#PLAYABLE}).
+     */
+    public Skyline(Strategy strategy, IntPredicate playable) {
+        this.strategy = strategy;
+        this.playable = playable;
+    }
+
+
+    @Override
+    public TimelineSink apply(TimelineSink downstream) {
+        return new Melody(downstream);
+    }
+
+
+    /**
+     * Scores a note, according to the {@link #strategy}. Higher is better.
+     *
+     * @param key Key of the note.
+     *
+     * @return Score.
+     */
+    private int score(int key) {
+
+        switch (strategy) {
+
+            case LOWEST:
+                return -key;
+
+            case PLAYABLE:
+                return playable.test(key) ? 128 + key : key;
+
+            default:
+                return key;
+        }
+    }
+
+
+    /**
+     * Picks the melody out of the events of a single pass.
+     */
+    private class Melody implements TimelineSink {
+
+        /** Sink of the next stage. */
+        private final TimelineSink downstream;
+
+        /** Timestamp of the onset group being read (µs). */
+        private long timestamp;
+
+        /** True if the best note of the group has been found, False if the group has no NOTE_ON yet. */
+        private boolean hasBest;
+
+        /** Best note starting in the group being read. */
+        private int bestDuration, bestKey, bestTrack, bestChannel, bestScore;
+
+        /** True if a note of the melody is playing, False otherwise. */
+        private boolean hasCurrent;
+
+        /** Note of the melody currently playing (held back until released). */
+        private long currentTimestamp;
+
+        /** Note of the melody currently playing (held back until released). */
+        private int currentDuration, currentKey, currentTrack, currentChannel, currentScore;
+
+
+        /**
+         * Creates a new Melody object.
+         *
+         * @param downstream Sink of the next stage.
+         */
+        Melody(TimelineSink downstream) {
+            this.downstream = downstream;
+        }
+
+
+        @Override
+        public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+
+            // a new onset group starts
+            if (timestamp != this.timestamp) {
+                resolve();
+                this.timestamp = timestamp;
+            }
+
+            if (type == NOTE_ON) {
+                int score = score(key);
+                if (!hasBest || score > bestScore) {
+                    hasBest = true;
+                    bestDuration = duration;
+                    bestKey = key;
+                    bestTrack = track;
+                    bestChannel = channel;
+                    bestScore = score;
+                }
+            }
+        }
+
+
+        @Override
+        public void end() {
+
+            resolve();
+
+            if (hasCurrent) {
+                release(currentTimestamp + currentDuration);
+            }
+
+            downstream.end();
+        }
+
+
+        /**
+         * Decides if the best note of the group just read takes over the melody.
+         */
+        private void resolve() {
+
+            // no onset, or the melody keeps playing over it
+            if (!hasBest || (hasCurrent && currentTimestamp + currentDuration > timestamp && bestScore < currentScore)) {
+                hasBest = false;
+                return;
+            }
+
+            // release the previous note (cut short if still sounding)
+            if (hasCurrent) {
+                release(Math.min(currentTimestamp + currentDuration, timestamp));
+            }
+
+            // press the new one
+            hasCurrent = true;
+            currentTimestamp = timestamp;
+            currentDuration = bestDuration;
+            currentKey = bestKey;
+            currentTrack = bestTrack;
+            currentChannel = bestChannel;
+            currentScore = bestScore;
+
+            hasBest = false;
+        }
+
+
+        /**
+         * Releases the note of the melody currently playing at the given time, pushing it down.
+         * Notes that never stop sounding (no NOTE_OFF in the midi file) are left as they are.
+         *
+         * @param end When the note is released (µs).
+         */
+        private void release(long end) {
+
+            if (currentDuration <= 0) {
+                downstream.accept(currentTimestamp, currentDuration, NOTE_ON, currentKey, currentTrack, currentChannel);
+                return;
+            }
+
+            downstream.accept(currentTimestamp, (int) (end - currentTimestamp), NOTE_ON, currentKey, currentTrack, currentChannel);
+            downstream.accept(end, 0, NOTE_OFF, currentKey, currentTrack, currentChannel);
+        }
+    }
+}
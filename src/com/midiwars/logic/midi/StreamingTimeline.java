@@ -0,0 +1,1070 @@
+package com.midiwars.logic.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import static javax.sound.midi.Sequence.PPQ;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Timeline that is produced while it is being played.
+ * A background thread decodes every track of the midi file at the same time, in order of ticks,
+ * keeping track of the tempo as it goes, and hands the events over through a bounded buffer.
+ * Playback can then start right away, whatever the length of the file,
+ * and is never allowed to get ahead of the decoding.
+ * Only a window of events around the cursor is kept in memory; every so often the producer
+ * saves a checkpoint (where each track was and what the tempo was), so that moving the cursor
+ * outside the window re-decodes from the nearest checkpoint instead of from the start.
+ * Checkpoints also keep the timestamp they were saved at, so that a moment in time can be found the same way.
+ */
+public class StreamingTimeline implements Timeline {
+
+    /* --- DEFINES --- */
+
+    /** Initial number of events the hand-off buffer can hold (must be a power of two). */
+    public static final int BUFFER_CAPACITY = 4096;
+
+    /** Minimum number of events in-between checkpoints. */
+    public static final int CHECKPOINT_INTERVAL = 16384;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Moment in time each buffered event was generated (µs). */
+    private long[] timestamps;
+
+    /** How long each buffered note was played for (µs). */
+    private int[] durations;
+
+    /** NOTE_ON (0x90) or NOTE_OFF (0x80), for each buffered event. */
+    private byte[] types;
+
+    /** Key number [0-127] of each buffered event. */
+    private byte[] keys;
+
+    /** Maps an event index to its position in the buffer. */
+    private int mask;
+
+    /** Index of the oldest event still in the buffer. */
+    private int base;
+
+    /** Number of events produced so far. */
+    private int produced;
+
+    /** Events before this one won't be accessed anymore. */
+    private int cursor;
+
+    /** True once the producer is done, either because the file ended or because it is invalid. */
+    private boolean finished;
+
+    /** True once the timeline has been closed. */
+    private boolean closed;
+
+    /** Error that stopped the producer, if any. */
+    private InvalidMidiDataException error;
+
+    /** Reader of the midi file. Only used by the producer. */
+    private final MidiFileReader reader;
+
+    /** Path to the midi file. */
+    private final String filepath;
+
+    /** Parts of the midi file to hand over. */
+    private final PartSelector parts;
+
+    /** Decodes the events of the midi file. */
+    private Thread producer;
+
+    /** Incremented every time the producer is restarted; older producers stop on their own. */
+    private int generation;
+
+    /** Number of checkpoints saved so far. */
+    private int checkpoints;
+
+    /** Index of the first event decoded after each checkpoint. */
+    private int[] checkpointIndices;
+
+    /** Timestamp of the first event decoded after each checkpoint (µs). */
+    private long[] checkpointTimestamps;
+
+    /** Tick at which the tempo of each checkpoint started. */
+    private long[] checkpointTempoTicks;
+
+    /** Time elapsed when the tempo of each checkpoint started, in units of 1 / denominator microseconds. */
+    private long[] checkpointTempoOffsets;
+
+    /** Duration of a tick under the tempo of each checkpoint, in units of 1 / denominator microseconds. */
+    private long[] checkpointRates;
+
+    /** Position of each track, for each checkpoint (checkpoint * tracks + track). -1 if the track had ended. */
+    private int[] checkpointPositions;
+
+    /** Tick of the next event of each track, for each checkpoint. */
+    private long[] checkpointTicks;
+
+    /** Running status of each track, for each checkpoint. */
+    private int[] checkpointStatus;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new StreamingTimeline object,
+     * and starts decoding the given midi file in the background.
+     *
+     * @param filepath Path to midi file.
+     *
+     * @throws InvalidMidiDataException Midi file header is invalid.
+     * @throws IOException Can't open file.
+     */
+    public StreamingTimeline(String filepath) throws InvalidMidiDataException, IOException {
+        this(filepath, PartSelector.ALL);
+    }
+
+
+    /**
+     * Creates a new StreamingTimeline object,
+     * and starts decoding the given parts of a midi file in the background.
+     * Events of other parts are dropped as soon as they're decoded
+     * (their tracks are still read, since they may change the tempo).
+     *
+     * @param filepath Path to midi file.
+     * @param parts Parts of the midi file to hand over.
+     *
+     * @throws InvalidMidiDataException Midi file header is invalid.
+     * @throws IOException Can't open file.
+     */
+    public StreamingTimeline(String filepath, PartSelector parts) throws InvalidMidiDataException, IOException {
+
+        reader = new MidiFileReader(filepath);
+        this.filepath = filepath;
+        this.parts = parts;
+
+        timestamps = new long[BUFFER_CAPACITY];
+        durations = new int[BUFFER_CAPACITY];
+        types = new byte[BUFFER_CAPACITY];
+        keys = new byte[BUFFER_CAPACITY];
+        mask = BUFFER_CAPACITY - 1;
+        base = 0;
+        produced = 0;
+        cursor = 0;
+        finished = false;
+        closed = false;
+        error = null;
+        generation = 0;
+
+        int nTracks = reader.getTrackCount();
+        checkpoints = 0;
+        checkpointIndices = new int[16];
+        checkpointTimestamps = new long[16];
+        checkpointTempoTicks = new long[16];
+        checkpointTempoOffsets = new long[16];
+        checkpointRates = new long[16];
+        checkpointPositions = new int[16 * nTracks];
+        checkpointTicks = new long[16 * nTracks];
+        checkpointStatus = new int[16 * nTracks];
+
+        start(-1);
+    }
+
+
+    /**
+     * Starts a new producer.
+     *
+     * @param checkpoint Checkpoint to decode from, -1 to decode from the start.
+     */
+    private void start(int checkpoint) {
+
+        producer = new Thread(new Producer(generation, checkpoint), "timeline-" + filepath);
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+
+    /**
+     * Moves the window so that it starts at the given event,
+     * restarting the producer from the nearest checkpoint before it.
+     *
+     * @param i Event index.
+     */
+    private void seek(int i) {
+
+        int checkpoint = findCheckpoint(i);
+
+        // the current producer stops as soon as it notices
+        generation++;
+        base = (checkpoint < 0) ? 0 : checkpointIndices[checkpoint];
+        produced = base;
+        cursor = i;
+        finished = false;
+        error = null;
+        notifyAll();
+
+        start(checkpoint);
+    }
+
+
+    /**
+     * Finds the latest checkpoint at or before the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Checkpoint, -1 if there's none.
+     */
+    private int findCheckpoint(int i) {
+
+        int low = 0;
+        int high = checkpoints - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (checkpointIndices[mid] <= i) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return high;
+    }
+
+
+    /**
+     * Checks if moving the cursor to the given event should restart the producer:
+     * either the event was already dropped, or it is further ahead than a checkpoint
+     * the producer hasn't reached yet.
+     *
+     * @param i Event index.
+     *
+     * @return True if the producer should be restarted, False otherwise.
+     */
+    private boolean isOutsideWindow(int i) {
+
+        if (i < base) {
+            return true;
+        }
+
+        int checkpoint = findCheckpoint(i);
+        return checkpoint >= 0 && checkpointIndices[checkpoint] > produced;
+    }
+
+
+    /**
+     * Finds the latest checkpoint saved before the given moment in time.
+     *
+     * @param micros Moment in time (µs).
+     *
+     * @return Checkpoint, -1 if there's none.
+     */
+    private int findCheckpointAt(long micros) {
+
+        int low = 0;
+        int high = checkpoints - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (checkpointTimestamps[mid] <= micros) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return high;
+    }
+
+
+    /**
+     * Returns the first event generated at or after the given moment in time, and moves the cursor to it.
+     * The search starts from the latest checkpoint before that moment (or from the buffered events, if they're later),
+     * so only the events in-between are decoded, rather than the whole song up to it.
+     *
+     * @param micros Moment in time (µs).
+     *
+     * @return Event index, the number of events if there's none.
+     */
+    public int indexAt(long micros) {
+
+        int i;
+        synchronized (this) {
+
+            int checkpoint = findCheckpointAt(micros);
+            i = (checkpoint < 0) ? 0 : checkpointIndices[checkpoint];
+
+            // events before a buffered one generated earlier than that moment can be skipped too
+            if (i < base && base < produced && timestamps[base & mask] < micros) {
+                i = base;
+            }
+
+            setCursor(i);
+        }
+
+        while (has(i) && getTimestampMicros(i) < micros) {
+            setCursor(++i);
+        }
+
+        return i;
+    }
+
+
+    @Override
+    public synchronized boolean has(int i) {
+
+        // event was already dropped
+        if (i < base && !closed) {
+            seek(i);
+        }
+
+        // make sure the producer can get this far without waiting for the consumer
+        release();
+        int needed = i - Math.max(base, Math.min(cursor, i)) + 1;
+        if (needed > timestamps.length) {
+            grow(Math.max(needed, produced - base));
+            notifyAll();
+        }
+
+        try {
+            while (i >= produced && !finished && !closed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            // the caller tells this apart from the end of the timeline by the interrupt status
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return i < produced;
+    }
+
+
+    /**
+     * Returns the position in the buffer of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Buffer position.
+     */
+    private int slot(int i) {
+
+        if (i < base || i >= produced) {
+            throw new IndexOutOfBoundsException("Event " + i + " is not buffered");
+        }
+
+        return i & mask;
+    }
+
+
+    @Override
+    public synchronized int getType(int i) {
+        return types[slot(i)] & 0xff;
+    }
+
+
+    @Override
+    public synchronized int getKey(int i) {
+        return keys[slot(i)];
+    }
+
+
+    @Override
+    public synchronized int getTimestamp(int i) {
+        return (int) (timestamps[slot(i)] / 1000);
+    }
+
+
+    @Override
+    public synchronized long getTimestampMicros(int i) {
+        return timestamps[slot(i)];
+    }
+
+
+    @Override
+    public synchronized int getDuration(int i) {
+        return durations[slot(i)] / 1000;
+    }
+
+
+    @Override
+    public synchronized int getDurationMicros(int i) {
+        return durations[slot(i)];
+    }
+
+
+    @Override
+    public synchronized void setCursor(int i) {
+
+        if (closed) {
+            return;
+        }
+
+        if (isOutsideWindow(i)) {
+            seek(i);
+            return;
+        }
+
+        // events between the base and the cursor are still buffered, so it can also move back
+        cursor = i;
+        notifyAll();
+    }
+
+
+    @Override
+    public synchronized void close() {
+
+        closed = true;
+        notifyAll();
+    }
+
+
+    /**
+     * Returns {@link #error}.
+     *
+     * @return {@link #error Error} that stopped the producer, null if there was none.
+     */
+    public synchronized InvalidMidiDataException getError() {
+        return error;
+    }
+
+
+    /**
+     * Drops the buffered events that won't be accessed anymore.
+     */
+    private void release() {
+        base = Math.max(base, Math.min(cursor, produced));
+    }
+
+
+    /**
+     * Grows the buffer so that it can hold at least the given amount of events.
+     *
+     * @param capacity Minimum capacity.
+     */
+    private void grow(int capacity) {
+
+        int length = Integer.highestOneBit(capacity - 1) << 1;
+
+        long[] newTimestamps = new long[length];
+        int[] newDurations = new int[length];
+        byte[] newTypes = new byte[length];
+        byte[] newKeys = new byte[length];
+
+        for (int i = base; i < produced; i++) {
+            newTimestamps[i & (length - 1)] = timestamps[i & mask];
+            newDurations[i & (length - 1)] = durations[i & mask];
+            newTypes[i & (length - 1)] = types[i & mask];
+            newKeys[i & (length - 1)] = keys[i & mask];
+        }
+
+        timestamps = newTimestamps;
+        durations = newDurations;
+        types = newTypes;
+        keys = newKeys;
+        mask = length - 1;
+    }
+
+
+    /**
+     * Adds the given events to the buffer, waiting for room if needed.
+     * Called by the producer.
+     *
+     * @param timestamp Moment in time the events were generated (µs).
+     * @param groupDurations How long each note was played for (µs).
+     * @param groupTypes NOTE_ON (0x90) or NOTE_OFF (0x80), for each event.
+     * @param groupKeys Key number of each event.
+     * @param order Order in which to add the events.
+     * @param indices Filled with the index given to each event.
+     * @param n Amount of events to add.
+     * @param generation {@link #generation Generation} of the producer.
+     *
+     * @return False if the timeline was closed or the producer restarted meanwhile, True otherwise.
+     *
+     * @throws InterruptedException If the producer was interrupted.
+     */
+    private synchronized boolean publish(int generation, long timestamp, int[] groupDurations, byte[] groupTypes, byte[] groupKeys, int[] order, int[] indices, int n) throws InterruptedException {
+
+        for (int k = 0; k < n; k++) {
+
+            // wait for room (the timeline may be closed or the producer restarted meanwhile)
+            while (true) {
+
+                if (closed || generation != this.generation) {
+                    return false;
+                }
+
+                release();
+
+                if (produced - base < timestamps.length) {
+                    break;
+                }
+
+                wait();
+            }
+
+            int q = order[k];
+            int slot = produced & mask;
+            timestamps[slot] = timestamp;
+            durations[slot] = groupDurations[q];
+            types[slot] = groupTypes[q];
+            keys[slot] = groupKeys[q];
+            indices[q] = produced++;
+        }
+
+        notifyAll();
+        return !closed && generation == this.generation;
+    }
+
+
+    /**
+     * Sets the duration of an event that was already handed over.
+     * Called by the producer.
+     *
+     * @param generation {@link #generation Generation} of the producer.
+     * @param i Event index.
+     * @param duration Duration (µs).
+     */
+    private synchronized void setDuration(int generation, int i, int duration) {
+
+        // dropped events don't need it anymore
+        if (generation == this.generation && i >= base) {
+            durations[i & mask] = duration;
+        }
+    }
+
+
+    /**
+     * Saves a checkpoint, unless there's already one at or after the given event.
+     * Called by the producer, in-between events with different timestamps.
+     *
+     * @param generation {@link #generation Generation} of the producer.
+     * @param index Index of the next event to be decoded.
+     * @param timestamp Timestamp of the next event to be decoded (µs).
+     * @param tempoTick Tick at which the current tempo started.
+     * @param tempoOffset Time elapsed when the current tempo started.
+     * @param rate Duration of a tick under the current tempo.
+     * @param tracks Reader of each track.
+     * @param pending True if the respective track still has an event to decode.
+     */
+    private synchronized void addCheckpoint(int generation, int index, long timestamp, long tempoTick, long tempoOffset, long rate, MidiFileReader.TrackReader[] tracks, boolean[] pending) {
+
+        if (generation != this.generation || (checkpoints > 0 && checkpointIndices[checkpoints - 1] >= index)) {
+            return;
+        }
+
+        // make room for the new checkpoint
+        if (checkpoints == checkpointIndices.length) {
+            int capacity = 2 * checkpoints;
+            checkpointIndices = Arrays.copyOf(checkpointIndices, capacity);
+            checkpointTimestamps = Arrays.copyOf(checkpointTimestamps, capacity);
+            checkpointTempoTicks = Arrays.copyOf(checkpointTempoTicks, capacity);
+            checkpointTempoOffsets = Arrays.copyOf(checkpointTempoOffsets, capacity);
+            checkpointRates = Arrays.copyOf(checkpointRates, capacity);
+            checkpointPositions = Arrays.copyOf(checkpointPositions, capacity * tracks.length);
+            checkpointTicks = Arrays.copyOf(checkpointTicks, capacity * tracks.length);
+            checkpointStatus = Arrays.copyOf(checkpointStatus, capacity * tracks.length);
+        }
+
+        checkpointIndices[checkpoints] = index;
+        checkpointTimestamps[checkpoints] = timestamp;
+        checkpointTempoTicks[checkpoints] = tempoTick;
+        checkpointTempoOffsets[checkpoints] = tempoOffset;
+        checkpointRates[checkpoints] = rate;
+
+        for (int r = 0; r < tracks.length; r++) {
+            int c = checkpoints * tracks.length + r;
+            checkpointPositions[c] = pending[r] ? tracks[r].getPosition() : -1;
+            checkpointTicks[c] = tracks[r].getTick();
+            checkpointStatus[c] = tracks[r].getStatus();
+        }
+
+        checkpoints++;
+    }
+
+
+    /**
+     * Returns {@link #checkpoints}.
+     *
+     * @return Number of {@link #checkpoints} saved so far.
+     */
+    public synchronized int getCheckpoints() {
+        return checkpoints;
+    }
+
+
+    /**
+     * Marks the producer as done.
+     *
+     * @param generation {@link #generation Generation} of the producer.
+     * @param error Error that stopped the producer, if any.
+     */
+    private synchronized void finish(int generation, InvalidMidiDataException error) {
+
+        if (generation != this.generation) {
+            return;
+        }
+
+        this.error = error;
+        finished = true;
+        notifyAll();
+    }
+
+
+    /**
+     * Decodes the midi file, merging every track in order of ticks.
+     * Events sharing a timestamp are held back until all of them are known,
+     * so that they can be handed over in the same order as in a {@link MidiTimeline}
+     * (sorted by key, then by track).
+     */
+    private class Producer implements Runnable {
+
+        /** {@link #generation Generation} of this producer. */
+        private final int generation;
+
+        /** Checkpoint this producer starts from, -1 if it starts from the beginning. */
+        private final int checkpoint;
+
+        /** Index of the next event to be handed over. */
+        private int index;
+
+        /** Index at which the next checkpoint is due. */
+        private int nextCheckpoint;
+
+        /** Reader of each track. */
+        private final MidiFileReader.TrackReader[] tracks;
+
+        /** True if the respective track still has an event to decode. */
+        private final boolean[] pending;
+
+        /** Receives the events of each track. */
+        private final TrackSink[] sinks;
+
+        /** True if tempo changes affect time (PPQ division). */
+        private final boolean ppq;
+
+        /** Tick at which the current tempo started. */
+        private long tempoTick;
+
+        /** Time elapsed when the current tempo started, in units of 1 / {@link #denominator} microseconds. */
+        private long tempoOffset;
+
+        /** Duration of a tick under the current tempo, in units of 1 / {@link #denominator} microseconds. */
+        private long rate;
+
+        /** Common denominator of {@link #tempoOffset} and {@link #rate}. */
+        private final long denominator;
+
+        /** Timestamp shared by the events being held back (µs). */
+        private long groupTimestamp;
+
+        /** Number of events being held back. */
+        private int groupSize;
+
+        /** How long each held back note was played for (µs). */
+        private int[] groupDurations;
+
+        /** Type of each held back event. */
+        private byte[] groupTypes;
+
+        /** Key of each held back event. */
+        private byte[] groupKeys;
+
+        /** Track of each held back event. */
+        private int[] groupTracks;
+
+        /** Open note of each held back NOTE_ON event. -1 for NOTE_OFF events. */
+        private int[] groupNotes;
+
+        /** Order in which held back events are handed over. */
+        private int[] groupOrder;
+
+        /** Index given to each held back event once handed over. */
+        private int[] groupIndices;
+
+        /** Sort keys of held back events. */
+        private long[] groupSortKeys;
+
+        /**
+         * Index of each open note (NOTE_ON event still waiting for its NOTE_OFF).
+         * Held back events are stored as -(position in the group) - 1.
+         */
+        private int[] noteIndices;
+
+        /** Timestamp of each open note (µs). */
+        private long[] noteTimestamps;
+
+        /** Links each open note to the previous open note of the same track, channel and key (or the next free one). */
+        private int[] noteLinks;
+
+        /** First free open note slot. -1 if there's none. */
+        private int freeNote;
+
+
+        /**
+         * Creates a new Producer object.
+         *
+         * @param generation {@link #generation Generation} of the producer.
+         * @param checkpoint Checkpoint to start from, -1 to start from the beginning.
+         */
+        private Producer(int generation, int checkpoint) {
+
+            this.generation = generation;
+            this.checkpoint = checkpoint;
+
+            int nTracks = reader.getTrackCount();
+            tracks = new MidiFileReader.TrackReader[nTracks];
+            pending = new boolean[nTracks];
+            sinks = new TrackSink[nTracks];
+            for (int r = 0; r < nTracks; r++) {
+                tracks[r] = reader.getTrackReader(r);
+                sinks[r] = new TrackSink(r);
+            }
+
+            // tempo is 120 QPM until told otherwise
+            TempoMap initial = new TempoMap(new TreeMap<>(), reader.getDivisionType(), reader.getResolution());
+            ppq = reader.getDivisionType() == PPQ;
+            tempoTick = 0;
+            tempoOffset = 0;
+            rate = initial.getRates()[0];
+            denominator = initial.getDenominator();
+
+            groupSize = 0;
+            groupDurations = new int[16];
+            groupTypes = new byte[16];
+            groupKeys = new byte[16];
+            groupTracks = new int[16];
+            groupNotes = new int[16];
+            groupOrder = new int[16];
+            groupIndices = new int[16];
+            groupSortKeys = new long[16];
+
+            noteIndices = new int[0];
+            noteTimestamps = new long[0];
+            noteLinks = new int[0];
+            freeNote = -1;
+
+            index = 0;
+            nextCheckpoint = 0;
+
+            // pick up where the checkpoint left off (notes still open at that point are lost)
+            if (checkpoint >= 0) {
+                synchronized (StreamingTimeline.this) {
+                    index = checkpointIndices[checkpoint];
+                    nextCheckpoint = index + CHECKPOINT_INTERVAL;
+                    tempoTick = checkpointTempoTicks[checkpoint];
+                    tempoOffset = checkpointTempoOffsets[checkpoint];
+                    rate = checkpointRates[checkpoint];
+                    for (int r = 0; r < nTracks; r++) {
+                        int c = checkpoint * nTracks + r;
+                        pending[r] = checkpointPositions[c] >= 0;
+                        tracks[r].restore(checkpointPositions[c], checkpointTicks[c], checkpointStatus[c]);
+                    }
+                }
+            }
+        }
+
+
+        @Override
+        public void run() {
+
+            InvalidMidiDataException error = null;
+
+            try {
+
+                if (checkpoint < 0) {
+                    for (int r = 0; r < tracks.length; r++) {
+                        pending[r] = tracks[r].advance();
+                    }
+                }
+
+                int r;
+                while ((r = nextTrack()) >= 0) {
+
+                    long timestamp = toMicroseconds(tracks[r].getTick());
+
+                    // every event of the previous timestamp is known
+                    if (groupSize > 0 && timestamp != groupTimestamp) {
+                        if (!flush()) {
+                            return;
+                        }
+                    }
+
+                    // nothing is held back, so this is a good place to resume from later
+                    if (groupSize == 0 && index >= nextCheckpoint) {
+                        addCheckpoint(generation, index, timestamp, tempoTick, tempoOffset, rate, tracks, pending);
+                        nextCheckpoint = index + CHECKPOINT_INTERVAL;
+                    }
+
+                    groupTimestamp = timestamp;
+                    tracks[r].readEvent(sinks[r]);
+                    pending[r] = tracks[r].advance();
+                }
+
+                if (groupSize > 0) {
+                    flush();
+                }
+
+            } catch (InvalidMidiDataException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finish(generation, error);
+            }
+        }
+
+
+        /**
+         * Returns the track whose next event comes first (lowest tick, then lowest track).
+         *
+         * @return Track index, -1 if every track has ended.
+         */
+        private int nextTrack() {
+
+            int next = -1;
+            for (int r = 0; r < tracks.length; r++) {
+                if (pending[r] && (next < 0 || tracks[r].getTick() < tracks[next].getTick())) {
+                    next = r;
+                }
+            }
+
+            return next;
+        }
+
+
+        /**
+         * Converts ticks to microseconds, under the current tempo.
+         * Ticks must not be lower than the tick of the latest tempo change.
+         *
+         * @param tick Ticks.
+         *
+         * @return Microseconds.
+         */
+        private long toMicroseconds(long tick) {
+            return (tempoOffset + rate * (tick - tempoTick)) / denominator;
+        }
+
+
+        /**
+         * Changes the current tempo.
+         *
+         * @param tick Instant in time (ticks) this tempo change happened.
+         * @param tempo New tempo (microseconds per quarter-note).
+         */
+        private void setTempo(long tick, int tempo) {
+
+            // SMPTE divisions have a fixed tick duration
+            if (!ppq) {
+                return;
+            }
+
+            tempoOffset += rate * (tick - tempoTick);
+            tempoTick = tick;
+            rate = tempo;
+        }
+
+
+        /**
+         * Holds back a note event until every event with the same timestamp is known.
+         *
+         * @param track Track of the event.
+         * @param openNotes Latest open note of the track, for each channel and key.
+         * @param type NOTE_ON (0x90) or NOTE_OFF (0x80).
+         * @param channel Channel number [0-15].
+         * @param key Key number [0-127].
+         */
+        private void addNoteEvent(int track, int[][] openNotes, int type, int channel, int key) {
+
+            if (groupSize == groupTypes.length) {
+                growGroup();
+            }
+
+            int note = -1;
+
+            // key pressed
+            if (type == NOTE_ON) {
+
+                // becomes the latest open note of this channel and key
+                note = newNote();
+                noteIndices[note] = -groupSize - 1;
+                noteTimestamps[note] = groupTimestamp;
+                noteLinks[note] = openNotes[channel][key];
+                openNotes[channel][key] = note;
+            }
+
+            // key released
+            else {
+
+                // set duration of every respective NOTE_ON event
+                int next;
+                for (int n = openNotes[channel][key]; n >= 0; n = next) {
+
+                    next = noteLinks[n];
+                    int duration = clamp(groupTimestamp - noteTimestamps[n]);
+
+                    if (noteIndices[n] < 0) {
+                        groupDurations[-noteIndices[n] - 1] = duration;
+                    } else {
+                        setDuration(generation, noteIndices[n], duration);
+                    }
+
+                    freeNote(n);
+                }
+
+                openNotes[channel][key] = -1;
+            }
+
+            groupDurations[groupSize] = 0;
+            groupTypes[groupSize] = (byte) type;
+            groupKeys[groupSize] = (byte) key;
+            groupTracks[groupSize] = track;
+            groupNotes[groupSize] = note;
+            groupSize++;
+        }
+
+
+        /**
+         * Hands the held back events over, sorted by key, then by track.
+         *
+         * @return False if the timeline was closed meanwhile, True otherwise.
+         *
+         * @throws InterruptedException If the producer was interrupted.
+         */
+        private boolean flush() throws InterruptedException {
+
+            // key, then track, then order of arrival
+            for (int q = 0; q < groupSize; q++) {
+                groupSortKeys[q] = (long) groupKeys[q] << 48 | (long) groupTracks[q] << 24 | q;
+            }
+            Arrays.sort(groupSortKeys, 0, groupSize);
+            for (int k = 0; k < groupSize; k++) {
+                groupOrder[k] = (int) (groupSortKeys[k] & 0xffffff);
+            }
+
+            boolean open = publish(generation, groupTimestamp, groupDurations, groupTypes, groupKeys, groupOrder, groupIndices, groupSize);
+
+            // notes still open now refer to their index
+            for (int q = 0; q < groupSize; q++) {
+                int note = groupNotes[q];
+                if (note >= 0 && noteIndices[note] == -q - 1) {
+                    noteIndices[note] = groupIndices[q];
+                }
+            }
+
+            index += groupSize;
+            groupSize = 0;
+            return open;
+        }
+
+
+        /**
+         * Doubles the capacity of the group.
+         */
+        private void growGroup() {
+
+            int capacity = 2 * groupTypes.length;
+
+            groupDurations = Arrays.copyOf(groupDurations, capacity);
+            groupTypes = Arrays.copyOf(groupTypes, capacity);
+            groupKeys = Arrays.copyOf(groupKeys, capacity);
+            groupTracks = Arrays.copyOf(groupTracks, capacity);
+            groupNotes = Arrays.copyOf(groupNotes, capacity);
+            groupOrder = Arrays.copyOf(groupOrder, capacity);
+            groupIndices = Arrays.copyOf(groupIndices, capacity);
+            groupSortKeys = Arrays.copyOf(groupSortKeys, capacity);
+        }
+
+
+        /**
+         * Takes a free open note slot.
+         *
+         * @return Slot.
+         */
+        private int newNote() {
+
+            if (freeNote < 0) {
+
+                int from = noteLinks.length;
+                int capacity = Math.max(64, 2 * from);
+
+                noteIndices = Arrays.copyOf(noteIndices, capacity);
+                noteTimestamps = Arrays.copyOf(noteTimestamps, capacity);
+                noteLinks = Arrays.copyOf(noteLinks, capacity);
+
+                for (int n = capacity - 1; n >= from; n--) {
+                    freeNote(n);
+                }
+            }
+
+            int note = freeNote;
+            freeNote = noteLinks[note];
+            return note;
+        }
+
+
+        /**
+         * Gives back an open note slot.
+         *
+         * @param note Slot.
+         */
+        private void freeNote(int note) {
+            noteLinks[note] = freeNote;
+            freeNote = note;
+        }
+
+
+        /**
+         * Receives the events of a single track, pairing its NOTE_OFF events with its open notes.
+         */
+        private class TrackSink implements MidiEventSink {
+
+            /** Index of the track. */
+            private final int track;
+
+            /** Latest open note of this track, for each channel and key. -1 if there's none. */
+            private final int[][] openNotes;
+
+
+            /**
+             * Creates a new TrackSink object.
+             *
+             * @param track Index of the track.
+             */
+            private TrackSink(int track) {
+
+                this.track = track;
+                openNotes = new int[16][128];
+
+                for (int[] channel : openNotes) {
+                    Arrays.fill(channel, -1);
+                }
+            }
+
+
+            @Override
+            public void addTempo(long tick, int tempo) {
+                setTempo(tick, tempo);
+            }
+
+
+            @Override
+            public void addNoteEvent(int type, int channel, int key, long tick) {
+                if (parts.selects(track, channel)) {
+                    Producer.this.addNoteEvent(track, openNotes, type, channel, key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Clamps the given duration to the range of an int.
+     *
+     * @param duration Duration (µs).
+     *
+     * @return Clamped duration (µs).
+     */
+    private static int clamp(long duration) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, duration));
+    }
+}
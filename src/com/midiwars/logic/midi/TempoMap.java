@@ -0,0 +1,269 @@
+package com.midiwars.logic.midi;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import static javax.sound.midi.Sequence.*;
+
+/**
+ * Frozen tempo map of a midi file, used to convert ticks to time.
+ * The map is split into segments of constant tempo, each holding its start tick
+ * and the exact time elapsed up to that tick, so conversions never accumulate rounding errors.
+ */
+public class TempoMap {
+
+    /* --- DEFINES --- */
+
+    /** Tempo (microseconds per quarter-note) used until the first SET_TEMPO event - 120 QPM. */
+    public static final int DEFAULT_MSPQ = 500000;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Tick at which each segment starts. */
+    private final long[] ticks;
+
+    /** Duration of a tick in each segment, in units of 1 / {@link #denominator} microseconds. */
+    private final long[] rates;
+
+    /** Time elapsed at the start of each segment, in units of 1 / {@link #denominator} microseconds. */
+    private final long[] offsets;
+
+    /** Common denominator of {@link #rates} and {@link #offsets}. */
+    private final long denominator;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new TempoMap object.
+     *
+     * @param tempos Maps the instant (tick) of each tempo change to the new tempo (microseconds per quarter-note).
+     *               Ignored by SMPTE divisions.
+     * @param divisionType Timing division type (PPQ or one of the SMPTE types).
+     * @param resolution Timing resolution (ticks per quarter-note or ticks per frame).
+     */
+    public TempoMap(SortedMap<Long, Integer> tempos, float divisionType, int resolution) {
+
+        if (divisionType == PPQ) {
+
+            // tempo is 120 QPM until told otherwise
+            boolean implicit = tempos.isEmpty() || tempos.firstKey() > 0;
+            int n = tempos.size() + (implicit ? 1 : 0);
+
+            ticks = new long[n];
+            rates = new long[n];
+            offsets = new long[n];
+            denominator = resolution;
+
+            int i = 0;
+            if (implicit) {
+                rates[i++] = DEFAULT_MSPQ;
+            }
+
+            for (Map.Entry<Long, Integer> entry : tempos.entrySet()) {
+                ticks[i] = entry.getKey();
+                rates[i] = entry.getValue();
+                if (i > 0) {
+                    offsets[i] = offsets[i - 1] + rates[i - 1] * (ticks[i] - ticks[i - 1]);
+                }
+                i++;
+            }
+        }
+        else {
+
+            // SMPTE divisions have a fixed tick duration
+            ticks = new long[] {0};
+            offsets = new long[] {0};
+
+            if (divisionType == SMPTE_30DROP) {
+                // 29.97 frames per second
+                rates = new long[] {100000000};
+                denominator = 2997L * resolution;
+            } else {
+                rates = new long[] {1000000};
+                denominator = (long) divisionType * resolution;
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new TempoMap object from already computed segments.
+     *
+     * @param ticks Tick at which each segment starts.
+     * @param rates Duration of a tick in each segment (1 / denominator µs).
+     * @param offsets Time elapsed at the start of each segment (1 / denominator µs).
+     * @param denominator Common denominator of rates and offsets.
+     */
+    TempoMap(long[] ticks, long[] rates, long[] offsets, long denominator) {
+
+        this.ticks = ticks;
+        this.rates = rates;
+        this.offsets = offsets;
+        this.denominator = denominator;
+    }
+
+
+    /**
+     * Returns the index of the segment the given tick belongs to.
+     *
+     * @param tick Ticks.
+     *
+     * @return Segment index.
+     */
+    private int getSegment(long tick) {
+
+        int low = 0;
+        int high = ticks.length - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ticks[mid] <= tick) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * Converts ticks to microseconds, within the given segment.
+     *
+     * @param segment Segment index.
+     * @param tick Ticks.
+     *
+     * @return Microseconds.
+     */
+    private long toMicroseconds(int segment, long tick) {
+        return (offsets[segment] + rates[segment] * (tick - ticks[segment])) / denominator;
+    }
+
+
+    /**
+     * Converts ticks to microseconds,
+     * taking into account division type
+     * and tempo changes (if applicable).
+     *
+     * @param tick Ticks.
+     *
+     * @return Microseconds.
+     */
+    public long toMicroseconds(long tick) {
+        return toMicroseconds(getSegment(tick), tick);
+    }
+
+
+    /**
+     * Converts microseconds to ticks, the inverse of {@link #toMicroseconds(long)}.
+     *
+     * @param micros Microseconds.
+     *
+     * @return Ticks (fractional, since a tick usually lasts more than a microsecond).
+     */
+    public double toTicks(long micros) {
+
+        long time = micros * denominator;
+
+        // last segment starting at or before the given time
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return ticks[low] + (time - offsets[low]) / (double) rates[low];
+    }
+
+
+    /**
+     * Returns {@link #ticks}.
+     *
+     * @return {@link #ticks Segment ticks}.
+     */
+    long[] getTicks() {
+        return ticks;
+    }
+
+
+    /**
+     * Returns {@link #rates}.
+     *
+     * @return {@link #rates Segment rates}.
+     */
+    long[] getRates() {
+        return rates;
+    }
+
+
+    /**
+     * Returns {@link #offsets}.
+     *
+     * @return {@link #offsets Segment offsets}.
+     */
+    long[] getOffsets() {
+        return offsets;
+    }
+
+
+    /**
+     * Returns {@link #denominator}.
+     *
+     * @return {@link #denominator Denominator}.
+     */
+    long getDenominator() {
+        return denominator;
+    }
+
+
+    /**
+     * Returns a new cursor over this map.
+     *
+     * @return Cursor.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+
+    /**
+     * Converts ticks to time while walking a track in order,
+     * moving forward one segment at a time instead of searching the whole map.
+     */
+    public class Cursor {
+
+        /** Segment of the previous conversion. */
+        private int segment = 0;
+
+
+        /**
+         * Converts ticks to microseconds.
+         * Amortized O(1) as long as ticks don't decrease.
+         *
+         * @param tick Ticks.
+         *
+         * @return Microseconds.
+         */
+        public long toMicroseconds(long tick) {
+
+            // went back in time, probably a new track
+            if (tick < ticks[segment]) {
+                segment = getSegment(tick);
+            }
+
+            while (segment < ticks.length - 1 && ticks[segment + 1] <= tick) {
+                segment++;
+            }
+
+            return TempoMap.this.toMicroseconds(segment, tick);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.midiwars.logic.midi;
+
+/**
+ * Sequence of note events that can be played, in ascendant order of timestamps.
+ * Events are accessed by index; a timeline may still be producing its events
+ * while they're being consumed, in which case {@link #has(int)} waits for them.
+ */
+public interface Timeline {
+
+    /* --- DEFINES --- */
+
+    /** Number of midi keys (key numbers go from 0 to KEYS - 1). */
+    int KEYS = 128;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Checks if the given event exists, waiting for it to be produced if needed.
+     *
+     * @param i Event index.
+     *
+     * @return True if the event exists, False if the timeline ends before it.
+     */
+    boolean has(int i);
+
+
+    /**
+     * Returns the type of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return NOTE_ON (0x90) or NOTE_OFF (0x80).
+     */
+    int getType(int i);
+
+
+    /**
+     * Returns the key number of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Key number [0-127].
+     */
+    int getKey(int i);
+
+
+    /**
+     * Returns the moment in time the given event was generated.
+     *
+     * @param i Event index.
+     *
+     * @return Timestamp (ms).
+     */
+    int getTimestamp(int i);
+
+
+    /**
+     * Returns the moment in time the given event was generated.
+     *
+     * @param i Event index.
+     *
+     * @return Timestamp (µs).
+     */
+    long getTimestampMicros(int i);
+
+
+    /**
+     * Returns how long the given note was played for.
+     * A timeline that is still being produced may not know it yet.
+     *
+     * @param i Event index.
+     *
+     * @return Duration (ms). 0 for NOTE_OFF events.
+     */
+    int getDuration(int i);
+
+
+    /**
+     * Returns how long the given note was played for.
+     * A timeline that is still being produced may not know it yet.
+     *
+     * @param i Event index.
+     *
+     * @return Duration (µs). 0 for NOTE_OFF events.
+     */
+    int getDurationMicros(int i);
+
+
+    /**
+     * Lets the timeline know that events before the given one won't be accessed anymore,
+     * until the cursor is moved back (e.g. when seeking).
+     *
+     * @param i Event index.
+     */
+    default void setCursor(int i) {
+
+    }
+
+
+    /**
+     * Releases whatever resources the timeline is using.
+     * Events can't be accessed afterwards.
+     */
+    default void close() {
+
+    }
+}
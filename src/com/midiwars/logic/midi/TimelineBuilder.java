@@ -0,0 +1,216 @@
+package com.midiwars.logic.midi;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Collects the tempo map and the note events of every track while a midi file is decoded,
+ * so that an immutable {@link MidiTimeline} can be built from them.
+ */
+public class TimelineBuilder implements MidiEventSink {
+
+    /* --- ATTRIBUTES --- */
+
+    /**
+     * Maps tempo changes (SET_TEMPO midi message) to the instant (tick) they happen.
+     * Note that tempo is mapped as microseconds per quarter-note and not the usual BPM (beat per minute).
+     * This makes it so that all time signatures are handled the same way.
+     */
+    private final TreeMap<Long, Integer> tempo;
+
+    /** Frozen {@link #tempo} map, used to convert ticks to time. */
+    private TempoMap tempoMap;
+
+    /** Note events of each track, in order of tracks (the index of a run is the index of its track). */
+    private final ArrayList<TrackRun> runs;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new TimelineBuilder object.
+     */
+    public TimelineBuilder() {
+
+        tempo = new TreeMap<>();
+        tempoMap = null;
+        runs = new ArrayList<>();
+    }
+
+
+    /**
+     * Adds an entry to the tempo map.
+     *
+     * @param tick Instant in time (ticks) this tempo change happened.
+     * @param tempo New tempo (microseconds per quarter-note).
+     */
+    @Override
+    public void addTempo(long tick, int tempo) {
+        this.tempo.put(tick, tempo);
+    }
+
+
+    /**
+     * Freezes the tempo map. Must be called after every tempo change
+     * has been added and before any track run is created.
+     *
+     * @param divisionType Timing division type (PPQ or one of the SMPTE types).
+     * @param resolution Timing resolution (ticks per quarter-note or ticks per frame).
+     */
+    public void freezeTempos(float divisionType, int resolution) {
+        tempoMap = new TempoMap(tempo, divisionType, resolution);
+    }
+
+
+    /**
+     * Creates the run that will hold the note events of the next track.
+     *
+     * @return Track run.
+     */
+    public TrackRun newRun() {
+        return newRun(PartSelector.ALL);
+    }
+
+
+    /**
+     * Creates the run that will hold the note events of the next track,
+     * keeping only those of the given parts.
+     *
+     * @param parts Parts of the midi file to keep.
+     *
+     * @return Track run.
+     */
+    public TrackRun newRun(PartSelector parts) {
+
+        TrackRun run = new TrackRun(tempoMap, runs.size(), parts);
+        runs.add(run);
+        return run;
+    }
+
+
+    /**
+     * Builds the timeline, with its events sorted in ascendant order of timestamps
+     * (events with the same timestamp are sorted by key, then by track).
+     * Every run is already sorted, so they only need to be merged.
+     *
+     * @param divisionType Timing division type of the midi file.
+     * @param resolution Timing resolution of the midi file.
+     *
+     * @return The timeline.
+     */
+    public MidiTimeline build(float divisionType, int resolution) {
+
+        int size = 0;
+        for (TrackRun run : runs) {
+            size += run.size();
+        }
+
+        long[] timestamps = new long[size];
+        int[] durations = new int[size];
+        byte[] types = new byte[size];
+        byte[] keys = new byte[size];
+        short[] tracks = new short[size];
+        byte[] channels = new byte[size];
+
+        // position of the next event of each run
+        int[] heads = new int[runs.size()];
+
+        // min-heap of the runs that still have events, ordered by their next event
+        int[] heap = new int[runs.size()];
+        int heapSize = 0;
+        for (int r = 0; r < runs.size(); r++) {
+            if (runs.get(r).size() > 0) {
+                heap[heapSize++] = r;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, heads);
+        }
+
+        for (int i = 0; i < size; i++) {
+
+            int r = heap[0];
+            TrackRun run = runs.get(r);
+            int head = heads[r]++;
+
+            timestamps[i] = run.getTimestamp(head);
+            durations[i] = run.getDuration(head);
+            types[i] = run.getType(head);
+            keys[i] = run.getKey(head);
+            tracks[i] = (short) r;
+            channels[i] = run.getChannel(head);
+
+            // run is exhausted
+            if (heads[r] == run.size()) {
+                heap[0] = heap[--heapSize];
+            }
+
+            siftDown(heap, heapSize, 0, heads);
+        }
+
+        return new MidiTimeline(timestamps, durations, types, keys, tracks, channels, tempoMap, divisionType, resolution);
+    }
+
+
+    /**
+     * Compares the next events of two runs by timestamp, then by key, then by track.
+     *
+     * @param r Index of the first run.
+     * @param s Index of the second run.
+     * @param heads Position of the next event of each run.
+     *
+     * @return A negative integer, zero, or a positive integer as the first event
+     *         is less than, equal to, or greater than the second.
+     */
+    private int compare(int r, int s, int[] heads) {
+
+        TrackRun a = runs.get(r);
+        TrackRun b = runs.get(s);
+        long ta = a.getTimestamp(heads[r]);
+        long tb = b.getTimestamp(heads[s]);
+
+        if (ta != tb) {
+            return Long.compare(ta, tb);
+        }
+
+        byte ka = a.getKey(heads[r]);
+        byte kb = b.getKey(heads[s]);
+
+        if (ka != kb) {
+            return Integer.compare(ka, kb);
+        }
+
+        return Integer.compare(r, s);
+    }
+
+
+    /**
+     * Moves a run down the heap until its next event is in place.
+     *
+     * @param heap Heap of run indices.
+     * @param heapSize Number of runs in the heap.
+     * @param i Position in the heap of the run to move.
+     * @param heads Position of the next event of each run.
+     */
+    private void siftDown(int[] heap, int heapSize, int i, int[] heads) {
+
+        int r = heap[i];
+
+        while (2 * i + 1 < heapSize) {
+
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && compare(heap[child + 1], heap[child], heads) < 0) {
+                child++;
+            }
+
+            if (compare(r, heap[child], heads) <= 0) {
+                break;
+            }
+
+            heap[i] = heap[child];
+            i = child;
+        }
+
+        heap[i] = r;
+    }
+}
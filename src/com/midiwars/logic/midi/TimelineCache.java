@@ -0,0 +1,318 @@
+package com.midiwars.logic.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps recently used timelines in memory, so that a song is only parsed once per session. (Singleton)
+ * The cache is bounded by the total number of events it holds; the least recently used timelines are evicted first.
+ * Timelines missing from memory are loaded through the {@link TimelineStore}.
+ * Selections of parts of a song are kept as timelines of their own, derived from the whole song if it's at hand,
+ * or parsed on their own otherwise.
+ */
+public class TimelineCache {
+
+    /* --- DEFINES --- */
+
+    /** Default maximum number of events held in memory (about 34MB of timelines, at 17 bytes per event). */
+    public static final int DEFAULT_CAPACITY = 2000000;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Cached timelines by absolute path of their midi file (and selected parts), from least to most recently used. */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /** Maximum number of events held in memory. */
+    private long capacity;
+
+    /** Number of events currently held in memory. */
+    private long size;
+
+    /** Number of requests served from memory. */
+    private long hits;
+
+    /** Number of requests that had to load the timeline. */
+    private long misses;
+
+    /** Number of timelines evicted to make room for others. */
+    private long evictions;
+
+    /** The instance. */
+    private static final TimelineCache instance = new TimelineCache();
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Getter.
+     *
+     * @return The {@link #instance}.
+     */
+    public static TimelineCache getInstance() {
+        return instance;
+    }
+
+
+    /**
+     * Creates a new TimelineCache object.
+     */
+    private TimelineCache() {
+
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        capacity = DEFAULT_CAPACITY;
+        size = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+
+    /**
+     * Returns the timeline of the given midi file,
+     * loading it if it isn't in memory or if the file changed since it was loaded.
+     *
+     * @param filepath Path to midi file.
+     *
+     * @return The timeline.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     * @throws IOException Can't open file.
+     */
+    public MidiTimeline get(String filepath) throws InvalidMidiDataException, IOException {
+        return get(filepath, PartSelector.ALL);
+    }
+
+
+    /**
+     * Returns the timeline of the given parts of a midi file,
+     * selecting them from the whole timeline if they aren't in memory (and it is),
+     * or loading only those parts otherwise.
+     *
+     * @param filepath Path to midi file.
+     * @param parts Parts of the midi file.
+     *
+     * @return The timeline.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     * @throws IOException Can't open file.
+     */
+    public MidiTimeline get(String filepath, PartSelector parts) throws InvalidMidiDataException, IOException {
+
+        Path midiFile = Paths.get(filepath).toAbsolutePath().normalize();
+        String key = getKey(midiFile, parts);
+        long fileSize = Files.size(midiFile);
+        long lastModified = Files.getLastModifiedTime(midiFile).toMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.fileSize == fileSize && entry.lastModified == lastModified) {
+                hits++;
+                return entry.midiTimeline;
+            }
+            misses++;
+        }
+
+        // load outside the lock, so other songs can still be served meanwhile
+        MidiTimeline midiTimeline;
+        MidiTimeline whole = parts.isAll() ? null : getIfPresent(filepath, PartSelector.ALL);
+        if (whole != null) {
+            midiTimeline = whole.select(parts);
+        } else {
+            midiTimeline = TimelineStore.getInstance().load(filepath, parts);
+        }
+
+        put(key, new Entry(midiTimeline, fileSize, lastModified));
+
+        return midiTimeline;
+    }
+
+
+    /**
+     * Returns the timeline of the given midi file, only if it is already in memory
+     * and the file didn't change since it was loaded.
+     * Doesn't count as a hit nor as a miss.
+     *
+     * @param filepath Path to midi file.
+     * @param parts Parts of the midi file.
+     *
+     * @return The timeline, or null if it isn't in memory.
+     *
+     * @throws IOException Can't open file.
+     */
+    public MidiTimeline getIfPresent(String filepath, PartSelector parts) throws IOException {
+
+        Path midiFile = Paths.get(filepath).toAbsolutePath().normalize();
+        long fileSize = Files.size(midiFile);
+        long lastModified = Files.getLastModifiedTime(midiFile).toMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(getKey(midiFile, parts));
+            if (entry != null && entry.fileSize == fileSize && entry.lastModified == lastModified) {
+                return entry.midiTimeline;
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns the key of the given parts of a midi file.
+     *
+     * @param midiFile Absolute path of the midi file.
+     * @param parts Parts of the midi file.
+     *
+     * @return Key.
+     */
+    private static String getKey(Path midiFile, PartSelector parts) {
+        return parts.isAll() ? midiFile.toString() : midiFile + "?" + parts;
+    }
+
+
+    /**
+     * Adds the given entry to the cache, evicting the least recently used ones if needed.
+     * Timelines bigger than the whole cache aren't kept.
+     *
+     * @param key Key of the entry.
+     * @param entry Entry to add.
+     */
+    private synchronized void put(String key, Entry entry) {
+
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.midiTimeline.size();
+        }
+
+        if (entry.midiTimeline.size() > capacity) {
+            return;
+        }
+
+        entries.put(key, entry);
+        size += entry.midiTimeline.size();
+
+        evict();
+    }
+
+
+    /**
+     * Evicts the least recently used timelines until the cache is within its capacity.
+     */
+    private void evict() {
+
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().midiTimeline.size();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+
+    /**
+     * Sets the maximum number of events held in memory,
+     * evicting timelines if the cache no longer fits.
+     *
+     * @param capacity Maximum number of events. 0 disables the cache.
+     */
+    public synchronized void setCapacity(long capacity) {
+
+        this.capacity = Math.max(0, capacity);
+        evict();
+    }
+
+
+    /**
+     * Removes every timeline from memory.
+     */
+    public synchronized void clear() {
+
+        entries.clear();
+        size = 0;
+    }
+
+
+    /**
+     * Returns {@link #capacity}.
+     *
+     * @return {@link #capacity Capacity} (events).
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Returns {@link #size}.
+     *
+     * @return {@link #size Size} (events).
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    /**
+     * Returns {@link #hits}.
+     *
+     * @return Number of {@link #hits}.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Returns {@link #misses}.
+     *
+     * @return Number of {@link #misses}.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * Returns {@link #evictions}.
+     *
+     * @return Number of {@link #evictions}.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+
+    /**
+     * A cached timeline, along with the state of its midi file when it was loaded.
+     */
+    private static class Entry {
+
+        /** The timeline. */
+        private final MidiTimeline midiTimeline;
+
+        /** Size of the midi file (bytes). */
+        private final long fileSize;
+
+        /** Modification time of the midi file (ms). */
+        private final long lastModified;
+
+
+        /**
+         * Creates a new Entry object.
+         *
+         * @param midiTimeline The timeline.
+         * @param fileSize Size of the midi file (bytes).
+         * @param lastModified Modification time of the midi file (ms).
+         */
+        private Entry(MidiTimeline midiTimeline, long fileSize, long lastModified) {
+            this.midiTimeline = midiTimeline;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+        }
+    }
+}
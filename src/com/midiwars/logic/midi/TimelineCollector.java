@@ -0,0 +1,137 @@
+package com.midiwars.logic.midi;
+
+import java.util.Arrays;
+
+/**
+ * Last stage of a timeline pipeline: collects the events it receives into a new {@link MidiTimeline}.
+ * Also used by stages that need every event before pushing any of them down.
+ */
+class TimelineCollector implements TimelineSink {
+
+    /* --- DEFINES --- */
+
+    /** Minimum capacity of each column. */
+    public static final int MIN_CAPACITY = 256;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Moment in time each event was generated (µs). */
+    private long[] timestamps;
+
+    /** How long each note was played for (µs). */
+    private int[] durations;
+
+    /** NOTE_ON (0x90) or NOTE_OFF (0x80), for each event. */
+    private byte[] types;
+
+    /** Key number [0-127] of each event. */
+    private byte[] keys;
+
+    /** Track of each event. */
+    private short[] tracks;
+
+    /** Channel number [0-15] of each event. */
+    private byte[] channels;
+
+    /** Number of events collected. */
+    private int size;
+
+    /** Timeline the events originally came from. Null if the events are only {@link #replay replayed}. */
+    private final MidiTimeline source;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new TimelineCollector object.
+     *
+     * @param source Timeline the events originally come from (provides the tempo map and an estimate of the size),
+     *               null if the events will only be {@link #replay replayed}.
+     */
+    TimelineCollector(MidiTimeline source) {
+
+        int capacity = (source == null) ? MIN_CAPACITY : Math.max(MIN_CAPACITY, source.size());
+
+        timestamps = new long[capacity];
+        durations = new int[capacity];
+        types = new byte[capacity];
+        keys = new byte[capacity];
+        tracks = new short[capacity];
+        channels = new byte[capacity];
+        size = 0;
+        this.source = source;
+    }
+
+
+    @Override
+    public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+
+        // make room for the new event
+        if (size == timestamps.length) {
+            grow();
+        }
+
+        timestamps[size] = timestamp;
+        durations[size] = duration;
+        types[size] = (byte) type;
+        keys[size] = (byte) key;
+        tracks[size] = (short) track;
+        channels[size] = (byte) channel;
+        size++;
+    }
+
+
+    /**
+     * Doubles the capacity of every column.
+     */
+    private void grow() {
+
+        int capacity = 2 * timestamps.length;
+
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        types = Arrays.copyOf(types, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        tracks = Arrays.copyOf(tracks, capacity);
+        channels = Arrays.copyOf(channels, capacity);
+    }
+
+
+    /**
+     * Returns the number of events collected.
+     *
+     * @return Number of events.
+     */
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * Pushes the collected events, in order, to the given sink.
+     *
+     * @param sink Sink receiving the events.
+     */
+    void replay(TimelineSink sink) {
+
+        for (int i = 0; i < size; i++) {
+            sink.accept(timestamps[i], durations[i], types[i] & 0xff, keys[i], tracks[i] & 0xffff, channels[i]);
+        }
+
+        sink.end();
+    }
+
+
+    /**
+     * Builds the timeline out of the collected events.
+     *
+     * @return The timeline.
+     */
+    MidiTimeline build() {
+
+        return new MidiTimeline(Arrays.copyOf(timestamps, size), Arrays.copyOf(durations, size),
+                Arrays.copyOf(types, size), Arrays.copyOf(keys, size), Arrays.copyOf(tracks, size),
+                Arrays.copyOf(channels, size), source.getTempoMap(), source.getDivisionType(), source.getResolution());
+    }
+}
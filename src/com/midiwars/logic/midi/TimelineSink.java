@@ -0,0 +1,29 @@
+package com.midiwars.logic.midi;
+
+/**
+ * Receives the note events of a timeline, one at a time, in ascendant order of timestamps.
+ * Stages of a {@link TimelineTransform} pipeline are sinks that push events further down.
+ */
+public interface TimelineSink {
+
+    /**
+     * Called for each note event.
+     *
+     * @param timestamp Moment in time the event was generated (µs).
+     * @param duration How long the note was played for (µs). 0 for NOTE_OFF events.
+     * @param type NOTE_ON (0x90) or NOTE_OFF (0x80).
+     * @param key Key number [0-127].
+     * @param track Track the event came from.
+     * @param channel Channel number [0-15].
+     */
+    void accept(long timestamp, int duration, int type, int key, int track, int channel);
+
+
+    /**
+     * Called once every event has been received.
+     * Stages that hold events back must push them down now.
+     */
+    default void end() {
+
+    }
+}
@@ -0,0 +1,426 @@
+package com.midiwars.logic.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps compiled timelines on disk, so that midi files don't have to be parsed every time they're played. (Singleton)
+ * Each entry is keyed by the path of its midi file and is valid while the file's size and modification time match;
+ * if only the modification time changed, the file's contents are compared with the CRC32 stored in the entry instead.
+ * Entries are read into the timeline's columns without being memory-mapped, so that they can always be rewritten.
+ * Entries that are stale or corrupt are rebuilt from the midi file.
+ * Only whole songs are stored; selections of parts of a song are taken from its entry, if there's one.
+ */
+public class TimelineStore {
+
+    /* --- DEFINES --- */
+
+    /** Identifies a compiled timeline file ("MWTL"). */
+    public static final int MAGIC = 0x4d57544c;
+
+    /** Version of the compiled timeline format. */
+    public static final int VERSION = 2;
+
+    /** Extension of compiled timeline files. */
+    public static final String EXTENSION = ".mwt";
+
+    /** Size of the fixed part of the header (bytes), not counting the midi file path. */
+    public static final int HEADER_LENGTH = 60;
+
+    /** Offset of the midi file's modification time in the header (bytes). */
+    private static final int LAST_MODIFIED_OFFSET = 16;
+
+    /** Size of the buffer used to checksum midi files (bytes). */
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 16;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Directory where compiled timelines are stored. Null if the store is disabled. */
+    private volatile Path cachePath;
+
+    /** The instance. */
+    private static final TimelineStore instance = new TimelineStore();
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Getter.
+     *
+     * @return The {@link #instance}.
+     */
+    public static TimelineStore getInstance() {
+        return instance;
+    }
+
+
+    /**
+     * Creates a new TimelineStore object.
+     */
+    private TimelineStore() {
+        cachePath = null;
+    }
+
+
+    /**
+     * Sets the directory where compiled timelines are stored.
+     *
+     * @param cachePath Path to the directory, or null to disable the store.
+     */
+    public void setCachePath(String cachePath) {
+        this.cachePath = (cachePath == null) ? null : Paths.get(cachePath);
+    }
+
+
+    /**
+     * Returns the timeline of the given midi file,
+     * loading it from the store if there is a valid entry for it,
+     * or parsing the file (and storing the result) otherwise.
+     *
+     * @param filepath Path to midi file.
+     *
+     * @return The timeline.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     * @throws IOException Can't open file.
+     */
+    public MidiTimeline load(String filepath) throws InvalidMidiDataException, IOException {
+        return load(filepath, PartSelector.ALL);
+    }
+
+
+    /**
+     * Returns the timeline of the given parts of a midi file,
+     * selecting them from the stored timeline if there is a valid entry for it,
+     * or parsing only those parts of the file otherwise.
+     * Entries are only written for whole songs.
+     *
+     * @param filepath Path to midi file.
+     * @param parts Parts of the midi file.
+     *
+     * @return The timeline.
+     *
+     * @throws InvalidMidiDataException Midi file is invalid.
+     * @throws IOException Can't open file.
+     */
+    public MidiTimeline load(String filepath, PartSelector parts) throws InvalidMidiDataException, IOException {
+
+        Path dir = cachePath;
+        if (dir == null) {
+            return new MidiTimeline(filepath, parts);
+        }
+
+        Path midiFile = Paths.get(filepath).toAbsolutePath().normalize();
+        String key = midiFile.toString();
+        long size = Files.size(midiFile);
+        long lastModified = Files.getLastModifiedTime(midiFile).toMillis();
+
+        Path entry = dir.resolve(getEntryName(key));
+
+        // cache hit
+        MidiTimeline midiTimeline = read(entry, midiFile, key, size, lastModified);
+        if (midiTimeline != null) {
+            return midiTimeline.select(parts);
+        }
+
+        // cache miss, stale or corrupt entry (a selection can't rebuild it)
+        if (!parts.isAll()) {
+            return new MidiTimeline(filepath, parts);
+        }
+
+        midiTimeline = new MidiTimeline(filepath);
+
+        try {
+            Files.createDirectories(dir);
+            write(dir, entry, midiTimeline, key, size, lastModified, checksum(midiFile));
+        } catch (IOException e) {
+            // the store is only a shortcut, the timeline is still good
+        }
+
+        return midiTimeline;
+    }
+
+
+    /**
+     * Returns the name of the entry of the given midi file.
+     *
+     * @param key Absolute path to the midi file.
+     *
+     * @return File name of the entry.
+     */
+    private static String getEntryName(String key) {
+
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+
+        return String.format("%08x%08x%s", crc.getValue(), key.hashCode(), EXTENSION);
+    }
+
+
+    /**
+     * Computes the CRC32 of the given file's contents.
+     *
+     * @param file File to read.
+     *
+     * @return Checksum.
+     *
+     * @throws IOException Can't open file.
+     */
+    private static int checksum(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+
+            return (int) crc.getValue();
+        }
+    }
+
+
+    /**
+     * Reads the given entry, if it matches the given midi file.
+     * If only the midi file's modification time changed, its contents are checksummed,
+     * and the entry is kept (with its modification time updated) when they're still the same.
+     *
+     * @param entry Path to the entry.
+     * @param midiFile Path to the midi file.
+     * @param key Absolute path to the midi file.
+     * @param size Size of the midi file (bytes).
+     * @param lastModified Modification time of the midi file (ms).
+     *
+     * @return The timeline, or null if the entry is missing, stale or corrupt.
+     */
+    private static MidiTimeline read(Path entry, Path midiFile, String key, long size, long lastModified) {
+
+        if (!Files.isRegularFile(entry)) {
+            return null;
+        }
+
+        boolean touched;
+        float divisionType;
+        int resolution;
+        long denominator;
+        int segments;
+        int events;
+        int payloadCrc;
+        ByteBuffer payload;
+
+        try (FileChannel channel = FileChannel.open(entry, READ)) {
+
+            // header
+            ByteBuffer header = readFully(channel, HEADER_LENGTH);
+            if (header == null || header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != size) {
+                return null;
+            }
+
+            touched = header.getLong() != lastModified;
+            int contentCrc = header.getInt();
+            if (touched && checksum(midiFile) != contentCrc) {
+                return null;
+            }
+
+            divisionType = header.getFloat();
+            resolution = header.getInt();
+            denominator = header.getLong();
+            segments = header.getInt();
+            events = header.getInt();
+            payloadCrc = header.getInt();
+
+            int pathLength = header.getInt();
+            if (pathLength < 0 || pathLength > channel.size() - HEADER_LENGTH) {
+                return null;
+            }
+
+            ByteBuffer path = readFully(channel, pathLength);
+            if (path == null || !key.equals(new String(path.array(), StandardCharsets.UTF_8))) {
+                return null;
+            }
+
+            // payload
+            long payloadLength = 24L * segments + 17L * events;
+            if (segments < 1 || events < 0 || payloadLength > Integer.MAX_VALUE || channel.size() - channel.position() != payloadLength) {
+                return null;
+            }
+
+            payload = readFully(channel, (int) payloadLength);
+            if (payload == null) {
+                return null;
+            }
+
+        } catch (IOException e) {
+            return null;
+        }
+
+        // the midi file was only touched, skip the checksum next time
+        if (touched) {
+            try (FileChannel channel = FileChannel.open(entry, WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(8).putLong(0, lastModified);
+                channel.write(buffer, LAST_MODIFIED_OFFSET);
+            } catch (IOException e) {
+                // the entry is still good, it'll just be checksummed again
+            }
+        }
+
+        try {
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != payloadCrc) {
+                return null;
+            }
+
+            long[] ticks = new long[segments];
+            long[] rates = new long[segments];
+            long[] offsets = new long[segments];
+            long[] timestamps = new long[events];
+            int[] durations = new int[events];
+            byte[] types = new byte[events];
+            byte[] keys = new byte[events];
+            short[] tracks = new short[events];
+            byte[] channels = new byte[events];
+
+            payload.asLongBuffer().get(ticks);
+            payload.position(payload.position() + 8 * segments);
+            payload.asLongBuffer().get(rates);
+            payload.position(payload.position() + 8 * segments);
+            payload.asLongBuffer().get(offsets);
+            payload.position(payload.position() + 8 * segments);
+            payload.asLongBuffer().get(timestamps);
+            payload.position(payload.position() + 8 * events);
+            payload.asIntBuffer().get(durations);
+            payload.position(payload.position() + 4 * events);
+            payload.get(types);
+            payload.get(keys);
+            payload.asShortBuffer().get(tracks);
+            payload.position(payload.position() + 2 * events);
+            payload.get(channels);
+
+            TempoMap tempoMap = new TempoMap(ticks, rates, offsets, denominator);
+
+            return new MidiTimeline(timestamps, durations, types, keys, tracks, channels, tempoMap, divisionType, resolution);
+
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads the given number of bytes from the channel's current position.
+     *
+     * @param channel Channel to read from.
+     * @param length Number of bytes to read.
+     *
+     * @return Buffer with the bytes (ready to be read), or null if the channel ended first.
+     *
+     * @throws IOException Can't read from channel.
+     */
+    private static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return null;
+            }
+        }
+
+        return buffer.flip();
+    }
+
+
+    /**
+     * Writes the given timeline to the given entry.
+     * The entry is first written to a temporary file and then moved into place,
+     * so that a half-written entry is never read.
+     *
+     * @param dir Directory where entries are stored.
+     * @param entry Path to the entry.
+     * @param midiTimeline Timeline to write.
+     * @param key Absolute path to the midi file.
+     * @param size Size of the midi file (bytes).
+     * @param lastModified Modification time of the midi file (ms).
+     * @param contentCrc CRC32 of the midi file's contents.
+     *
+     * @throws IOException Can't write entry.
+     */
+    private static void write(Path dir, Path entry, MidiTimeline midiTimeline, String key, long size, long lastModified, int contentCrc) throws IOException {
+
+        TempoMap tempoMap = midiTimeline.getTempoMap();
+        long[] ticks = tempoMap.getTicks();
+        int segments = ticks.length;
+        int events = midiTimeline.size();
+        byte[] path = key.getBytes(StandardCharsets.UTF_8);
+
+        // payload
+        ByteBuffer payload = ByteBuffer.allocate(24 * segments + 17 * events);
+
+        for (long tick : ticks) payload.putLong(tick);
+        for (long rate : tempoMap.getRates()) payload.putLong(rate);
+        for (long offset : tempoMap.getOffsets()) payload.putLong(offset);
+        for (int i = 0; i < events; i++) payload.putLong(midiTimeline.getTimestampMicros(i));
+        for (int i = 0; i < events; i++) payload.putInt(midiTimeline.getDurationMicros(i));
+        for (int i = 0; i < events; i++) payload.put((byte) midiTimeline.getType(i));
+        for (int i = 0; i < events; i++) payload.put((byte) midiTimeline.getKey(i));
+        for (int i = 0; i < events; i++) payload.putShort((short) midiTimeline.getTrack(i));
+        for (int i = 0; i < events; i++) payload.put((byte) midiTimeline.getChannel(i));
+        payload.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        // header
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + path.length);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(size);
+        header.putLong(lastModified);
+        header.putInt(contentCrc);
+        header.putFloat(midiTimeline.getDivisionType());
+        header.putInt(midiTimeline.getResolution());
+        header.putLong(tempoMap.getDenominator());
+        header.putInt(segments);
+        header.putInt(events);
+        header.putInt((int) crc.getValue());
+        header.putInt(path.length);
+        header.put(path);
+        header.flip();
+
+        Path temp = Files.createTempFile(dir, "entry", ".tmp");
+        try {
+
+            try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+                ByteBuffer[] buffers = {header, payload};
+                while (header.hasRemaining() || payload.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+
+            Files.move(temp, entry, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.midiwars.logic.midi;
+
+import java.util.List;
+
+/**
+ * A stage of a timeline pipeline (e.g. transposition, melody extraction).
+ * Stages don't build timelines of their own: each one wraps the sink of the next stage,
+ * so that a whole chain is evaluated in a single pass over the events,
+ * with no intermediate timelines in-between.
+ */
+@FunctionalInterface
+public interface TimelineTransform {
+
+    /**
+     * Wraps the given sink.
+     *
+     * @param downstream Sink of the next stage.
+     *
+     * @return Sink receiving the events of the previous stage.
+     */
+    TimelineSink apply(TimelineSink downstream);
+
+
+    /**
+     * Chains the given stages, in order.
+     *
+     * @param stages Stages to chain.
+     * @param downstream Sink receiving the events of the last stage.
+     *
+     * @return Sink receiving the events of the first stage.
+     */
+    static TimelineSink chain(List<TimelineTransform> stages, TimelineSink downstream) {
+
+        TimelineSink sink = downstream;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            sink = stages.get(i).apply(sink);
+        }
+
+        return sink;
+    }
+}
@@ -0,0 +1,142 @@
+package com.midiwars.logic.midi;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+
+/**
+ * Common stages of a timeline pipeline.
+ *
+ * @see TimelineTransform
+ * @see Skyline
+ */
+public class TimelineTransforms {
+
+    /* --- DEFINES --- */
+
+    /** Lowest key number. */
+    public static final int MIN_KEY = 0;
+
+    /** Highest key number. */
+    public static final int MAX_KEY = 127;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new TimelineTransforms object.
+     */
+    private TimelineTransforms() {
+
+    }
+
+
+    /**
+     * Shifts every note by the given amount of semitones.
+     * Notes shifted out of the midi range are dropped.
+     *
+     * @param semitones Amount of semitones (negative to shift down).
+     *
+     * @return The stage.
+     */
+    public static TimelineTransform transpose(int semitones) {
+
+        return downstream -> new Stage(downstream) {
+            @Override
+            public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+                int shifted = key + semitones;
+                if (shifted >= MIN_KEY && shifted <= MAX_KEY) {
+                    this.downstream.accept(timestamp, duration, type, shifted, track, channel);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Stretches the timeline by the given factor.
+     * Durations are taken from the scaled end of the notes, so they still meet their NOTE_OFF events.
+     *
+     * @param factor Scale factor (e.g. 2 plays twice as slow, 0.5 twice as fast). Must be positive.
+     *
+     * @return The stage.
+     */
+    public static TimelineTransform timeScale(double factor) {
+
+        if (!(factor > 0)) {
+            throw new IllegalArgumentException("Scale factor must be positive.");
+        }
+
+        return downstream -> new Stage(downstream) {
+            @Override
+            public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+                long start = Math.round(timestamp * factor);
+                long end = Math.round((timestamp + duration) * factor);
+                this.downstream.accept(start, (int) Math.min(end - start, Integer.MAX_VALUE), type, key, track, channel);
+            }
+        };
+    }
+
+
+    /**
+     * Keeps only the notes within the given range of keys.
+     *
+     * @param low Lowest key kept.
+     * @param high Highest key kept.
+     *
+     * @return The stage.
+     */
+    public static TimelineTransform keyRange(int low, int high) {
+
+        return downstream -> new Stage(downstream) {
+            @Override
+            public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+                if (key >= low && key <= high) {
+                    this.downstream.accept(timestamp, duration, type, key, track, channel);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Drops every NOTE_OFF event, so that each note is held until the next one is pressed.
+     *
+     * @return The stage.
+     */
+    public static TimelineTransform dropNoteOffs() {
+
+        return downstream -> new Stage(downstream) {
+            @Override
+            public void accept(long timestamp, int duration, int type, int key, int track, int channel) {
+                if (type != NOTE_OFF) {
+                    this.downstream.accept(timestamp, duration, type, key, track, channel);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Stage that holds no events back: the end of the pass goes straight down.
+     */
+    private abstract static class Stage implements TimelineSink {
+
+        /** Sink of the next stage. */
+        protected final TimelineSink downstream;
+
+
+        /**
+         * Creates a new Stage object.
+         *
+         * @param downstream Sink of the next stage.
+         */
+        Stage(TimelineSink downstream) {
+            this.downstream = downstream;
+        }
+
+
+        @Override
+        public void end() {
+            downstream.end();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.midiwars.logic.midi;
+
+import java.util.Arrays;
+
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Note events of a single track, as decoded from the midi file.
+ * Since a track is walked in order of ticks, its events come out already sorted,
+ * so runs of every track can later be merged into a timeline without a global sort.
+ * Events of channels that aren't selected are dropped as soon as they're decoded.
+ */
+public class TrackRun implements MidiEventSink {
+
+    /* --- DEFINES --- */
+
+    /** Initial capacity of each column. */
+    public static final int INITIAL_CAPACITY = 256;
+
+
+    /* --- ATTRIBUTES --- */
+
+    /** Moment in time each event was generated (µs). */
+    private long[] timestamps;
+
+    /** How long each note was played for (µs). */
+    private int[] durations;
+
+    /** NOTE_ON (0x90) or NOTE_OFF (0x80), for each event. */
+    private byte[] types;
+
+    /** Key number [0-127] of each event. */
+    private byte[] keys;
+
+    /** Channel number [0-15] of each event. */
+    private byte[] channels;
+
+    /** Number of events collected. */
+    private int size;
+
+    /** Converts note ticks to time while the track is walked in order. */
+    private final TempoMap.Cursor tempoCursor;
+
+    /** Index of the track. */
+    private final int track;
+
+    /** Parts of the midi file to keep. */
+    private final PartSelector parts;
+
+    /**
+     * Index of the latest NOTE_ON still waiting for its NOTE_OFF,
+     * for each channel and key. -1 if there's none.
+     */
+    private final int[][] openNotes;
+
+    /**
+     * Links each open NOTE_ON (index) to the previous open NOTE_ON
+     * of the same channel and key, so that overlapping notes can all be closed.
+     */
+    private int[] openLinks;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new TrackRun object, keeping every event.
+     *
+     * @param tempoMap Frozen tempo map of the midi file.
+     */
+    public TrackRun(TempoMap tempoMap) {
+        this(tempoMap, 0, PartSelector.ALL);
+    }
+
+
+    /**
+     * Creates a new TrackRun object, keeping only the events of the given parts.
+     *
+     * @param tempoMap Frozen tempo map of the midi file.
+     * @param track Index of the track.
+     * @param parts Parts of the midi file to keep.
+     */
+    public TrackRun(TempoMap tempoMap, int track, PartSelector parts) {
+
+        timestamps = new long[INITIAL_CAPACITY];
+        durations = new int[INITIAL_CAPACITY];
+        types = new byte[INITIAL_CAPACITY];
+        keys = new byte[INITIAL_CAPACITY];
+        channels = new byte[INITIAL_CAPACITY];
+        openLinks = new int[INITIAL_CAPACITY];
+        size = 0;
+        tempoCursor = tempoMap.cursor();
+        this.track = track;
+        this.parts = parts;
+        openNotes = new int[16][128];
+
+        for (int[] channel : openNotes) {
+            Arrays.fill(channel, -1);
+        }
+    }
+
+
+    /**
+     * Adds note event to the run.
+     * Events must be added in order of ticks.
+     *
+     * @param type NOTE_ON (0x90) or NOTE_OFF (0x80).
+     * @param channel Channel number [0-15].
+     * @param key Key number [0-127].
+     * @param tick MidiEvent time-stamp (ticks).
+     */
+    @Override
+    public void addNoteEvent(int type, int channel, int key, long tick) {
+
+        // notes are paired within their own channel, so the others can be dropped right away
+        if (!parts.selects(track, channel)) {
+            return;
+        }
+
+        long timestamp = tempoCursor.toMicroseconds(tick);
+
+        // make room for the new event
+        if (size == timestamps.length) {
+            grow();
+        }
+
+        // key pressed
+        if (type == NOTE_ON) {
+
+            // becomes the latest open note of this channel and key
+            openLinks[size] = openNotes[channel][key];
+            openNotes[channel][key] = size;
+        }
+
+        // key released
+        else {
+
+            // set duration of every respective NOTE_ON event
+            for (int i = openNotes[channel][key]; i >= 0; i = openLinks[i]) {
+                durations[i] = clamp(timestamp - timestamps[i]);
+            }
+
+            openNotes[channel][key] = -1;
+        }
+
+        // add note event
+        timestamps[size] = timestamp;
+        durations[size] = 0;
+        types[size] = (byte) type;
+        keys[size] = (byte) key;
+        channels[size] = (byte) channel;
+        size++;
+    }
+
+
+    /**
+     * Doubles the capacity of every column.
+     */
+    private void grow() {
+
+        int capacity = 2 * timestamps.length;
+
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        types = Arrays.copyOf(types, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        channels = Arrays.copyOf(channels, capacity);
+        openLinks = Arrays.copyOf(openLinks, capacity);
+    }
+
+
+    /**
+     * Clamps the given duration to the range of an int.
+     *
+     * @param duration Duration (µs).
+     *
+     * @return Clamped duration (µs).
+     */
+    private static int clamp(long duration) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, duration));
+    }
+
+
+    /**
+     * Finishes the run, once every event of the track has been added.
+     * Events are already in order of timestamps, but events with the
+     * same timestamp still have to be sorted by key.
+     */
+    public void finish() {
+
+        // pairing is done, open notes are left with no duration
+        openLinks = null;
+
+        if (isSorted()) {
+            return;
+        }
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sort(order, new int[size], 0, size);
+
+        long[] sortedTimestamps = new long[size];
+        int[] sortedDurations = new int[size];
+        byte[] sortedTypes = new byte[size];
+        byte[] sortedKeys = new byte[size];
+        byte[] sortedChannels = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            sortedTimestamps[i] = timestamps[order[i]];
+            sortedDurations[i] = durations[order[i]];
+            sortedTypes[i] = types[order[i]];
+            sortedKeys[i] = keys[order[i]];
+            sortedChannels[i] = channels[order[i]];
+        }
+
+        timestamps = sortedTimestamps;
+        durations = sortedDurations;
+        types = sortedTypes;
+        keys = sortedKeys;
+        channels = sortedChannels;
+    }
+
+
+    /**
+     * Checks if the events are already sorted by timestamp, then by key.
+     *
+     * @return True if sorted, False otherwise.
+     */
+    private boolean isSorted() {
+
+        for (int i = 1; i < size; i++) {
+            if (compare(i - 1, i) > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Compares two events by timestamp, then by key.
+     *
+     * @param i Index of the first event.
+     * @param j Index of the second event.
+     *
+     * @return A negative integer, zero, or a positive integer as the first event
+     *         is less than, equal to, or greater than the second.
+     */
+    private int compare(int i, int j) {
+
+        if (timestamps[i] == timestamps[j]) {
+            return Integer.compare(keys[i], keys[j]);
+        } else {
+            return Long.compare(timestamps[i], timestamps[j]);
+        }
+    }
+
+
+    /**
+     * Stable merge sort of the given event indices.
+     *
+     * @param order Event indices to sort.
+     * @param aux Auxiliary array, as long as order.
+     * @param from First position to sort (inclusive).
+     * @param to Last position to sort (exclusive).
+     */
+    private void sort(int[] order, int[] aux, int from, int to) {
+
+        if (to - from < 2) {
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        sort(order, aux, from, mid);
+        sort(order, aux, mid, to);
+
+        // already in order
+        if (compare(order[mid - 1], order[mid]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(order, from, aux, from, to - from);
+
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && compare(aux[i], aux[j]) <= 0)) {
+                order[k] = aux[i++];
+            } else {
+                order[k] = aux[j++];
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of events in the run.
+     *
+     * @return Number of events.
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the moment in time the given event was generated.
+     *
+     * @param i Event index.
+     *
+     * @return Timestamp (µs).
+     */
+    long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+
+    /**
+     * Returns how long the given note was played for.
+     *
+     * @param i Event index.
+     *
+     * @return Duration (µs).
+     */
+    int getDuration(int i) {
+        return durations[i];
+    }
+
+
+    /**
+     * Returns the type of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return NOTE_ON (0x90) or NOTE_OFF (0x80), as a byte.
+     */
+    byte getType(int i) {
+        return types[i];
+    }
+
+
+    /**
+     * Returns the key number of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Key number [0-127].
+     */
+    byte getKey(int i) {
+        return keys[i];
+    }
+
+
+    /**
+     * Returns the channel of the given event.
+     *
+     * @param i Event index.
+     *
+     * @return Channel number [0-15].
+     */
+    byte getChannel(int i) {
+        return channels[i];
+    }
+}
@@ -1,7 +1,10 @@
 package com.midiwars.ui;
 
+import com.midiwars.logic.PlaybackOptions;
+import com.midiwars.util.MyExceptions.InvalidOptionException;
 import com.midiwars.util.MyExceptions.UIAlreadyExists;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -47,6 +50,15 @@ public abstract class UserInterface {
     /** Command to check playability of a midi file. */
     public final static String CMD_CANPLAY = "canplay";
 
+    /** Command to move playback to a moment in time of the current song. */
+    public static final String CMD_SEEK = "seek";
+
+    /** Command to change the playback speed. */
+    public static final String CMD_SPEED = "speed";
+
+    /** Command to show how well the timeline cache is doing. */
+    public static final String CMD_CACHE = "cache";
+
 
     /* --- ATTRS --- */
 
@@ -101,8 +113,9 @@ public abstract class UserInterface {
      * Plays the given file.
      *
      * @param filename File to play.
+     * @param options Options to play the file with.
      */
-    public abstract void play(String filename);
+    public abstract void play(String filename, PlaybackOptions options);
 
 
     /**
@@ -139,9 +152,32 @@ public abstract class UserInterface {
      * Checks if the given midi file can be played by the given instrument.
      *
      * @param filename Name of midi file to play.
+     * @param options Options the file would be played with.
      * @param explicit True if this was explicitly called by the user, False otherwise.
      */
-    public abstract void canPlay(String filename, boolean explicit);
+    public abstract void canPlay(String filename, PlaybackOptions options, boolean explicit);
+
+
+    /**
+     * Moves playback to the given moment in time of the current song.
+     *
+     * @param seconds Moment in time (s).
+     */
+    public abstract void seek(int seconds);
+
+
+    /**
+     * Changes the playback speed.
+     *
+     * @param speed Playback speed (e.g. 0.85 plays a bit slower).
+     */
+    public abstract void speed(double speed);
+
+
+    /**
+     * Shows how many songs were served from and loaded into the timeline cache.
+     */
+    public abstract void cache();
 
 
     /**
@@ -166,10 +202,16 @@ public abstract class UserInterface {
         boolean next = false;
         boolean stop = false;
         boolean canPlay = false;
+        boolean seek = false;
+        boolean speed = false;
+        boolean cache = false;
         boolean quit = false;
         int nOps = 0;
 
         String filename = "";
+        int seconds = 0;
+        double speedValue = 1;
+        PlaybackOptions options = PlaybackOptions.DEFAULT;
 
         boolean exit = false;
         for (int i = 0; !exit && i < args.length; i++) {
@@ -197,6 +239,10 @@ public abstract class UserInterface {
                         play = true;
                         // skip next arg (since it's the filename)
                         i++;
+                        // options take up the rest of the args
+                        options = parseOptions(args, i + 1);
+                        exit = (options == null);
+                        i = args.length;
                     } else {
                         exit = true;
                     }
@@ -271,6 +317,10 @@ public abstract class UserInterface {
                         canPlay = true;
                         // skip next arg (since it's the filename)
                         i++;
+                        // options take up the rest of the args
+                        options = parseOptions(args, i + 1);
+                        exit = (options == null);
+                        i = args.length;
                     } else {
                         exit = true;
                     }
@@ -278,6 +328,53 @@ public abstract class UserInterface {
                     break;
                 }
 
+                case CMD_SEEK: {
+
+                    if (i == 0 && args.length == 2) {
+                        seconds = parseTime(args[i + 1]);
+                        seek = (seconds >= 0);
+                        exit = !seek;
+                        // skip next arg (since it's the time)
+                        i++;
+                    }
+                    else {
+                        exit = true;
+                    }
+                    nOps++;
+                    break;
+                }
+
+                case CMD_SPEED: {
+
+                    if (i == 0 && args.length == 2) {
+                        try {
+                            speedValue = Double.parseDouble(args[i + 1]);
+                            speed = true;
+                        } catch (NumberFormatException e) {
+                            exit = true;
+                        }
+                        // skip next arg (since it's the speed)
+                        i++;
+                    }
+                    else {
+                        exit = true;
+                    }
+                    nOps++;
+                    break;
+                }
+
+                case CMD_CACHE: {
+
+                    if (i == 0 && args.length == 1) {
+                        cache = true;
+                    }
+                    else {
+                        exit = true;
+                    }
+                    nOps++;
+                    break;
+                }
+
                 default:
                     exit = true;
                     break;
@@ -289,9 +386,9 @@ public abstract class UserInterface {
         }
         else if (!exit && nOps == 1) {
 
-            if (play) play(filename);
+            if (play) play(filename, options);
 
-            if (canPlay) canPlay(filename,true);
+            if (canPlay) canPlay(filename, options, true);
 
             if (pause) pause();
 
@@ -302,9 +399,56 @@ public abstract class UserInterface {
             if (prev) prev();
 
             if (next) next();
+
+            if (seek) seek(seconds);
+
+            if (speed) speed(speedValue);
+
+            if (cache) cache();
         }
         else {
             displayUsage();
         }
     }
+
+
+    /**
+     * Parses a moment in time given as minutes and seconds (mm:ss).
+     *
+     * @param time Moment in time (e.g. 1:05).
+     *
+     * @return Moment in time (s), or -1 if it's invalid.
+     */
+    private int parseTime(String time) {
+
+        if (!time.matches("\\d{1,4}:[0-5]\\d")) {
+            return -1;
+        }
+
+        int colon = time.indexOf(':');
+        return 60 * Integer.parseInt(time.substring(0, colon)) + Integer.parseInt(time.substring(colon + 1));
+    }
+
+
+    /**
+     * Parses the options (key=value pairs) given at the end of a command.
+     *
+     * @param args List of arguments.
+     * @param from Index of the first option.
+     *
+     * @return The options, or null if they're invalid.
+     */
+    private PlaybackOptions parseOptions(String[] args, int from) {
+
+        ArrayList<String> options = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            options.add(args[i]);
+        }
+
+        try {
+            return PlaybackOptions.parse(options.toArray(new String[0]));
+        } catch (InvalidOptionException e) {
+            return null;
+        }
+    }
 }
@@ -1,8 +1,11 @@
 package com.midiwars.ui.cli;
 
 import com.midiwars.logic.MidiWars;
+import com.midiwars.logic.PlaybackClock;
+import com.midiwars.logic.PlaybackOptions;
 import com.midiwars.logic.Instrument.Warning;
 import com.midiwars.ui.UserInterface;
+import com.midiwars.util.MyExceptions.InvalidOptionException;
 import com.midiwars.util.MyExceptions.MidifilesNotFoundException;
 import com.midiwars.util.MyExceptions.MidiPathNotFoundException;
 import org.xml.sax.SAXException;
@@ -57,13 +60,25 @@ public class CLI extends UserInterface {
 
         System.out.println("\nUsage: java -jar MidiWars.jar [command]");
         System.out.println("\nPossible commands:\n");
-        System.out.println("\tplay    <FILENAME>\tPlays the given midi file or playlist.\n");
-        System.out.println("\tcanplay <FILENAME>\tChecks if the given midi file can be properly played.");
+        System.out.println("\tplay    <FILENAME> [OPTIONS]\tPlays the given midi file or playlist.\n");
+        System.out.println("\tcanplay <FILENAME> [OPTIONS]\tChecks if the given midi file can be properly played.");
+        System.out.println("\nPossible options:\n");
+        System.out.println("\ttrack=<LIST>  \tOnly plays the given tracks (e.g. track=2 or track=1,3-5).\n");
+        System.out.println("\tchannel=<LIST>\tOnly plays the given channels (e.g. channel=1-9,11-16 leaves the drums out).\n");
+        System.out.println("\tmelody=<MODE> \tOnly plays the highest, lowest or most playable note at a time (highest, lowest or playable).\n");
+        System.out.println("\ttranspose=<N> \tShifts every note by N semitones (e.g. transpose=-12 plays an octave lower).\n");
+        System.out.println("\ttranspose=auto\tShifts every note by whichever amount best fits the instrument.\n");
+        System.out.println("\tquantize=<N>  \tSnaps notes to a grid of N steps per whole note (e.g. quantize=16 for sixteenth notes).\n");
+        System.out.println("\ttimescale=<F> \tStretches the song in time (e.g. timescale=2 plays twice as slow).\n");
+        System.out.println("\tkeys=<LO>-<HI>\tOnly plays the keys within the given range (e.g. keys=48-84).\n");
+        System.out.println("\tnoteoff=<MODE>\tReleases each note when it ends (keep) or holds it until the next one (drop).\n");
+        System.out.println("\tcooldown=<MODE>\tWaits for the keybar cooldown (wait) or slows down only the sections that are too fast, catching up in the rests (warp).\n");
+        System.out.println("\tStages (melody, transpose, timescale, keys, noteoff and cooldown) are applied in the order they're given, after quantize.");
     }
 
 
     @Override
-    public void canPlay(String filename, boolean explicit) {
+    public void canPlay(String filename, PlaybackOptions options, boolean explicit) {
 
         try {
 
@@ -71,7 +86,7 @@ public class CLI extends UserInterface {
                 filename = filename.replace(app.getMidiPath(), "");
             }
 
-            ArrayList<Warning> warnings = app.canPlay(filename);
+            ArrayList<Warning> warnings = app.canPlay(filename, options);
 
             for (Warning warning: warnings) {
                 switch (warning) {
@@ -109,7 +124,7 @@ public class CLI extends UserInterface {
 
 
     @Override
-    public void play(String filename) {
+    public void play(String filename, PlaybackOptions options) {
 
         try {
 
@@ -120,7 +135,13 @@ public class CLI extends UserInterface {
                 Thread.sleep(1000);
             }
 
-            app.play(filename);
+            app.play(filename, options);
+
+            PlaybackClock clock = app.getClock();
+            if (clock.getCount() > 0) {
+                System.out.println(String.format("Playback finished. Notes were played %.1fms late on average (%.1fms at most).",
+                        clock.getAverageLateness() / 1000.0, clock.getMaxLateness() / 1000.0));
+            }
 
         } catch (InterruptedException e) {
             System.out.println("Error: Thread was interrupted while sleeping.");
@@ -133,6 +154,9 @@ public class CLI extends UserInterface {
             displayUsage();
         } catch (SAXException e) {
             System.out.println("Error: Couldn't parse playlist file.");
+        } catch (InvalidOptionException e) {
+            System.out.println("The playlist declares an invalid transform. Please provide valid options.");
+            displayUsage();
         } catch (InvalidMidiDataException e) {
             System.out.println("Invalid midi data was encountered. Please provide a valid midi file for playback.");
             displayUsage();
@@ -172,6 +196,24 @@ public class CLI extends UserInterface {
         displayUsage();
     }
 
+    @Override
+    public void seek(int seconds) {
+        System.out.println("This command is invalid for the current application mode.");
+        displayUsage();
+    }
+
+    @Override
+    public void speed(double speed) {
+        System.out.println("This command is invalid for the current application mode.");
+        displayUsage();
+    }
+
+    @Override
+    public void cache() {
+        System.out.println("This command is invalid for the current application mode.");
+        displayUsage();
+    }
+
     @Override
     public void quit() {
         System.out.println("Program exited.");
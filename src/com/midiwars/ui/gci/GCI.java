@@ -7,10 +7,14 @@ import static java.awt.TrayIcon.MessageType.*;
 
 import com.midiwars.jna.MyUser32;
 import com.midiwars.logic.MidiWars;
+import com.midiwars.logic.PlaybackClock;
+import com.midiwars.logic.PlaybackOptions;
+import com.midiwars.logic.midi.TimelineCache;
 import com.midiwars.ui.UserInterface;
 import com.midiwars.util.MyExceptions.MidiPathNotFoundException;
 import com.midiwars.util.MyExceptions.MidifilesNotFoundException;
 import com.midiwars.util.MyExceptions.InvalidWindowTitle;
+import com.midiwars.util.MyExceptions.InvalidOptionException;
 import com.midiwars.logic.Instrument.Warning;
 import com.sun.jna.platform.win32.WinDef.DWORD;
 import com.sun.jna.platform.win32.WinDef.LONG;
@@ -298,9 +302,9 @@ public class GCI extends UserInterface implements WinEventProc {
 
 
     @Override
-    public void play(String filename) {
+    public void play(String filename, PlaybackOptions options) {
         try {
-            app.play(filename);
+            app.play(filename, options);
         } catch (AWTException e) {
             displayError(true, "Platform configuration does not allow low-level input control.");
         } catch (InterruptedException e) {
@@ -315,6 +319,8 @@ public class GCI extends UserInterface implements WinEventProc {
             displayError(false, "There was a configuration error within the parser.");
         } catch (SAXException e) {
             displayError(false, "Couldn't parse playlist file.");
+        } catch (InvalidOptionException e) {
+            displayError(false, "The playlist declares an invalid transform.\nPlease provide valid options.");
         }
     }
 
@@ -389,14 +395,47 @@ public class GCI extends UserInterface implements WinEventProc {
     }
 
     @Override
-    public void canPlay(String filename, boolean explicit) {
+    public void seek(int seconds) {
+        try {
+            app.seek(seconds);
+        } catch (AWTException e) {
+            displayError(true, "Platform configuration does not allow low-level input control.");
+        } catch (InterruptedException e) {
+            displayError(true, "A thread was interrupted.");
+        } catch (InvalidMidiDataException e) {
+            displayError(false, "Invalid midi data was encountered.\nPlease provide a valid midi file for playback.");
+        } catch (IOException e) {
+            displayError(false, "Couldn't find the given midi file.\nPlease provide a valid filename.");
+        }
+    }
+
+    @Override
+    public void speed(double speed) {
+        try {
+            app.setSpeed(speed);
+        } catch (InvalidOptionException e) {
+            displayError(false, "Speed should be between " + PlaybackClock.MIN_SPEED + " and " + PlaybackClock.MAX_SPEED + ".");
+        }
+    }
+
+    @Override
+    public void cache() {
+
+        TimelineCache cache = app.getCache();
+
+        trayIcon.displayMessage("Timeline cache", String.format("%d hits, %d misses, %d evictions.\n%d of %d notes in memory.",
+                cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getSize(), cache.getCapacity()), NONE);
+    }
+
+    @Override
+    public void canPlay(String filename, PlaybackOptions options, boolean explicit) {
 
         if (!explicit) {
             filename = filename.replace(app.getMidiPath(), "");
         }
 
         try {
-            ArrayList<Warning> warnings = app.canPlay(filename);
+            ArrayList<Warning> warnings = app.canPlay(filename, options);
             if (warnings.size() == 0 && explicit) {
                 trayIcon.displayMessage("No problems found", "midi file is ready for playback.", NONE);
             } else {
@@ -29,6 +29,14 @@ public interface MyExceptions {
 
     }
 
+    /**
+     * Thrown when an option given along with a command
+     * is unknown or has an invalid value.
+     */
+    class InvalidOptionException extends Exception {
+
+    }
+
     /**
      * Thrown when trying to create a new UserInterface object
      * and another UserInterface already exists.
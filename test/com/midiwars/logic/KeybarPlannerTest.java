@@ -0,0 +1,77 @@
+package com.midiwars.logic;
+
+import com.midiwars.logic.midi.MidiFiles;
+import com.midiwars.logic.midi.MidiTimeline;
+import com.midiwars.logic.midi.Timeline;
+import org.junit.Test;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the {@link KeybarPlanner} plays shared keys on whichever keybar saves changes.
+ */
+public class KeybarPlannerTest {
+
+    @Test
+    public void playsSharedKeysOnTheKeybarOfTheirNeighbours() throws Exception {
+
+        // C5 (72) is on the middle and the upper keybar, D5 (74) only on the upper one
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(MidiFiles.song(new int[][] {
+                {64, 0, 400},
+                {74, 1000, 1400},
+                {72, 2000, 2400},
+                {74, 3000, 3400},
+                {72, 4000, 4400}
+        })));
+
+        byte[] plan = KeybarPlanner.plan(midiTimeline, new Instrument(false));
+
+        assertArrayEquals(new byte[] {1, -1, 2, -1, 2, -1, 2, -1, 2, -1}, plan);
+    }
+
+
+    @Test
+    public void plansTheNotesWithinTheHorizon() throws Exception {
+
+        // the first three notes are within 2s of each other, the last one isn't
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(MidiFiles.song(new int[][] {
+                {64, 0, 400},
+                {74, 1000, 1400},
+                {72, 2000, 2400},
+                {74, 3000, 3400}
+        })));
+
+        KeybarPlanner.Window window = new KeybarPlanner.Window();
+        int keybarIndex = KeybarPlanner.lookahead(midiTimeline, new Instrument(false), 0, 2000000, 1, -1, 0, 1, window);
+
+        assertEquals(1, keybarIndex);
+        assertEquals(1, window.get(0));
+        assertEquals(2, window.get(1));
+        assertEquals(2, window.get(4));
+        assertEquals(-1, window.get(5));
+    }
+
+
+    @Test(timeout = 10000)
+    public void stopsAtTheHorizonWithoutNotes() {
+
+        // an endless timeline of NOTE_OFF events, 10ms apart
+        Timeline midiTimeline = new Timeline() {
+            public boolean has(int i) { return true; }
+            public int getType(int i) { return NOTE_OFF; }
+            public int getKey(int i) { return 60; }
+            public int getTimestamp(int i) { return 10 * i; }
+            public long getTimestampMicros(int i) { return 10000L * i; }
+            public int getDuration(int i) { return 0; }
+            public int getDurationMicros(int i) { return 0; }
+        };
+
+        KeybarPlanner.Window window = new KeybarPlanner.Window();
+        int keybarIndex = KeybarPlanner.lookahead(midiTimeline, new Instrument(false), 0, 2000000, 1, -1, 0, 1, window);
+
+        assertEquals(-1, keybarIndex);
+        assertEquals(-1, window.get(0));
+    }
+}
@@ -0,0 +1,78 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import static com.midiwars.logic.midi.Timeline.KEYS;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link AutoTranspose} moves songs to the keys the instrument's keybars hold.
+ */
+public class AutoTransposeTest {
+
+    /** Keybars of the instrument, from C3 to C6 in C major. */
+    private static final int[][] KEYBARS = {
+            {48, 50, 52, 53, 55, 57, 59, 60},
+            {60, 62, 64, 65, 67, 69, 71, 72},
+            {72, 74, 76, 77, 79, 81, 83, 84}
+    };
+
+
+    @Test
+    public void keepsPlayableSongs() {
+
+        // C major, within a keybar
+        int[] melody = {60, 64, 67, 72, 67, 64, 60};
+
+        assertEquals(0, search(melody));
+    }
+
+
+    @Test
+    public void findsTheKeyOfTheSong() {
+
+        // D major scale, up and down, around D4
+        int[] scale = {62, 64, 66, 67, 69, 71, 73, 74, 73, 71, 69, 67, 66, 64, 62};
+
+        assertEquals(-2, search(scale));
+    }
+
+
+    @Test
+    public void avoidsKeybarSwitches() {
+
+        // B4 and D5 are on different keybars, A4 and C5 (two semitones lower) are on the same one
+        int[] melody = {71, 74, 71, 74, 71, 74, 71, 74};
+
+        assertEquals(-2, search(melody));
+    }
+
+
+    /**
+     * Searches the best transposition of the given melody.
+     *
+     * @param melody Keys of the melody, in order.
+     *
+     * @return Amount of semitones.
+     */
+    private static int search(int[] melody) {
+
+        int[] masks = new int[KEYS];
+        for (int i = 0; i < KEYBARS.length; i++) {
+            for (int key : KEYBARS[i]) {
+                masks[key] |= 1 << i;
+            }
+        }
+
+        int[] histogram = new int[KEYS];
+        int[] transitions = new int[KEYS * KEYS];
+        for (int i = 0; i < melody.length; i++) {
+            histogram[melody[i]]++;
+            if (i > 0) {
+                transitions[melody[i - 1] * KEYS + melody[i]]++;
+            }
+        }
+
+        return new AutoTranspose(key -> masks[key]).search(histogram, transitions);
+    }
+}
@@ -0,0 +1,67 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.util.Collections;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that {@link CooldownWarp} delays notes by as little as the keybar cooldown needs, and catches up in rests.
+ */
+public class CooldownWarpTest {
+
+    /** Keybar of each event: C4, D5, C4 and C4 again after a rest (-1 for NOTE_OFF events). */
+    private static final byte[] PLAN = {1, -1, 2, -1, 1, -1, 1, -1};
+
+
+    @Test
+    public void waitsForTheCooldownOfInstrumentsThatCantHold() throws Exception {
+
+        // the second change can only start 200ms after the first, and takes 50ms
+        assertArrayEquals(new long[] {0, 50, 100, 150, 250, 300, 2000, 2050}, warp(false));
+    }
+
+
+    @Test
+    public void waitsForNotesToBeReleased() throws Exception {
+
+        // changes start once the previous note is released (at 50ms and then at 150ms, held back to 250ms)
+        assertArrayEquals(new long[] {0, 50, 100, 150, 300, 350, 2000, 2050}, warp(true));
+    }
+
+
+    /**
+     * Warps the song of the {@link #PLAN} with a cooldown of 200ms and changes that take 50ms.
+     *
+     * @param canHold True if the instrument can hold notes.
+     *
+     * @return New timestamp of each event (ms).
+     */
+    private static long[] warp(boolean canHold) throws Exception {
+
+        // 1000µs per tick
+        Sequence sequence = new Sequence(Sequence.PPQ, MidiFiles.RESOLUTION);
+        Track track = sequence.createTrack();
+        track.add(MidiFiles.tempo(1000 * MidiFiles.RESOLUTION, 0));
+        int[][] notes = {{60, 0}, {74, 100}, {60, 200}, {60, 2000}};
+        for (int[] note : notes) {
+            track.add(MidiFiles.note(NOTE_ON, 0, note[0], 64, note[1]));
+            track.add(MidiFiles.note(NOTE_OFF, 0, note[0], 64, note[1] + 50));
+        }
+
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(sequence));
+        CooldownWarp warp = new CooldownWarp(midiTimeline, t -> PLAN, 1, 200, 50, canHold);
+        MidiTimeline warped = midiTimeline.transform(Collections.singletonList(warp));
+
+        long[] timestamps = new long[warped.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = warped.getTimestampMicros(i) / 1000;
+        }
+        return timestamps;
+    }
+}
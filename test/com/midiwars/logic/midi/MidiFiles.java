@@ -0,0 +1,156 @@
+package com.midiwars.logic.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+/**
+ * Midi files used by the tests, generated on the fly.
+ */
+public class MidiFiles {
+
+    /* --- DEFINES --- */
+
+    /** Timing resolution of the generated files (ticks per quarter-note). */
+    public static final int RESOLUTION = 480;
+
+
+    /* --- METHODS --- */
+
+    /**
+     * Creates a new MidiFiles object.
+     */
+    private MidiFiles() {
+
+    }
+
+
+    /**
+     * Generates a random song: tempo changes in the first track, and overlapping notes
+     * of every channel in the others, some of them ended by NOTE_ON events of velocity 0.
+     *
+     * @param seed Random seed.
+     * @param tracks Number of tracks with notes.
+     * @param notes Number of notes per track.
+     *
+     * @return The song.
+     *
+     * @throws InvalidMidiDataException Never, messages are valid.
+     */
+    public static Sequence random(long seed, int tracks, int notes) throws InvalidMidiDataException {
+
+        Random random = new Random(seed);
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+
+        Track tempoTrack = sequence.createTrack();
+        for (long tick = 0; tick < notes * RESOLUTION / 4; tick += 1 + random.nextInt(8 * RESOLUTION)) {
+            tempoTrack.add(tempo(200000 + random.nextInt(800000), tick));
+        }
+
+        for (int t = 0; t < tracks; t++) {
+            Track track = sequence.createTrack();
+            long tick = 0;
+            for (int n = 0; n < notes; n++) {
+                tick += (random.nextInt(4) == 0) ? 0 : random.nextInt(RESOLUTION / 2);
+                int channel = random.nextInt(16);
+                int key = 36 + random.nextInt(60);
+                long end = tick + 1 + random.nextInt(RESOLUTION);
+                track.add(note(NOTE_ON, channel, key, 64, tick));
+                if (random.nextBoolean()) {
+                    track.add(note(NOTE_ON, channel, key, 0, end));
+                } else {
+                    track.add(note(NOTE_OFF, channel, key, 64, end));
+                }
+            }
+        }
+
+        return sequence;
+    }
+
+
+    /**
+     * Builds a single track song where a tick lasts a millisecond.
+     *
+     * @param notes Key, start (ms) and end (ms) of each note, all of them on the first channel.
+     *
+     * @return The song.
+     *
+     * @throws InvalidMidiDataException If a value is out of range.
+     */
+    public static Sequence song(int[][] notes) throws InvalidMidiDataException {
+
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        Track track = sequence.createTrack();
+        track.add(tempo(1000 * RESOLUTION, 0));
+
+        for (int[] note : notes) {
+            track.add(note(NOTE_ON, 0, note[0], 64, note[1]));
+            track.add(note(NOTE_OFF, 0, note[0], 64, note[2]));
+        }
+
+        return sequence;
+    }
+
+
+    /**
+     * Creates a NOTE_ON or NOTE_OFF event.
+     *
+     * @param type NOTE_ON or NOTE_OFF.
+     * @param channel Channel number [0-15].
+     * @param key Key number [0-127].
+     * @param velocity Velocity [0-127].
+     * @param tick Event time-stamp (ticks).
+     *
+     * @return The event.
+     *
+     * @throws InvalidMidiDataException If a value is out of range.
+     */
+    public static MidiEvent note(int type, int channel, int key, int velocity, long tick) throws InvalidMidiDataException {
+        return new MidiEvent(new ShortMessage(type, channel, key, velocity), tick);
+    }
+
+
+    /**
+     * Creates a SET_TEMPO event.
+     *
+     * @param mspq Tempo (microseconds per quarter-note).
+     * @param tick Event time-stamp (ticks).
+     *
+     * @return The event.
+     *
+     * @throws InvalidMidiDataException Never, the message is valid.
+     */
+    public static MidiEvent tempo(int mspq, long tick) throws InvalidMidiDataException {
+
+        byte[] data = {(byte) (mspq >> 16), (byte) (mspq >> 8), (byte) mspq};
+        return new MidiEvent(new MetaMessage(MetaMessageHandler.SET_TEMPO, data, data.length), tick);
+    }
+
+
+    /**
+     * Writes the given song to a temporary file, deleted when the tests end.
+     *
+     * @param sequence Song to write.
+     *
+     * @return Path to the file.
+     *
+     * @throws IOException If the file can't be written.
+     */
+    public static String write(Sequence sequence) throws IOException {
+
+        File file = File.createTempFile("midiwars", ".mid");
+        file.deleteOnExit();
+        MidiSystem.write(sequence, (sequence.getTracks().length > 1) ? 1 : 0, file);
+        return file.getPath();
+    }
+}
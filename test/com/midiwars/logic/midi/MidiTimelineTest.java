@@ -0,0 +1,203 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the byte-level parser reads midi files the same way {@link MidiSystem#getSequence(File)} does.
+ */
+public class MidiTimelineTest {
+
+    @Test
+    public void matchesMidiSystem() throws Exception {
+
+        for (long seed = 0; seed < 20; seed++) {
+
+            String file = MidiFiles.write(MidiFiles.random(seed, 1 + (int) (seed % 6), 300));
+
+            assertEquals("seed " + seed, expected(file), events(new MidiTimeline(file)));
+        }
+    }
+
+
+    @Test
+    public void pairsNotesWithinTheirTrackChannelAndKey() throws Exception {
+
+        Sequence sequence = new Sequence(Sequence.PPQ, MidiFiles.RESOLUTION);
+        Track first = sequence.createTrack();
+        Track second = sequence.createTrack();
+
+        // overlapping notes of the same key are all closed by the first NOTE_OFF
+        first.add(MidiFiles.note(NOTE_ON, 0, 60, 64, 0));
+        first.add(MidiFiles.note(NOTE_ON, 0, 60, 64, 480));
+        first.add(MidiFiles.note(NOTE_OFF, 0, 60, 64, 960));
+
+        // other channels and tracks don't close them
+        first.add(MidiFiles.note(NOTE_ON, 1, 62, 64, 0));
+        first.add(MidiFiles.note(NOTE_OFF, 0, 62, 64, 480));
+        second.add(MidiFiles.note(NOTE_OFF, 1, 62, 64, 480));
+        first.add(MidiFiles.note(NOTE_ON, 1, 62, 0, 1440));
+
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(sequence));
+
+        assertEquals(7, midiTimeline.size());
+        assertArrayEquals(new int[] {1000000, 1500000, 500000, 0, 0, 0, 0}, durations(midiTimeline));
+    }
+
+
+    @Test
+    public void parsesOnlySelectedParts() throws Exception {
+
+        PartSelector[] selections = {
+                PartSelector.parse("2", null),
+                PartSelector.parse(null, "1-9,11-16"),
+                PartSelector.parse("1,3-5", "2,10"),
+                PartSelector.parse("7", null)
+        };
+
+        for (long seed = 0; seed < 5; seed++) {
+
+            String file = MidiFiles.write(MidiFiles.random(seed, 5, 300));
+            MidiTimeline whole = new MidiTimeline(file);
+
+            for (PartSelector parts : selections) {
+                String message = "seed " + seed + ", " + parts;
+                MidiTimeline selected = new MidiTimeline(file, parts);
+                assertEquals(message, events(whole.select(parts)), events(selected));
+                assertArrayEquals(message, durations(whole.select(parts)), durations(selected));
+            }
+        }
+    }
+
+
+    /**
+     * Lists the note events of the given midi file, as read by {@link MidiSystem}.
+     *
+     * @param file Path to the midi file.
+     *
+     * @return Timestamp (µs), type, key, track and channel of each event, in the order a timeline should have them.
+     */
+    private static List<String> expected(String file) throws Exception {
+
+        Sequence sequence = MidiSystem.getSequence(new File(file));
+
+        // tempo of each tick
+        TreeMap<Long, Integer> tempos = new TreeMap<>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                if (event.getMessage() instanceof MetaMessage && ((MetaMessage) event.getMessage()).getType() == MetaMessageHandler.SET_TEMPO) {
+                    byte[] data = ((MetaMessage) event.getMessage()).getData();
+                    tempos.put(event.getTick(), (data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | (data[2] & 0xff));
+                }
+            }
+        }
+
+        List<long[]> events = new ArrayList<>();
+        Track[] tracks = sequence.getTracks();
+        for (int t = 0; t < tracks.length; t++) {
+            for (int i = 0; i < tracks[t].size(); i++) {
+                MidiEvent event = tracks[t].get(i);
+                if (!(event.getMessage() instanceof ShortMessage)) {
+                    continue;
+                }
+                ShortMessage message = (ShortMessage) event.getMessage();
+                int command = message.getCommand();
+                if (command != NOTE_ON && command != NOTE_OFF) {
+                    continue;
+                }
+                int type = (command == NOTE_ON && message.getData2() > 0) ? NOTE_ON : NOTE_OFF;
+                events.add(new long[] {micros(tempos, event.getTick(), sequence.getResolution()), type,
+                        message.getData1(), t, message.getChannel()});
+            }
+        }
+
+        // stable: events of the same track keep their order
+        events.sort(Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[2]).thenComparingLong(e -> e[3]));
+
+        List<String> list = new ArrayList<>();
+        for (long[] e : events) {
+            list.add(e[0] + " " + e[1] + " " + e[2] + " " + e[3] + " " + e[4]);
+        }
+        return list;
+    }
+
+
+    /**
+     * Converts ticks to microseconds, exactly, going through every tempo change.
+     *
+     * @param tempos Tempo of each tick it changes at.
+     * @param tick Ticks.
+     * @param resolution Ticks per quarter-note.
+     *
+     * @return Microseconds (rounded down).
+     */
+    private static long micros(TreeMap<Long, Integer> tempos, long tick, int resolution) {
+
+        BigInteger time = BigInteger.ZERO;
+        long previous = 0;
+        long mspq = TempoMap.DEFAULT_MSPQ;
+
+        for (java.util.Map.Entry<Long, Integer> entry : tempos.headMap(tick, true).entrySet()) {
+            time = time.add(BigInteger.valueOf(mspq).multiply(BigInteger.valueOf(entry.getKey() - previous)));
+            previous = entry.getKey();
+            mspq = entry.getValue();
+        }
+        time = time.add(BigInteger.valueOf(mspq).multiply(BigInteger.valueOf(tick - previous)));
+
+        return time.divide(BigInteger.valueOf(resolution)).longValue();
+    }
+
+
+    /**
+     * Lists the events of the given timeline.
+     *
+     * @param timeline Timeline to list.
+     *
+     * @return Timestamp (µs), type, key, track and channel of each event.
+     */
+    static List<String> events(Timeline timeline) {
+
+        List<String> list = new ArrayList<>();
+        for (int i = 0; timeline.has(i); i++) {
+            int track = (timeline instanceof MidiTimeline) ? ((MidiTimeline) timeline).getTrack(i) : -1;
+            int channel = (timeline instanceof MidiTimeline) ? ((MidiTimeline) timeline).getChannel(i) : -1;
+            list.add(timeline.getTimestampMicros(i) + " " + timeline.getType(i) + " " + timeline.getKey(i) + " " + track + " " + channel);
+        }
+        return list;
+    }
+
+
+    /**
+     * Lists the durations of the events of the given timeline.
+     *
+     * @param midiTimeline Timeline to list.
+     *
+     * @return Duration (µs) of each event.
+     */
+    private static int[] durations(MidiTimeline midiTimeline) {
+
+        int[] durations = new int[midiTimeline.size()];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = midiTimeline.getDurationMicros(i);
+        }
+        return durations;
+    }
+}
@@ -0,0 +1,69 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the {@link Quantizer} snaps notes to the grid of the song's tempo map.
+ */
+public class QuantizerTest {
+
+    @Test
+    public void snapsNotesToTheGrid() throws Exception {
+
+        // sixteenth notes last 120ms
+        List<String> quantized = quantize(new int[][] {
+                {60, 10, 210},
+                {64, 110, 140},
+                {67, 235, 700}
+        });
+
+        assertEquals(Arrays.asList(
+                "0 144 60 240",
+                "120 144 64 120",
+                "240 128 60 0",
+                "240 128 64 0",
+                "240 144 67 480",
+                "720 128 67 0"), quantized);
+    }
+
+
+    @Test
+    public void mergesNotesThatEndUpTogether() throws Exception {
+
+        List<String> quantized = quantize(new int[][] {
+                {60, 470, 475},
+                {60, 490, 790}
+        });
+
+        assertEquals(Arrays.asList(
+                "480 144 60 360",
+                "840 128 60 0"), quantized);
+    }
+
+
+    /**
+     * Quantizes the given notes to sixteenth notes.
+     *
+     * @param notes Key, start (ms) and end (ms) of each note.
+     *
+     * @return Timestamp (ms), type, key and duration (ms) of each event.
+     */
+    private static List<String> quantize(int[][] notes) throws Exception {
+
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(MidiFiles.song(notes)));
+        MidiTimeline quantized = midiTimeline.transform(Collections.singletonList(new Quantizer(midiTimeline, 16)));
+
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < quantized.size(); i++) {
+            list.add(quantized.getTimestampMicros(i) / 1000 + " " + quantized.getType(i) + " " + quantized.getKey(i) + " " + quantized.getDurationMicros(i) / 1000);
+        }
+        return list;
+    }
+}
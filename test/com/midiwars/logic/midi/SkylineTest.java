@@ -0,0 +1,80 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.midiwars.logic.midi.Skyline.Strategy.HIGHEST;
+import static com.midiwars.logic.midi.Skyline.Strategy.LOWEST;
+import static com.midiwars.logic.midi.Skyline.Strategy.PLAYABLE;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the {@link Skyline} picks a single melodic line out of a song.
+ */
+public class SkylineTest {
+
+    /** A chord, then a higher note while it's still sounding, then a middle note once that one ended. */
+    private static final int[][] NOTES = {
+            {60, 0, 500},
+            {64, 0, 500},
+            {67, 0, 1000},
+            {72, 200, 300},
+            {65, 400, 600}
+    };
+
+
+    @Test
+    public void followsTheHighestNotes() throws Exception {
+
+        // better notes cut the melody short, and any note takes over once it stopped sounding
+        assertEquals(Arrays.asList(
+                "0 144 67 200",
+                "200 128 67 0",
+                "200 144 72 100",
+                "300 128 72 0",
+                "400 144 65 200",
+                "600 128 65 0"), melody(new Skyline(HIGHEST, key -> true)));
+    }
+
+
+    @Test
+    public void followsTheLowestNotes() throws Exception {
+
+        assertEquals(Arrays.asList(
+                "0 144 60 500",
+                "500 128 60 0"), melody(new Skyline(LOWEST, key -> true)));
+    }
+
+
+    @Test
+    public void prefersPlayableNotes() throws Exception {
+
+        assertEquals(Arrays.asList(
+                "0 144 64 500",
+                "500 128 64 0"), melody(new Skyline(PLAYABLE, key -> key <= 64)));
+    }
+
+
+    /**
+     * Picks the melody out of the {@link #NOTES}.
+     *
+     * @param skyline Stage picking the melody.
+     *
+     * @return Timestamp (ms), type, key and duration (ms) of each event.
+     */
+    private static List<String> melody(Skyline skyline) throws Exception {
+
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(MidiFiles.song(NOTES)));
+        MidiTimeline melody = midiTimeline.transform(Collections.singletonList(skyline));
+
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < melody.size(); i++) {
+            list.add(melody.getTimestampMicros(i) / 1000 + " " + melody.getType(i) + " " + melody.getKey(i) + " " + melody.getDurationMicros(i) / 1000);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,122 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link StreamingTimeline} hands over the same events as a {@link MidiTimeline} of the same file.
+ */
+public class StreamingTimelineTest {
+
+    @Test
+    public void matchesMidiTimeline() throws Exception {
+
+        for (long seed = 0; seed < 10; seed++) {
+
+            String file = MidiFiles.write(MidiFiles.random(seed, 1 + (int) (seed % 6), 300));
+            MidiTimeline midiTimeline = new MidiTimeline(file);
+            StreamingTimeline streamingTimeline = new StreamingTimeline(file);
+
+            assertEquals("seed " + seed, events(midiTimeline, 0), events(streamingTimeline, 0));
+            assertNull(streamingTimeline.getError());
+            streamingTimeline.close();
+        }
+    }
+
+
+    @Test
+    public void matchesMidiTimelineAfterSeeking() throws Exception {
+
+        String file = MidiFiles.write(MidiFiles.random(42, 6, 4000));
+        MidiTimeline midiTimeline = new MidiTimeline(file);
+        StreamingTimeline streamingTimeline = new StreamingTimeline(file);
+
+        // play it all once, so that the checkpoints are known and the start of the song is dropped
+        assertEquals(events(midiTimeline, 0), events(streamingTimeline, 0));
+        assertTrue(streamingTimeline.getCheckpoints() > 1);
+
+        // back to a checkpoint, in-between checkpoints and to the very start
+        int[] targets = {StreamingTimeline.CHECKPOINT_INTERVAL, StreamingTimeline.CHECKPOINT_INTERVAL + 1234, 5, 0};
+        for (int i : targets) {
+            streamingTimeline.setCursor(i);
+            assertEquals("event " + i, events(midiTimeline, i), events(streamingTimeline, i));
+        }
+
+        streamingTimeline.close();
+    }
+
+
+    @Test
+    public void findsMomentsInTime() throws Exception {
+
+        String file = MidiFiles.write(MidiFiles.random(43, 6, 4000));
+        MidiTimeline midiTimeline = new MidiTimeline(file);
+        long last = midiTimeline.getTimestampMicros(midiTimeline.size() - 1);
+
+        // before the producer gets there, then from the checkpoints (forwards and backwards)
+        StreamingTimeline streamingTimeline = new StreamingTimeline(file);
+        long[] moments = {last / 2, 0, last / 3, last / 3 + 1, 2 * last / 3, last / 4, last, last + 1};
+        for (long micros : moments) {
+            int i = midiTimeline.indexAt(micros);
+            assertEquals("moment " + micros, i, streamingTimeline.indexAt(micros));
+            assertEquals("moment " + micros, events(midiTimeline, i), events(streamingTimeline, i));
+        }
+
+        streamingTimeline.close();
+    }
+
+
+    @Test
+    public void reportsInvalidEvents() throws Exception {
+
+        // the end of track meta event becomes an invalid one (type 0xff)
+        String file = MidiFiles.write(MidiFiles.random(7, 1, 300));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 2);
+            raf.write(0xff);
+        }
+
+        StreamingTimeline streamingTimeline = new StreamingTimeline(file);
+        events(streamingTimeline, 0);
+
+        assertNotNull(streamingTimeline.getError());
+        streamingTimeline.close();
+    }
+
+
+    /**
+     * Lists the events of the given timeline from the given one onwards, then moves the cursor past them (as playback would).
+     * Events are only listed once the timeline has ended, since durations are known once their notes end.
+     *
+     * @param timeline Timeline to list.
+     * @param from Index of the first event.
+     *
+     * @return Timestamp (µs), type, key and duration (µs) of each event.
+     */
+    private static List<String> events(Timeline timeline, int from) {
+
+        int end = from;
+        while (timeline.has(end)) {
+            end++;
+        }
+
+        List<String> list = new ArrayList<>();
+        for (int i = from; i < end; i++) {
+            list.add(timeline.getTimestampMicros(i) + " " + timeline.getType(i) + " " + timeline.getKey(i) + " " + timeline.getDurationMicros(i));
+        }
+
+        // earlier events are dropped once playback moves on
+        timeline.setCursor(end);
+        timeline.has(end);
+
+        return list;
+    }
+}
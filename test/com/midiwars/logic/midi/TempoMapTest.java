@@ -0,0 +1,78 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks conversions between ticks and time.
+ */
+public class TempoMapTest {
+
+    @Test
+    public void convertsBothWays() {
+
+        Random random = new Random(1);
+
+        TreeMap<Long, Integer> tempos = new TreeMap<>();
+        for (long tick = 100; tick < 100000; tick += 1 + random.nextInt(5000)) {
+            tempos.put(tick, 1 + random.nextInt(1000000));
+        }
+
+        for (float divisionType : new float[] {Sequence.PPQ, Sequence.SMPTE_24, Sequence.SMPTE_25, Sequence.SMPTE_30DROP, Sequence.SMPTE_30}) {
+
+            TempoMap tempoMap = new TempoMap(tempos, divisionType, 96);
+
+            long previous = -1;
+            for (long tick = 0; tick < 120000; tick += 7) {
+
+                long micros = tempoMap.toMicroseconds(tick);
+                assertTrue(micros >= previous);
+                previous = micros;
+
+                // rounding down to the microsecond loses less than a tick
+                double ticks = tempoMap.toTicks(micros);
+                assertTrue(tick + " -> " + ticks, ticks <= tick && ticks > tick - 1);
+
+                assertEquals(micros, tempoMap.cursor().toMicroseconds(tick));
+            }
+        }
+    }
+
+
+    @Test
+    public void defaultsTo120Qpm() {
+
+        TempoMap tempoMap = new TempoMap(new TreeMap<>(), Sequence.PPQ, 480);
+
+        assertEquals(500000, tempoMap.toMicroseconds(480));
+        assertEquals(480, tempoMap.toTicks(500000), 0);
+    }
+
+
+    @Test
+    public void ignoresTemposOfZero() throws Exception {
+
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(MidiFiles.tempo(0, 0));
+        track.add(MidiFiles.tempo(250000, 480));
+        track.add(MidiFiles.tempo(0, 960));
+        track.add(MidiFiles.note(NOTE_ON, 0, 60, 64, 1440));
+        track.add(MidiFiles.note(NOTE_OFF, 0, 60, 64, 1920));
+
+        MidiTimeline midiTimeline = new MidiTimeline(MidiFiles.write(sequence));
+
+        assertEquals(500000 + 2 * 250000, midiTimeline.getTimestampMicros(0));
+        assertEquals(250000, midiTimeline.getDurationMicros(0));
+        assertEquals(1440, midiTimeline.getTempoMap().toTicks(midiTimeline.getTimestampMicros(0)), 0);
+    }
+}
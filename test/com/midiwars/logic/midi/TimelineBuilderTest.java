@@ -0,0 +1,47 @@
+package com.midiwars.logic.midi;
+
+import org.junit.Test;
+
+import javax.sound.midi.Sequence;
+import java.util.Arrays;
+import java.util.List;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the order runs of several tracks are merged in.
+ */
+public class TimelineBuilderTest {
+
+    @Test
+    public void breaksTiesByKeyThenTrack() {
+
+        TimelineBuilder builder = new TimelineBuilder();
+        builder.freezeTempos(Sequence.PPQ, 480);
+
+        TrackRun first = builder.newRun();
+        first.addNoteEvent(NOTE_ON, 0, 64, 0);
+        first.addNoteEvent(NOTE_ON, 0, 60, 0);
+        first.addNoteEvent(NOTE_OFF, 0, 64, 480);
+        first.addNoteEvent(NOTE_OFF, 0, 60, 480);
+        first.finish();
+
+        TrackRun second = builder.newRun();
+        second.addNoteEvent(NOTE_ON, 1, 62, 0);
+        second.addNoteEvent(NOTE_ON, 1, 60, 0);
+        second.addNoteEvent(NOTE_OFF, 1, 60, 480);
+        second.addNoteEvent(NOTE_ON, 1, 60, 480);
+        second.addNoteEvent(NOTE_OFF, 1, 60, 960);
+        second.finish();
+
+        List<String> expected = Arrays.asList(
+                "0 144 60 0 0", "0 144 60 1 1", "0 144 62 1 1", "0 144 64 0 0",
+                // same key and track: the order of the midi file is kept
+                "500000 128 60 0 0", "500000 128 60 1 1", "500000 144 60 1 1", "500000 128 64 0 0",
+                "1000000 128 60 1 1");
+
+        assertEquals(expected, MidiTimelineTest.events(builder.build(Sequence.PPQ, 480)));
+    }
+}
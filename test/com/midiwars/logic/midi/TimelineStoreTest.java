@@ -0,0 +1,163 @@
+package com.midiwars.logic.midi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that the {@link TimelineStore} reuses its entries only while they match their midi files.
+ */
+public class TimelineStoreTest {
+
+    /** Directory of the store. */
+    private Path dir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("midiwars");
+        TimelineStore.getInstance().setCachePath(dir.toString());
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+
+        TimelineStore.getInstance().setCachePath(null);
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+
+    @Test
+    public void reloadsStoredTimelines() throws Exception {
+
+        String file = MidiFiles.write(MidiFiles.random(1, 3, 300));
+
+        MidiTimeline built = TimelineStore.getInstance().load(file);
+        Object key = getFileKey(getEntry());
+        MidiTimeline loaded = TimelineStore.getInstance().load(file);
+
+        assertEquals(MidiTimelineTest.events(built), MidiTimelineTest.events(loaded));
+        assertEquals(key, getFileKey(getEntry()));
+    }
+
+
+    @Test
+    public void keepsEntriesOfTouchedFiles() throws Exception {
+
+        String file = MidiFiles.write(MidiFiles.random(2, 3, 300));
+        MidiTimeline built = TimelineStore.getInstance().load(file);
+        Object key = getFileKey(getEntry());
+
+        Files.setLastModifiedTime(Paths.get(file), FileTime.fromMillis(1000));
+
+        MidiTimeline loaded = TimelineStore.getInstance().load(file);
+
+        assertEquals(MidiTimelineTest.events(built), MidiTimelineTest.events(loaded));
+        assertEquals(key, getFileKey(getEntry()));
+    }
+
+
+    @Test
+    public void rebuildsStaleEntries() throws Exception {
+
+        // same size, different contents
+        String file = MidiFiles.write(note(60));
+        assertEquals(60, TimelineStore.getInstance().load(file).getKey(0));
+
+        Files.copy(Paths.get(MidiFiles.write(note(61))), Paths.get(file), REPLACE_EXISTING);
+        Files.setLastModifiedTime(Paths.get(file), FileTime.fromMillis(1000));
+        assertEquals(61, TimelineStore.getInstance().load(file).getKey(0));
+
+        // different size, same modification time
+        Files.copy(Paths.get(MidiFiles.write(MidiFiles.random(3, 1, 10))), Paths.get(file), REPLACE_EXISTING);
+        Files.setLastModifiedTime(Paths.get(file), FileTime.fromMillis(1000));
+        assertEquals(20, TimelineStore.getInstance().load(file).size());
+    }
+
+
+    @Test
+    public void rebuildsCorruptEntries() throws Exception {
+
+        String file = MidiFiles.write(MidiFiles.random(4, 3, 300));
+        MidiTimeline built = TimelineStore.getInstance().load(file);
+        Path entry = getEntry();
+
+        try (RandomAccessFile raf = new RandomAccessFile(entry.toFile(), "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(raf.read() ^ 0xff);
+        }
+        Object key = getFileKey(entry);
+
+        MidiTimeline loaded = TimelineStore.getInstance().load(file);
+
+        assertEquals(MidiTimelineTest.events(built), MidiTimelineTest.events(loaded));
+        assertNotEquals(key, getFileKey(getEntry()));
+    }
+
+
+    /**
+     * Creates a song with a single note.
+     *
+     * @param key Key of the note.
+     *
+     * @return The song.
+     */
+    private static Sequence note(int key) throws Exception {
+
+        Sequence sequence = new Sequence(Sequence.PPQ, MidiFiles.RESOLUTION);
+        Track track = sequence.createTrack();
+        track.add(MidiFiles.note(NOTE_ON, 0, key, 64, 0));
+        track.add(MidiFiles.note(NOTE_OFF, 0, key, 64, MidiFiles.RESOLUTION));
+        return sequence;
+    }
+
+
+    /**
+     * Returns the only entry of the store.
+     *
+     * @return Path to the entry.
+     */
+    private Path getEntry() throws IOException {
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(TimelineStore.EXTENSION)).reduce((a, b) -> {
+                throw new AssertionError("more than one entry");
+            }).orElseThrow(() -> new AssertionError("no entry"));
+        }
+    }
+
+
+    /**
+     * Identifies the given file, so that replaced (rewritten) entries can be told apart.
+     *
+     * @param path Path to the file.
+     *
+     * @return File key (e.g. device and inode).
+     */
+    private static Object getFileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+}